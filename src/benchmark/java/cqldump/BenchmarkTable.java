@@ -0,0 +1,224 @@
+package cqldump;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.TypeCodec;
+import com.datastax.driver.core.utils.UUIDs;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Synthetic tables for the benchmarks, from a narrow three column table to
+ * a wide one with every type the dump formats special case, and single
+ * blob tables with small and large values. Rows are generated from a fixed
+ * seed and served by a {@link StubNode}, so the benchmarks get the driver's
+ * own rows and prepared statements without a cluster.
+ *
+ * @author theider
+ */
+public class BenchmarkTable implements Closeable {
+
+    // rows per benchmark invocation, results are reported per row
+    public static final int ROWS = 1000;
+
+    private static final String[] WORDS = {
+        "alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel",
+        "Zürich", "São Paulo", "東京", "say \"hi\"", "a/b/c", "tab\tand\nnewline"
+    };
+
+    private final String name;
+    private final List<String> names = new ArrayList<>();
+    private final List<DataType> types = new ArrayList<>();
+    private final int blobSize;
+    private final StubNode node;
+    private final Cluster cluster;
+    private final Session session;
+    private final ColumnDefinitions columns;
+    private final List<Row> rows;
+
+    private BenchmarkTable(String name, int blobSize, Object... columnSpecs) throws IOException {
+        this.name = name;
+        this.blobSize = blobSize;
+        for (int i = 0; i < columnSpecs.length; i += 2) {
+            names.add((String) columnSpecs[i]);
+            types.add((DataType) columnSpecs[i + 1]);
+        }
+        List<List<ByteBuffer>> values = new ArrayList<>(ROWS);
+        Random random = new Random(42);
+        for (int r = 0; r < ROWS; r++) {
+            List<ByteBuffer> row = new ArrayList<>(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                // the wide table has a sparse column
+                boolean isNull = names.get(i).equals("note") && ((r % 4) != 0);
+                row.add(isNull ? null : serialize(types.get(i), value(types.get(i), random)));
+            }
+            values.add(row);
+        }
+        node = new StubNode();
+        node.addTable(name, names, types, values);
+        cluster = node.newCluster();
+        session = cluster.connect();
+        // decoded by the driver from a result frame, as the exporter gets them
+        ResultSet resultSet = session.execute("SELECT * FROM " + name);
+        columns = resultSet.getColumnDefinitions();
+        rows = resultSet.all();
+    }
+
+    /**
+     * @param name narrow, wide, small_blob or large_blob
+     * @return the table with its rows
+     * @throws IOException if the stub node cannot be started
+     */
+    public static BenchmarkTable forName(String name) throws IOException {
+        switch (name) {
+            case "narrow":
+                return new BenchmarkTable(name, 0,
+                        "id", DataType.uuid(),
+                        "name", DataType.text(),
+                        "count", DataType.cint());
+            case "wide":
+                return new BenchmarkTable(name, 128,
+                        "id", DataType.uuid(),
+                        "event", DataType.timeuuid(),
+                        "created", DataType.timestamp(),
+                        "updated", DataType.timestamp(),
+                        "name", DataType.text(),
+                        "description", DataType.text(),
+                        "note", DataType.text(),
+                        "city", DataType.varchar(),
+                        "code", DataType.ascii(),
+                        "total", DataType.bigint(),
+                        "rank", DataType.bigint(),
+                        "quantity", DataType.cint(),
+                        "score", DataType.cdouble(),
+                        "active", DataType.cboolean(),
+                        "owner", DataType.uuid(),
+                        "payload", DataType.blob());
+            case "small_blob":
+                return new BenchmarkTable(name, 256,
+                        "id", DataType.uuid(),
+                        "data", DataType.blob());
+            case "large_blob":
+                return new BenchmarkTable(name, 65536,
+                        "id", DataType.uuid(),
+                        "data", DataType.blob());
+            default:
+                throw new IllegalArgumentException("unknown benchmark table " + name);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ColumnDefinitions getColumns() {
+        return columns;
+    }
+
+    public List<Row> getRows() {
+        return rows;
+    }
+
+    /**
+     * Encodes all rows as one table entry of the format.
+     *
+     * @param format dump format
+     * @return entry bytes as export writes them
+     */
+    public byte[] toEntry(DumpFormat format) {
+        RecordEncoder encoder = format.newEncoder(name, columns);
+        RecordBuffer buffer = new RecordBuffer(65536);
+        for (Row row : rows) {
+            encoder.encode(row, buffer);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Builds the import metadata of the table as loadMetadata does from
+     * metadata.json.
+     *
+     * @return metadata with compiled decoders
+     */
+    public KeyspaceImport.TableMetadata toTableMetadata() {
+        KeyspaceImport.TableMetadata metadata = new KeyspaceImport.TableMetadata(name);
+        for (int i = 0; i < names.size(); i++) {
+            metadata.getColumns().put(names.get(i), types.get(i).getName().toString());
+            metadata.getColumnOrder().add(names.get(i));
+        }
+        metadata.compileDecoders();
+        return metadata;
+    }
+
+    /**
+     * A session of the stub node, inserts into this table are prepared by
+     * the driver as on a cluster.
+     *
+     * @return session of the table's node
+     */
+    public Session getSession() {
+        return session;
+    }
+
+    @Override
+    public void close() throws IOException {
+        cluster.close();
+        node.close();
+    }
+
+    private Object value(DataType type, Random random) {
+        switch (type.getName()) {
+            case UUID:
+                return new UUID(random.nextLong(), random.nextLong());
+            case TIMEUUID:
+                return UUIDs.startOf(1500000000000L + random.nextInt(Integer.MAX_VALUE));
+            case TIMESTAMP:
+                return new Date(1500000000000L + random.nextInt(Integer.MAX_VALUE));
+            case TEXT:
+            case VARCHAR:
+                StringBuilder sb = new StringBuilder();
+                int words = 1 + random.nextInt(8);
+                for (int w = 0; w < words; w++) {
+                    if (w != 0) {
+                        sb.append(' ');
+                    }
+                    sb.append(WORDS[random.nextInt(WORDS.length)]);
+                }
+                return sb.toString();
+            case ASCII:
+                return "CODE-" + random.nextInt(100000);
+            case BIGINT:
+                return random.nextLong();
+            case INT:
+                return random.nextInt();
+            case DOUBLE:
+                return random.nextDouble() * 1000;
+            case BOOLEAN:
+                return random.nextBoolean();
+            case BLOB:
+                byte[] data = new byte[blobSize];
+                random.nextBytes(data);
+                return ByteBuffer.wrap(data);
+            default:
+                throw new IllegalArgumentException("unsupported type " + type);
+        }
+    }
+
+    private static ByteBuffer serialize(DataType type, Object value) {
+        TypeCodec<Object> codec = CodecRegistry.DEFAULT_INSTANCE.codecFor(type);
+        return codec.serialize(value, ProtocolVersion.V4);
+    }
+
+}
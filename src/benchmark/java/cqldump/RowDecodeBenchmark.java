@@ -0,0 +1,92 @@
+package cqldump;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Import side: reading the framed records of a table entry and binding
+ * them to inserts, as loadTableData and loadBinaryTableData do before the
+ * statements are sent. Scores are ns per row; run with
+ * <code>-prof gc</code> for bytes allocated per row.
+ *
+ * @author theider
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(BenchmarkTable.ROWS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowDecodeBenchmark {
+
+    // same read buffer size as the import servlet
+    private static final int BUFFER_SIZE = 32768;
+
+    @Param({"narrow", "wide", "small_blob", "large_blob"})
+    public String table;
+
+    @Param({"json", "binary"})
+    public String format;
+
+    private BenchmarkTable benchmarkTable;
+    private byte[] entry;
+    private RecordDecoder recordDecoder;
+    private PreparedStatement binaryInsert;
+    private int columnCount;
+
+    @Setup
+    public void setup() throws IOException {
+        benchmarkTable = BenchmarkTable.forName(table);
+        DumpFormat dumpFormat = DumpFormat.forName(format);
+        entry = benchmarkTable.toEntry(dumpFormat);
+        KeyspaceImport.TableMetadata metadata = benchmarkTable.toTableMetadata();
+        Session session = benchmarkTable.getSession();
+        recordDecoder = new RecordDecoder(session, Collections.singletonMap(table, metadata), BUFFER_SIZE);
+        binaryInsert = metadata.getInsertStatement(session, metadata.getColumnOrder());
+        columnCount = metadata.getColumnOrder().size();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        benchmarkTable.close();
+    }
+
+    @Benchmark
+    public void decode(Blackhole bh) throws IOException {
+        FrameReader frames = new FrameReader(new ByteArrayInputStream(entry), BUFFER_SIZE);
+        if (format.equals("json")) {
+            while (frames.next()) {
+                bh.consume(recordDecoder.decode(frames.array(), frames.offset(), frames.length()));
+            }
+        } else {
+            while (frames.nextBinary()) {
+                byte[] row = Arrays.copyOfRange(frames.array(), frames.offset(), frames.offset() + frames.length());
+                BoundStatement bprep = new BoundStatement(binaryInsert);
+                BinaryRowEncoder.bindRow(bprep, row, columnCount);
+                bh.consume(bprep);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+package cqldump;
+
+import com.datastax.driver.core.Row;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Export side: encoding driver rows into dump records, as the table
+ * exporter does for each scanned row. Scores are ns per row; run with
+ * <code>-prof gc</code> for bytes allocated per row.
+ *
+ * @author theider
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(BenchmarkTable.ROWS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowEncodeBenchmark {
+
+    // same chunk size the exporter hands to its writer
+    private static final int CHUNK_SIZE = 65536;
+
+    @Param({"narrow", "wide", "small_blob", "large_blob"})
+    public String table;
+
+    @Param({"json", "binary"})
+    public String format;
+
+    private BenchmarkTable benchmarkTable;
+    private List<Row> rows;
+    private RecordEncoder encoder;
+    private RecordBuffer buffer;
+
+    @Setup
+    public void setup() throws IOException {
+        benchmarkTable = BenchmarkTable.forName(table);
+        rows = benchmarkTable.getRows();
+        encoder = DumpFormat.forName(format).newEncoder(table, benchmarkTable.getColumns());
+        buffer = new RecordBuffer(CHUNK_SIZE);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        benchmarkTable.close();
+    }
+
+    @Benchmark
+    public int encode() {
+        int written = 0;
+        for (Row row : rows) {
+            encoder.encode(row, buffer);
+            if (buffer.length() >= CHUNK_SIZE) {
+                written += buffer.length();
+                buffer.reset();
+            }
+        }
+        return written + buffer.length();
+    }
+
+}
@@ -0,0 +1,199 @@
+package cqldump;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.BusyPoolException;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.OverloadedException;
+import com.datastax.driver.core.exceptions.ReadTimeoutException;
+import com.datastax.driver.core.exceptions.UnavailableException;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.log4j.Logger;
+
+/**
+ * Pipelines writes with executeAsync, keeping at most a fixed number of
+ * statements in flight. Callers block in {@link #submit} once the window is
+ * full, so reading the dump continues while earlier writes are pending.
+ * <p>
+ * Writes that time out or find the cluster overloaded or short of replicas
+ * are resent after a growing delay, from a scheduler thread rather than
+ * the driver's I/O thread. Any other failure is final, and once a write
+ * has failed for good {@link #submit} waits for the writes still in flight
+ * and then refuses further writes, so no write lands after the caller has
+ * given up.
+ *
+ * @author theider
+ */
+public class AsyncWriter {
+
+    private static final Logger log = Logger.getLogger(AsyncWriter.class);
+
+    // delay before the first resend, doubled for every further attempt
+    private static final long RETRY_DELAY_MILLIS = 100;
+    private static final long MAX_RETRY_DELAY_MILLIS = 5000;
+
+    // resends of all writers, the delays are short and the work is a send
+    private static final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "cqldump-write-retry");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Session session;
+    private final int windowSize;
+    private final int maxRetries;
+    private final TableMetrics tableMetrics;
+    private final Semaphore window;
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicReference<Throwable> firstError = new AtomicReference<>();
+
+    /**
+     * @param session session the writes are executed on
+     * @param windowSize maximum number of writes in flight
+     * @param maxRetries number of times a failed write is resent before it is
+     * reported as failed
+     * @param tableMetrics metrics the write latency and the time spent
+     * waiting for the window are recorded in, or null
+     */
+    public AsyncWriter(Session session, int windowSize, int maxRetries, TableMetrics tableMetrics) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("window size must be at least 1");
+        }
+        this.session = session;
+        this.windowSize = windowSize;
+        this.maxRetries = maxRetries;
+        this.tableMetrics = tableMetrics;
+        this.window = new Semaphore(windowSize);
+    }
+
+    /**
+     * Sends a statement, waiting for a free slot in the window first.
+     *
+     * @param stmt statement to execute
+     * @throws IOException if interrupted while waiting for a slot or an
+     * earlier write failed
+     */
+    public void submit(Statement stmt) throws IOException {
+        checkFailed();
+        long start = System.nanoTime();
+        try {
+            window.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting for write window", ex);
+        }
+        if (tableMetrics != null) {
+            // a full window means the writer is waiting on the cluster
+            tableMetrics.addCassandraTime(System.nanoTime() - start);
+        }
+        execute(stmt, 0);
+    }
+
+    private void execute(final Statement stmt, final int attempt) {
+        final long start = System.nanoTime();
+        ResultSetFuture future;
+        try {
+            future = session.executeAsync(stmt);
+        } catch (RuntimeException ex) {
+            failure(stmt, attempt, ex);
+            return;
+        }
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet result) {
+                if (tableMetrics != null) {
+                    tableMetrics.getRequestTimer().update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                }
+                completed.incrementAndGet();
+                window.release();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                failure(stmt, attempt, t);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void failure(Statement stmt, int attempt, Throwable t) {
+        if ((attempt < maxRetries) && isRetryable(t) && (firstError.get() == null)) {
+            retried.incrementAndGet();
+            long delay = Math.min(RETRY_DELAY_MILLIS << attempt, MAX_RETRY_DELAY_MILLIS);
+            log.debug("retrying write attempt " + (attempt + 1) + " in " + delay + " ms: " + t);
+            // the permit stays held by the retried statement
+            retryScheduler.schedule(() -> execute(stmt, attempt + 1), delay, TimeUnit.MILLISECONDS);
+            return;
+        }
+        log.error("write failed after " + (attempt + 1) + " attempts: " + t);
+        firstError.compareAndSet(null, t);
+        failed.incrementAndGet();
+        window.release();
+    }
+
+    /**
+     * @return true for failures that may pass once the cluster catches up,
+     * an invalid write fails the same way every time
+     */
+    private static boolean isRetryable(Throwable t) {
+        return (t instanceof WriteTimeoutException) || (t instanceof ReadTimeoutException)
+                || (t instanceof OperationTimedOutException) || (t instanceof OverloadedException)
+                || (t instanceof UnavailableException) || (t instanceof BusyPoolException)
+                || (t instanceof NoHostAvailableException);
+    }
+
+    private void checkFailed() throws IOException {
+        if (failed.get() > 0) {
+            // the other writes in flight complete or fail before the caller leaves
+            awaitPending();
+            throw new IOException(failed.get() + " writes failed, " + completed.get() + " completed", firstError.get());
+        }
+    }
+
+    private void awaitPending() throws IOException {
+        try {
+            window.acquire(windowSize);
+            window.release(windowSize);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting for pending writes", ex);
+        }
+    }
+
+    /**
+     * Waits until every submitted write has completed.
+     *
+     * @throws IOException if any write failed after its retries
+     */
+    public void drain() throws IOException {
+        awaitPending();
+        checkFailed();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getRetried() {
+        return retried.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+}
@@ -0,0 +1,86 @@
+package cqldump;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Row;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes rows in the binary dump format: a 32 bit row length followed by
+ * each cell as a 32 bit length (-1 for null) and the serialized cell bytes,
+ * in the column order recorded in metadata.json. All integers are big
+ * endian.
+ *
+ * @author theider
+ */
+public class BinaryRowEncoder implements RecordEncoder {
+
+    private final int columnCount;
+
+    public BinaryRowEncoder(int columnCount) {
+        this.columnCount = columnCount;
+    }
+
+    @Override
+    public void encode(Row row, RecordBuffer out) {
+        int start = out.length();
+        out.reserve(4);
+        for (int i = 0; i < columnCount; i++) {
+            ByteBuffer value = row.getBytesUnsafe(i);
+            if (value == null) {
+                writeInt(out, -1);
+            } else {
+                writeInt(out, value.remaining());
+                out.write(value.array(), value.arrayOffset() + value.position(), value.remaining());
+            }
+        }
+        putInt(out.array(), start, out.length() - start - 4);
+    }
+
+    /**
+     * Binds the serialized cells of a binary row, without copying them.
+     *
+     * @param bs statement with one bind marker per column in metadata order
+     * @param row row bytes after the row length, must not be reused while
+     * the statement is pending
+     * @param columnCount number of columns
+     * @throws IOException if the row is shorter than its cells
+     */
+    static void bindRow(BoundStatement bs, byte[] row, int columnCount) throws IOException {
+        int p = 0;
+        for (int i = 0; i < columnCount; i++) {
+            if (p + 4 > row.length) {
+                throw new IOException("truncated binary row of " + row.length + " bytes");
+            }
+            int length = getInt(row, p);
+            p += 4;
+            if (length < 0) {
+                bs.setBytesUnsafe(i, null);
+            } else {
+                if (p + length > row.length) {
+                    throw new IOException("truncated binary row of " + row.length + " bytes");
+                }
+                bs.setBytesUnsafe(i, ByteBuffer.wrap(row, p, length).slice());
+                p += length;
+            }
+        }
+    }
+
+    private static void writeInt(RecordBuffer out, int value) {
+        out.reserve(4);
+        putInt(out.array(), out.length() - 4, value);
+    }
+
+    static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    static int getInt(byte[] b, int offset) {
+        return ((b[offset] & 0xff) << 24) | ((b[offset + 1] & 0xff) << 16)
+                | ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff);
+    }
+
+}
@@ -0,0 +1,247 @@
+package cqldump;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Session;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Shared Cluster and Session cache for the export and import servlets.
+ * Connections are keyed by {@link ConnectionOptions}; a cluster nobody has
+ * leased for {@link #IDLE_TIMEOUT_MILLIS} is shut down. Servlets register
+ * in init() and release in destroy(), the last release closes everything.
+ *
+ * @author theider
+ */
+public class ClusterManager {
+
+    private static final Logger log = Logger.getLogger(ClusterManager.class);
+
+    public static final long IDLE_TIMEOUT_MILLIS = 300000;
+    private static final long EVICT_INTERVAL_MILLIS = 30000;
+
+    private static final ClusterManager instance = new ClusterManager();
+
+    private final Map<ConnectionOptions, Entry> entries = new HashMap<>();
+    private ScheduledExecutorService evictor;
+    private int registrations;
+
+    public static ClusterManager getInstance() {
+        return instance;
+    }
+
+    /**
+     * Called by each servlet on init.
+     */
+    public synchronized void register() {
+        if (registrations++ == 0) {
+            evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "cqldump-cluster-evictor");
+                t.setDaemon(true);
+                return t;
+            });
+            evictor.scheduleWithFixedDelay(this::evictIdle, EVICT_INTERVAL_MILLIS, EVICT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Called by each servlet on destroy, shuts down all clusters once no
+     * servlet is left.
+     */
+    public void release() {
+        List<Entry> closing;
+        synchronized (this) {
+            if (--registrations > 0) {
+                return;
+            }
+            registrations = 0;
+            if (evictor != null) {
+                evictor.shutdownNow();
+                evictor = null;
+            }
+            closing = new ArrayList<>(entries.values());
+            entries.clear();
+        }
+        for (Entry entry : closing) {
+            entry.close();
+        }
+    }
+
+    /**
+     * Leases the shared cluster for the options, creating and initializing
+     * it on first use. If initializing fails, every caller leasing the same
+     * cluster gets the failure, and the last of them closes the cluster.
+     *
+     * @param options connection settings
+     * @return lease that must be closed when the caller is done
+     */
+    public Lease acquire(ConnectionOptions options) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(options);
+            if (entry == null) {
+                entry = new Entry(options);
+                entries.put(options, entry);
+            }
+            entry.leases++;
+        }
+        try {
+            entry.init();
+        } catch (RuntimeException ex) {
+            boolean unused;
+            synchronized (this) {
+                entry.leases--;
+                // the next acquire starts over with a new cluster
+                if (entries.get(options) == entry) {
+                    entries.remove(options);
+                }
+                unused = entry.leases == 0;
+            }
+            // other callers may still be waiting in init
+            if (unused) {
+                entry.close();
+            }
+            throw ex;
+        }
+        return new Lease(entry);
+    }
+
+    /**
+     * Snapshot of the shared clusters and their open sessions, for status
+     * reporting.
+     *
+     * @return sessions by cluster
+     */
+    public Map<Cluster, List<Session>> getSessions() {
+        List<Entry> current;
+        synchronized (this) {
+            current = new ArrayList<>(entries.values());
+        }
+        Map<Cluster, List<Session>> result = new LinkedHashMap<>();
+        for (Entry entry : current) {
+            result.put(entry.cluster, entry.getSessions());
+        }
+        return result;
+    }
+
+    private void evictIdle() {
+        List<Entry> closing = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+                Entry entry = it.next();
+                if ((entry.leases == 0) && (now - entry.lastUsed > IDLE_TIMEOUT_MILLIS)) {
+                    it.remove();
+                    closing.add(entry);
+                }
+            }
+        }
+        for (Entry entry : closing) {
+            log.info("closing idle cluster connection " + entry.options);
+            entry.close();
+        }
+    }
+
+    private void returned(Entry entry) {
+        synchronized (this) {
+            entry.leases--;
+            entry.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    private static class Entry {
+        private final ConnectionOptions options;
+        private final Cluster cluster;
+        // sessions by keyspace, the empty name is the session without one
+        private final Map<String, Session> sessions = new HashMap<>();
+        private int leases;
+        private long lastUsed = System.currentTimeMillis();
+        private boolean initialized;
+        // first init failure, reported to every caller of the entry
+        private RuntimeException initFailure;
+
+        Entry(ConnectionOptions options) {
+            this.options = options;
+            this.cluster = options.buildCluster();
+        }
+
+        synchronized void init() {
+            if (initFailure != null) {
+                throw initFailure;
+            }
+            if (!initialized) {
+                try {
+                    cluster.init();
+                } catch (RuntimeException ex) {
+                    initFailure = ex;
+                    throw ex;
+                }
+                initialized = true;
+            }
+        }
+
+        synchronized Session getSession(String keyspaceName) {
+            String key = (keyspaceName == null) ? "" : keyspaceName;
+            Session session = sessions.get(key);
+            if (session == null) {
+                session = (keyspaceName == null) ? cluster.connect() : cluster.connect(keyspaceName);
+                sessions.put(key, session);
+            }
+            return session;
+        }
+
+        synchronized List<Session> getSessions() {
+            return new ArrayList<>(sessions.values());
+        }
+
+        void close() {
+            try {
+                cluster.close();
+            } catch (RuntimeException ex) {
+                log.warn("failed to close cluster " + options, ex);
+            }
+        }
+    }
+
+    /**
+     * Use of a shared cluster by one request. Sessions obtained from the
+     * lease are shared and must not be closed by the caller.
+     */
+    public class Lease implements AutoCloseable {
+        private final Entry entry;
+        private boolean closed;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        public Cluster getCluster() {
+            return entry.cluster;
+        }
+
+        /**
+         * @param keyspaceName keyspace the session is bound to, or null
+         * @return shared session
+         */
+        public Session getSession(String keyspaceName) {
+            return entry.getSession(keyspaceName);
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                returned(entry);
+            }
+        }
+    }
+
+}
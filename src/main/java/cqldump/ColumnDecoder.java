@@ -0,0 +1,231 @@
+package cqldump;
+
+import com.datastax.driver.core.BoundStatement;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.UUID;
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Converts the text of one dumped cell into a bound value. Decoders are
+ * chosen once per column from the type name recorded in metadata.json and
+ * read the unescaped UTF-8 value bytes directly.
+ *
+ * @author theider
+ */
+public abstract class ColumnDecoder {
+
+    private static final byte[] BASE64_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(BASE64_VALUES, (byte) -1);
+        byte[] alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+        for (int i = 0; i < alphabet.length; i++) {
+            BASE64_VALUES[alphabet[i]] = (byte) i;
+        }
+    }
+
+    /**
+     * Binds a non-null value.
+     *
+     * @param bs statement being bound
+     * @param index bind marker index
+     * @param b buffer holding the value text
+     * @param offset start of the value text
+     * @param length length of the value text
+     * @throws IOException if the text is not a valid value of the type
+     */
+    public abstract void bind(BoundStatement bs, int index, byte[] b, int offset, int length) throws IOException;
+
+    /**
+     * Returns the decoder for a column type name as written by export.
+     *
+     * @param colType CQL type name
+     * @return decoder for the type
+     */
+    public static ColumnDecoder forType(String colType) {
+        if (colType == null) {
+            return TEXT;
+        }
+        switch (colType) {
+            case "timestamp":
+                return TIMESTAMP;
+            case "blob":
+                return BLOB;
+            case "double":
+                return DOUBLE;
+            case "bigint":
+                return BIGINT;
+            case "boolean":
+                return BOOLEAN;
+            case "int":
+                return INT;
+            case "timeuuid":
+            case "uuid":
+                return UUID_DECODER;
+            default:
+                return TEXT;
+        }
+    }
+
+    static final ColumnDecoder TIMESTAMP = new ColumnDecoder() {
+        @Override
+        public void bind(BoundStatement bs, int index, byte[] b, int offset, int length) throws IOException {
+            bs.setTimestamp(index, new Date(Timestamps.parse(b, offset, length)));
+        }
+    };
+
+    static final ColumnDecoder BLOB = new ColumnDecoder() {
+        @Override
+        public void bind(BoundStatement bs, int index, byte[] b, int offset, int length) {
+            bs.setBytes(index, ByteBuffer.wrap(decodeBase64(b, offset, length)));
+        }
+    };
+
+    static final ColumnDecoder DOUBLE = new ColumnDecoder() {
+        @Override
+        public void bind(BoundStatement bs, int index, byte[] b, int offset, int length) throws IOException {
+            bs.setDouble(index, Double.parseDouble(text(b, offset, length)));
+        }
+    };
+
+    static final ColumnDecoder BIGINT = new ColumnDecoder() {
+        @Override
+        public void bind(BoundStatement bs, int index, byte[] b, int offset, int length) throws IOException {
+            bs.setLong(index, parseLong(b, offset, length));
+        }
+    };
+
+    static final ColumnDecoder BOOLEAN = new ColumnDecoder() {
+        @Override
+        public void bind(BoundStatement bs, int index, byte[] b, int offset, int length) {
+            // Boolean.parseBoolean semantics
+            boolean value = (length == 4)
+                    && ((b[offset] | 0x20) == 't') && ((b[offset + 1] | 0x20) == 'r')
+                    && ((b[offset + 2] | 0x20) == 'u') && ((b[offset + 3] | 0x20) == 'e');
+            bs.setBool(index, value);
+        }
+    };
+
+    static final ColumnDecoder INT = new ColumnDecoder() {
+        @Override
+        public void bind(BoundStatement bs, int index, byte[] b, int offset, int length) throws IOException {
+            long value = parseLong(b, offset, length);
+            if ((value < Integer.MIN_VALUE) || (value > Integer.MAX_VALUE)) {
+                throw new IOException("int value out of range: " + value);
+            }
+            bs.setInt(index, (int) value);
+        }
+    };
+
+    static final ColumnDecoder UUID_DECODER = new ColumnDecoder() {
+        @Override
+        public void bind(BoundStatement bs, int index, byte[] b, int offset, int length) throws IOException {
+            bs.setUUID(index, parseUUID(b, offset, length));
+        }
+    };
+
+    static final ColumnDecoder TEXT = new ColumnDecoder() {
+        @Override
+        public void bind(BoundStatement bs, int index, byte[] b, int offset, int length) {
+            bs.setString(index, text(b, offset, length));
+        }
+    };
+
+    static String text(byte[] b, int offset, int length) {
+        return new String(b, offset, length, StandardCharsets.UTF_8);
+    }
+
+    static long parseLong(byte[] b, int offset, int length) throws IOException {
+        int end = offset + length;
+        int i = offset;
+        boolean negative = false;
+        if ((i < end) && ((b[i] == '-') || (b[i] == '+'))) {
+            negative = b[i] == '-';
+            i++;
+        }
+        if ((i == end) || (end - i > 18)) {
+            // empty, or long enough to overflow, leave it to the JDK
+            try {
+                return Long.parseLong(text(b, offset, length));
+            } catch (NumberFormatException ex) {
+                throw new IOException("invalid number " + text(b, offset, length), ex);
+            }
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int d = b[i] - '0';
+            if ((d < 0) || (d > 9)) {
+                throw new IOException("invalid number " + text(b, offset, length));
+            }
+            value = value * 10 + d;
+        }
+        return negative ? -value : value;
+    }
+
+    static UUID parseUUID(byte[] b, int offset, int length) throws IOException {
+        if ((length != 36) || (b[offset + 8] != '-') || (b[offset + 13] != '-')
+                || (b[offset + 18] != '-') || (b[offset + 23] != '-')) {
+            try {
+                return UUID.fromString(text(b, offset, length));
+            } catch (IllegalArgumentException ex) {
+                throw new IOException("invalid uuid " + text(b, offset, length), ex);
+            }
+        }
+        long msb = 0;
+        long lsb = 0;
+        for (int i = 0; i < 36; i++) {
+            if ((i == 8) || (i == 13) || (i == 18) || (i == 23)) {
+                continue;
+            }
+            int d = Character.digit(b[offset + i], 16);
+            if (d < 0) {
+                throw new IOException("invalid uuid " + text(b, offset, length));
+            }
+            if (i < 19) {
+                msb = (msb << 4) | d;
+            } else {
+                lsb = (lsb << 4) | d;
+            }
+        }
+        return new UUID(msb, lsb);
+    }
+
+    static byte[] decodeBase64(byte[] b, int offset, int length) {
+        int end = offset + length;
+        while ((end > offset) && (b[end - 1] == '=')) {
+            end--;
+        }
+        int count = end - offset;
+        if ((count % 4) == 1) {
+            return Base64.decodeBase64(Arrays.copyOfRange(b, offset, offset + length));
+        }
+        byte[] data = new byte[(count * 3) / 4];
+        int bits = 0;
+        int buffered = 0;
+        int p = 0;
+        for (int i = offset; i < end; i++) {
+            int c = b[i];
+            int v = (c >= 0) ? BASE64_VALUES[c] : -1;
+            if (v < 0) {
+                // not plain base64, let commons-codec skip what it ignores
+                return Base64.decodeBase64(Arrays.copyOfRange(b, offset, offset + length));
+            }
+            bits = (bits << 6) | v;
+            buffered += 6;
+            if (buffered >= 8) {
+                buffered -= 8;
+                data[p++] = (byte) (bits >> buffered);
+            }
+        }
+        if ((bits & ((1 << buffered) - 1)) != 0) {
+            // commons-codec rejects trailing bits that are not zero
+            return Base64.decodeBase64(Arrays.copyOfRange(b, offset, offset + length));
+        }
+        return data;
+    }
+
+}
@@ -0,0 +1,225 @@
+package cqldump;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.PoolingOptions;
+import com.datastax.driver.core.QueryOptions;
+import com.datastax.driver.core.SocketOptions;
+import com.datastax.driver.core.policies.DCAwareRoundRobinPolicy;
+import com.datastax.driver.core.policies.DefaultRetryPolicy;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.datastax.driver.core.policies.TokenAwarePolicy;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * Settings a shared cluster connection is built from. Instances are used as
+ * cache keys, so requests with equal options share one Cluster.
+ * <p>
+ * With a local datacenter only the hosts of that datacenter coordinate
+ * requests, so a dump can run against an analytics datacenter without
+ * touching the others. Token routing, the default, sends statements with
+ * a partition key and token range scans to a replica; round robin spreads
+ * them over all hosts of the datacenter. The consistency level applies to
+ * the reads of an export and the writes of an import.
+ *
+ * @author theider
+ */
+public class ConnectionOptions {
+
+    private static final int READ_TIMEOUT_MILLIS = 60000;
+
+    private final String host;
+    private final int port;
+    // pooling settings, 0 keeps the driver default
+    private final int connectionsPerHost;
+    private final int maxRequestsPerConnection;
+    // datacenter whose hosts coordinate, null for the driver default
+    private final String localDc;
+    private final boolean tokenAware;
+    // null keeps the driver default
+    private final ConsistencyLevel consistency;
+
+    public ConnectionOptions(String host, int port) {
+        this(host, port, 0, 0, null, true, null);
+    }
+
+    /**
+     * @param host contact point
+     * @param port native transport port
+     * @param connectionsPerHost connections to each host, 0 for the driver
+     * default
+     * @param maxRequestsPerConnection requests in flight on a connection, 0
+     * for the driver default
+     * @param localDc datacenter whose hosts coordinate, null or empty for
+     * the driver default
+     * @param tokenAware send requests to a replica of their data
+     * @param consistency consistency level of reads and writes, null for
+     * the driver default
+     */
+    public ConnectionOptions(String host, int port, int connectionsPerHost, int maxRequestsPerConnection, String localDc, boolean tokenAware, ConsistencyLevel consistency) {
+        if ((connectionsPerHost < 0) || (maxRequestsPerConnection < 0)) {
+            throw new IllegalArgumentException("connections and requests per host cannot be negative");
+        }
+        if ((consistency != null) && consistency.isSerial()) {
+            throw new IllegalArgumentException("serial consistency " + consistency + " cannot be used for reads and writes");
+        }
+        this.host = host;
+        this.port = port;
+        this.connectionsPerHost = connectionsPerHost;
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+        this.localDc = ((localDc == null) || localDc.isEmpty()) ? null : localDc;
+        this.tokenAware = tokenAware;
+        this.consistency = consistency;
+    }
+
+    /**
+     * Builds the options of a request from its host, port, dc, routing,
+     * consistency, connections and maxrequests parameters.
+     *
+     * @param host contact point
+     * @param port native transport port
+     * @param dcText local datacenter, empty or null for the driver default
+     * @param routingText token (default) or roundrobin
+     * @param consistencyText consistency level such as LOCAL_ONE, empty or
+     * null for the driver default
+     * @param connectionsText connections to each host, empty or null for the
+     * driver default
+     * @param maxRequestsText requests in flight to each host, empty or null
+     * for the driver default
+     * @return connection options
+     * @throws IllegalArgumentException if a value is not valid
+     */
+    public static ConnectionOptions forParameters(String host, int port, String dcText, String routingText, String consistencyText, String connectionsText, String maxRequestsText) {
+        if( (routingText == null) || routingText.isEmpty() ) {
+            routingText = "token";
+        }
+        boolean tokenAware;
+        if (routingText.equals("token")) {
+            tokenAware = true;
+        } else if (routingText.equals("roundrobin")) {
+            tokenAware = false;
+        } else {
+            throw new IllegalArgumentException("unknown routing " + routingText);
+        }
+        ConsistencyLevel consistency = null;
+        if( (consistencyText != null) && !consistencyText.isEmpty() ) {
+            try {
+                consistency = ConsistencyLevel.valueOf(consistencyText.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException("unknown consistency level " + consistencyText);
+            }
+        }
+        if( (connectionsText == null) || connectionsText.isEmpty() ) {
+            connectionsText = "0";
+        }
+        if( (maxRequestsText == null) || maxRequestsText.isEmpty() ) {
+            maxRequestsText = "0";
+        }
+        int connections = Integer.parseInt(connectionsText);
+        int maxRequests = Integer.parseInt(maxRequestsText);
+        if ((connections < 0) || (maxRequests < 0)) {
+            throw new IllegalArgumentException("connections and requests per host cannot be negative");
+        }
+        // the cap per host is shared by its connections, one by default
+        int perConnection = (maxRequests == 0) ? 0 : (maxRequests + Math.max(1, connections) - 1) / Math.max(1, connections);
+        return new ConnectionOptions(host, port, connections, perConnection, (dcText == null) ? null : dcText.trim(), tokenAware, consistency);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getConnectionsPerHost() {
+        return connectionsPerHost;
+    }
+
+    public int getMaxRequestsPerConnection() {
+        return maxRequestsPerConnection;
+    }
+
+    public String getLocalDc() {
+        return localDc;
+    }
+
+    public boolean isTokenAware() {
+        return tokenAware;
+    }
+
+    public ConsistencyLevel getConsistency() {
+        return consistency;
+    }
+
+    /**
+     * Builds a new, not yet initialized cluster for these options.
+     *
+     * @return cluster instance
+     */
+    public Cluster buildCluster() {
+        PoolingOptions poolingOptions = new PoolingOptions();
+        if (connectionsPerHost > 0) {
+            poolingOptions.setConnectionsPerHost(HostDistance.LOCAL, connectionsPerHost, connectionsPerHost);
+            poolingOptions.setConnectionsPerHost(HostDistance.REMOTE, connectionsPerHost, connectionsPerHost);
+        }
+        if (maxRequestsPerConnection > 0) {
+            poolingOptions.setMaxRequestsPerConnection(HostDistance.LOCAL, maxRequestsPerConnection);
+            poolingOptions.setMaxRequestsPerConnection(HostDistance.REMOTE, maxRequestsPerConnection);
+            // requests over the cap wait for a slot instead of failing
+            poolingOptions.setPoolTimeoutMillis(READ_TIMEOUT_MILLIS);
+        }
+        DCAwareRoundRobinPolicy.Builder dcPolicy = DCAwareRoundRobinPolicy.builder();
+        if (localDc != null) {
+            dcPolicy.withLocalDc(localDc);
+        }
+        LoadBalancingPolicy loadBalancingPolicy = dcPolicy.build();
+        if (tokenAware) {
+            loadBalancingPolicy = new RangeRoutingPolicy(new TokenAwarePolicy(loadBalancingPolicy));
+        }
+        QueryOptions queryOptions = new QueryOptions();
+        if (consistency != null) {
+            queryOptions.setConsistencyLevel(consistency);
+        }
+        return Cluster.builder()
+                .addContactPoint(host)
+                .withRetryPolicy(DefaultRetryPolicy.INSTANCE)
+                .withPort(port)
+                .withPoolingOptions(poolingOptions)
+                .withLoadBalancingPolicy(loadBalancingPolicy)
+                .withQueryOptions(queryOptions)
+                .withSocketOptions(new SocketOptions().setReadTimeoutMillis(READ_TIMEOUT_MILLIS))
+                .build();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ConnectionOptions)) {
+            return false;
+        }
+        ConnectionOptions other = (ConnectionOptions) o;
+        return (port == other.port) && host.equals(other.host)
+                && (connectionsPerHost == other.connectionsPerHost)
+                && (maxRequestsPerConnection == other.maxRequestsPerConnection)
+                && Objects.equals(localDc, other.localDc)
+                && (tokenAware == other.tokenAware)
+                && (consistency == other.consistency);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(host, port, connectionsPerHost, maxRequestsPerConnection, localDc, tokenAware, consistency);
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port + ((localDc == null) ? "" : " dc " + localDc);
+    }
+
+}
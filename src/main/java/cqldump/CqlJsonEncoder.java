@@ -0,0 +1,27 @@
+package cqldump;
+
+import com.datastax.driver.core.Row;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes rows of a <code>SELECT JSON</code> query in the cqljson dump
+ * format: the JSON object Cassandra returns for the row, copied as UTF-8
+ * bytes without decoding, framed like a JSON record. The records are
+ * imported with <code>INSERT INTO table JSON ?</code>, so all value
+ * conversion happens on the cluster.
+ *
+ * @author theider
+ */
+public class CqlJsonEncoder implements RecordEncoder {
+
+    @Override
+    public void encode(Row row, RecordBuffer out) {
+        int start = out.length();
+        out.reserve(RowEncoder.FRAME_HEADER_SIZE);
+        // the single [json] column
+        ByteBuffer value = row.getBytesUnsafe(0);
+        out.write(value.array(), value.arrayOffset() + value.position(), value.remaining());
+        RowEncoder.writeFrameHeader(out.array(), start, out.length() - start - RowEncoder.FRAME_HEADER_SIZE);
+    }
+
+}
@@ -0,0 +1,194 @@
+package cqldump;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import net.jpountz.lz4.LZ4BlockInputStream;
+import net.jpountz.lz4.LZ4BlockOutputStream;
+
+/**
+ * How table entries are compressed in a dump. Entries are packed from the
+ * table's spool file before they are added to the zip, so compression runs
+ * on the table threads rather than on the thread writing the response. The
+ * compression name is recorded in metadata.json; import reads every kind,
+ * deflated entries are ordinary zip entries and LZ4 entries are recognised
+ * by their suffix.
+ *
+ * @author theider
+ */
+public enum DumpCompression {
+
+    /**
+     * Entries are stored without compression.
+     */
+    STORED("stored", ""),
+    /**
+     * Entries are deflated on one thread, the default.
+     */
+    DEFLATE("deflate", ""),
+    /**
+     * Entries are deflated in blocks on all cores. The result is a single
+     * ordinary deflate stream that any unzip can read.
+     */
+    PARALLEL("parallel", ""),
+    /**
+     * Entries are stored LZ4 block streams, much faster than deflate at a
+     * lower ratio.
+     */
+    LZ4("lz4", ".lz4");
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final String name;
+    private final String suffix;
+
+    private DumpCompression(String name, String suffix) {
+        this.name = name;
+        this.suffix = suffix;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return suffix appended to the entry names of table data
+     */
+    public String getEntrySuffix() {
+        return suffix;
+    }
+
+    /**
+     * Packs a spool file into the content of a zip entry.
+     *
+     * @param spool spool file with the table records
+     * @param directory directory for the packed file
+     * @param level deflate level
+     * @param compressPool pool used by parallel deflate
+     * @return entry content, the spool itself for stored entries
+     * @throws IOException if the spool cannot be read or packed
+     */
+    public ZipWriter.EntryData pack(File spool, File directory, int level, ExecutorService compressPool) throws IOException {
+        if (this == STORED) {
+            CRC32 crc = new CRC32();
+            try (InputStream in = new CheckedInputStream(new FileInputStream(spool), crc)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (in.read(buffer) >= 0) {
+                    // checksum only
+                }
+            }
+            return new ZipWriter.EntryData(ZipEntry.STORED, crc.getValue(), spool.length(), spool, false);
+        }
+        File packed = File.createTempFile(spool.getName() + "-", ".packed", directory);
+        try {
+            if (this == LZ4) {
+                // the LZ4 stream is stored, its checksum is over the packed bytes
+                CRC32 crc = new CRC32();
+                try (InputStream in = new FileInputStream(spool);
+                        OutputStream out = new LZ4BlockOutputStream(new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(packed), BUFFER_SIZE), crc), BUFFER_SIZE)) {
+                    copy(in, out);
+                }
+                return new ZipWriter.EntryData(ZipEntry.STORED, crc.getValue(), packed.length(), packed, true);
+            }
+            CRC32 crc = new CRC32();
+            try (InputStream in = new CheckedInputStream(new BufferedInputStream(new FileInputStream(spool), BUFFER_SIZE), crc);
+                    OutputStream out = new BufferedOutputStream(new FileOutputStream(packed), BUFFER_SIZE)) {
+                if (this == PARALLEL) {
+                    new ParallelDeflater(level, compressPool).deflate(in, out);
+                } else {
+                    Deflater deflater = new Deflater(level, true);
+                    try {
+                        DeflaterOutputStream dout = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+                        copy(in, dout);
+                        dout.finish();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            }
+            return new ZipWriter.EntryData(ZipEntry.DEFLATED, crc.getValue(), spool.length(), packed, true);
+        } catch (IOException | RuntimeException ex) {
+            if (!packed.delete()) {
+                packed.deleteOnExit();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Wraps the zip entry stream of a table entry of this compression.
+     *
+     * @param in zip entry stream
+     * @return stream of the table records
+     */
+    public InputStream newEntryInputStream(InputStream in) {
+        if (this == LZ4) {
+            return new LZ4BlockInputStream(in);
+        }
+        return in;
+    }
+
+    /**
+     * @param entryName zip entry name
+     * @return entry name without the compression suffix
+     */
+    public String stripEntrySuffix(String entryName) {
+        if (!suffix.isEmpty() && entryName.endsWith(suffix)) {
+            return entryName.substring(0, entryName.length() - suffix.length());
+        }
+        return entryName;
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int r;
+        while ((r = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, r);
+        }
+    }
+
+    /**
+     * Detects how a table entry was packed from its name. Deflated and
+     * stored entries are told apart by the zip itself.
+     *
+     * @param entryName zip entry name
+     * @return LZ4 for LZ4 entries, otherwise DEFLATE
+     */
+    public static DumpCompression forEntryName(String entryName) {
+        if (entryName.endsWith(LZ4.suffix)) {
+            return LZ4;
+        }
+        return DEFLATE;
+    }
+
+    /**
+     * Looks up a compression by the name used in requests and metadata.json.
+     *
+     * @param name compression name, null for the default
+     * @return dump compression
+     */
+    public static DumpCompression forName(String name) {
+        if ((name == null) || name.isEmpty()) {
+            return DEFLATE;
+        }
+        for (DumpCompression compression : values()) {
+            if (compression.name.equals(name)) {
+                return compression;
+            }
+        }
+        throw new IllegalArgumentException("unknown compression " + name);
+    }
+
+}
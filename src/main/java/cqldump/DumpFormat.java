@@ -0,0 +1,145 @@
+package cqldump;
+
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.TableMetadata;
+import java.util.List;
+
+/**
+ * Layout of the table entries in a dump. The format name is recorded in
+ * metadata.json; dumps without one are JSON.
+ *
+ * @author theider
+ */
+public enum DumpFormat {
+
+    /**
+     * Framed JSON records with values in text form, the default.
+     */
+    JSON("json", ".json"),
+    /**
+     * Serialized cell bytes as returned by the driver, for migrations
+     * between clusters of the same version.
+     */
+    BINARY("binary", ".bin"),
+    /**
+     * Rows as returned by <code>SELECT JSON</code> and imported with
+     * <code>INSERT JSON</code>, values are converted by the cluster. Import
+     * needs Cassandra 3.10 or later.
+     */
+    CQLJSON("cqljson", ".cqljson");
+
+    private final String name;
+    private final String extension;
+
+    private DumpFormat(String name, String extension) {
+        this.name = name;
+        this.extension = extension;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getEntryName(String keyspaceName, String tableName) {
+        return keyspaceName + "/" + tableName + extension;
+    }
+
+    /**
+     * Column list used in the export SELECT. Binary rows carry no column
+     * names, so they are read in the order recorded in metadata.json.
+     *
+     * @param tmd exported table
+     * @return select list
+     */
+    public String getSelectList(TableMetadata tmd) {
+        if (this == JSON) {
+            return "*";
+        }
+        if (this == CQLJSON) {
+            return "JSON *";
+        }
+        return getSelectList(tmd.getColumns());
+    }
+
+    /**
+     * @param columns exported columns
+     * @return select list naming the columns
+     */
+    public String getSelectList(List<ColumnMetadata> columns) {
+        StringBuilder sb = new StringBuilder();
+        for (ColumnMetadata cmd : columns) {
+            if (sb.length() != 0) {
+                sb.append(',');
+            }
+            sb.append(Metadata.quoteIfNecessary(cmd.getName()));
+        }
+        return (this == CQLJSON) ? "JSON " + sb : sb.toString();
+    }
+
+    /**
+     * @return bytes of framing an encoder writes before the record
+     */
+    public int getFrameHeaderSize() {
+        return (this == BINARY) ? 4 : RowEncoder.FRAME_HEADER_SIZE;
+    }
+
+    public RecordEncoder newEncoder(String tableName, ColumnDefinitions definitions) {
+        if (this == JSON) {
+            return RowEncoder.forColumns(tableName, definitions);
+        }
+        if (this == CQLJSON) {
+            return new CqlJsonEncoder();
+        }
+        return new BinaryRowEncoder(definitions.size());
+    }
+
+    /**
+     * Detects the format of a table entry from its name.
+     *
+     * @param entryName zip entry name
+     * @return dump format of the entry
+     */
+    public static DumpFormat forEntryName(String entryName) {
+        // .cqljson also ends with .json, the longest match wins
+        DumpFormat match = JSON;
+        for (DumpFormat format : values()) {
+            if (entryName.endsWith(format.extension) && (format.extension.length() > match.extension.length())) {
+                match = format;
+            }
+        }
+        return match;
+    }
+
+    /**
+     * Table name of a table entry.
+     *
+     * @param entryName zip entry name
+     * @return table name
+     */
+    public static String getTableName(String entryName) {
+        String name = entryName.substring(entryName.lastIndexOf('/') + 1);
+        int dot = name.lastIndexOf('.');
+        return (dot < 0) ? name : name.substring(0, dot);
+    }
+
+    /**
+     * Looks up a format by the name used in requests and metadata.json.
+     *
+     * @param name format name, null for the default
+     * @return dump format
+     */
+    public static DumpFormat forName(String name) {
+        if ((name == null) || name.isEmpty()) {
+            return JSON;
+        }
+        for (DumpFormat format : values()) {
+            if (format.name.equals(name)) {
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("unknown dump format " + name);
+    }
+
+}
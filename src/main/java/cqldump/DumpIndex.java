@@ -0,0 +1,182 @@
+package cqldump;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Index of the table entries of a dump, written as the index entry after
+ * them: entry name, rows, uncompressed and compressed size of every table,
+ * and the start of a row block about every {@link #BLOCK_ROWS} rows. Block
+ * offsets count bytes of the uncompressed entry and always fall on a record
+ * boundary, so an import can skip to a block and read whole records from
+ * there. In a stored entry the skip is a seek; compressed entries are
+ * unpacked up to the block but not decoded.
+ *
+ * @author theider
+ */
+public class DumpIndex {
+
+    public static final long BLOCK_ROWS = 10000;
+
+    /**
+     * Index of one table entry.
+     */
+    public static class TableIndex {
+        private final String tableName;
+        private final List<long[]> blocks = new ArrayList<>();
+        private String entryName;
+        private long rows;
+        private long bytes;
+        private long compressedBytes;
+
+        public TableIndex(String tableName) {
+            this.tableName = tableName;
+            blocks.add(new long[]{0, 0});
+        }
+
+        /**
+         * Called before records are appended to the entry, starts a block
+         * there once the current block holds enough rows.
+         *
+         * @param row rows already in the entry
+         * @param offset bytes already in the entry
+         */
+        public void mark(long row, long offset) {
+            if (row - blocks.get(blocks.size() - 1)[0] >= BLOCK_ROWS) {
+                blocks.add(new long[]{row, offset});
+            }
+        }
+
+        public String getTableName() {
+            return tableName;
+        }
+
+        public String getEntryName() {
+            return entryName;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getCompressedBytes() {
+            return compressedBytes;
+        }
+
+        /**
+         * Completes the index once the entry is written.
+         *
+         * @param entryName name of the entry in the dump
+         * @param rows rows in the entry
+         * @param bytes uncompressed size of the entry
+         * @param compressedBytes size of the entry in the zip
+         */
+        public void setEntry(String entryName, long rows, long bytes, long compressedBytes) {
+            this.entryName = entryName;
+            this.rows = rows;
+            this.bytes = bytes;
+            this.compressedBytes = compressedBytes;
+        }
+
+        public int getBlockCount() {
+            return blocks.size();
+        }
+
+        public long getBlockRow(int block) {
+            return blocks.get(block)[0];
+        }
+
+        public long getBlockOffset(int block) {
+            return blocks.get(block)[1];
+        }
+
+        /**
+         * @param block block number
+         * @return offset after the last record of the block
+         */
+        public long getBlockEnd(int block) {
+            return (block + 1 < blocks.size()) ? blocks.get(block + 1)[1] : bytes;
+        }
+
+        public JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("entry", entryName);
+            json.put("rows", rows);
+            json.put("bytes", bytes);
+            json.put("compressed_bytes", compressedBytes);
+            JSONArray blocksJson = new JSONArray();
+            for (long[] block : blocks) {
+                JSONArray blockJson = new JSONArray();
+                blockJson.add(block[0]);
+                blockJson.add(block[1]);
+                blocksJson.add(blockJson);
+            }
+            json.put("blocks", blocksJson);
+            return json;
+        }
+
+        static TableIndex fromJSON(String tableName, JSONObject json) {
+            TableIndex index = new TableIndex(tableName);
+            index.blocks.clear();
+            for (Object block : (JSONArray) json.get("blocks")) {
+                JSONArray blockJson = (JSONArray) block;
+                index.blocks.add(new long[]{((Number) blockJson.get(0)).longValue(), ((Number) blockJson.get(1)).longValue()});
+            }
+            index.setEntry((String) json.get("entry"), ((Number) json.get("rows")).longValue(),
+                    ((Number) json.get("bytes")).longValue(), ((Number) json.get("compressed_bytes")).longValue());
+            return index;
+        }
+    }
+
+    private final Map<String, TableIndex> tables = new LinkedHashMap<>();
+
+    public void add(TableIndex table) {
+        tables.put(table.getTableName(), table);
+    }
+
+    /**
+     * @param tableName table name
+     * @return index of the table's entry, null if the dump has none
+     */
+    public TableIndex getTable(String tableName) {
+        return tables.get(tableName);
+    }
+
+    public Collection<TableIndex> getTables() {
+        return tables.values();
+    }
+
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("block_rows", BLOCK_ROWS);
+        JSONObject tablesJson = new JSONObject();
+        for (TableIndex table : tables.values()) {
+            tablesJson.put(table.getTableName(), table.toJSON());
+        }
+        json.put("tables", tablesJson);
+        return json;
+    }
+
+    /**
+     * @param json content of the index entry
+     * @return the index
+     */
+    public static DumpIndex fromJSON(JSONObject json) {
+        DumpIndex index = new DumpIndex();
+        JSONObject tablesJson = (JSONObject) json.get("tables");
+        for (Object tableName : tablesJson.keySet()) {
+            index.add(TableIndex.fromJSON((String) tableName, (JSONObject) tablesJson.get(tableName)));
+        }
+        return index;
+    }
+
+}
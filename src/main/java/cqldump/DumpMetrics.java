@@ -0,0 +1,173 @@
+package cqldump;
+
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.Metrics;
+import com.datastax.driver.core.Session;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Registry of the export and import job metrics. Running jobs and the last
+ * {@link #FINISHED_JOB_HISTORY} finished ones are reported by the status
+ * servlet together with the driver metrics of the shared clusters, and all
+ * job metrics are published over JMX in the <code>cqldump</code> domain
+ * while a servlet is registered.
+ *
+ * @author theider
+ */
+public class DumpMetrics {
+
+    static final int FINISHED_JOB_HISTORY = 20;
+
+    private static final DumpMetrics instance = new DumpMetrics();
+
+    private final MetricRegistry registry = new MetricRegistry();
+    private final AtomicLong jobSequence = new AtomicLong();
+    private final List<JobMetrics> running = new ArrayList<>();
+    private final Deque<JobMetrics> finished = new ArrayDeque<>();
+    private JmxReporter reporter;
+    private int registrations;
+
+    public static DumpMetrics getInstance() {
+        return instance;
+    }
+
+    public MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Called by each servlet on init.
+     */
+    public synchronized void register() {
+        if (registrations++ == 0) {
+            reporter = JmxReporter.forRegistry(registry).inDomain("cqldump").build();
+            reporter.start();
+        }
+    }
+
+    /**
+     * Called by each servlet on destroy, stops the JMX reporter once no
+     * servlet is left.
+     */
+    public synchronized void release() {
+        if (--registrations > 0) {
+            return;
+        }
+        registrations = 0;
+        if (reporter != null) {
+            reporter.stop();
+            reporter = null;
+        }
+    }
+
+    /**
+     * Starts tracking a job.
+     *
+     * @param type export or import
+     * @param keyspaceName keyspace of the job
+     * @return job metrics, {@link JobMetrics#finish} must be called at the end
+     */
+    public JobMetrics startJob(String type, String keyspaceName) {
+        JobMetrics job = new JobMetrics(registry, type + "-" + jobSequence.incrementAndGet(), type, keyspaceName);
+        synchronized (this) {
+            running.add(job);
+        }
+        return job;
+    }
+
+    synchronized void finished(JobMetrics job) {
+        if (!running.remove(job)) {
+            return;
+        }
+        finished.addFirst(job);
+        while (finished.size() > FINISHED_JOB_HISTORY) {
+            String prefix = finished.removeLast().getPrefix() + ".";
+            registry.removeMatching((name, metric) -> name.startsWith(prefix));
+        }
+    }
+
+    /**
+     * @param id job id
+     * @return running or recently finished job, or null
+     */
+    public synchronized JobMetrics getJob(String id) {
+        for (JobMetrics job : running) {
+            if (job.getId().equals(id)) {
+                return job;
+            }
+        }
+        for (JobMetrics job : finished) {
+            if (job.getId().equals(id)) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return jobs, clusters and driver metrics as reported by the status
+     * servlet
+     */
+    public JSONObject toJSON() {
+        List<JobMetrics> jobs;
+        synchronized (this) {
+            jobs = new ArrayList<>(running);
+            jobs.addAll(finished);
+        }
+        JSONObject json = new JSONObject();
+        JSONArray jobArray = new JSONArray();
+        for (JobMetrics job : jobs) {
+            jobArray.add(job.toJSON());
+        }
+        json.put("jobs", jobArray);
+        JSONArray clusterArray = new JSONArray();
+        for (Map.Entry<Cluster, List<Session>> entry : ClusterManager.getInstance().getSessions().entrySet()) {
+            clusterArray.add(toJSON(entry.getKey(), entry.getValue()));
+        }
+        json.put("clusters", clusterArray);
+        return json;
+    }
+
+    private static JSONObject toJSON(Cluster cluster, List<Session> sessions) {
+        JSONObject json = new JSONObject();
+        json.put("name", cluster.getClusterName());
+        int inFlight = 0;
+        for (Session session : sessions) {
+            Session.State state = session.getState();
+            for (Host host : state.getConnectedHosts()) {
+                inFlight += state.getInFlightQueries(host);
+            }
+        }
+        json.put("in_flight", inFlight);
+        Metrics metrics = cluster.getMetrics();
+        if (metrics != null) {
+            json.put("connected_hosts", metrics.getConnectedToHosts().getValue());
+            json.put("open_connections", metrics.getOpenConnections().getValue());
+            json.put("requests", TableMetrics.toJSON(metrics.getRequestsTimer()));
+            Metrics.Errors errors = metrics.getErrorMetrics();
+            JSONObject errorJson = new JSONObject();
+            errorJson.put("connection", errors.getConnectionErrors().getCount());
+            errorJson.put("read_timeouts", errors.getReadTimeouts().getCount());
+            errorJson.put("write_timeouts", errors.getWriteTimeouts().getCount());
+            errorJson.put("unavailables", errors.getUnavailables().getCount());
+            errorJson.put("client_timeouts", errors.getClientTimeouts().getCount());
+            errorJson.put("other", errors.getOthers().getCount());
+            errorJson.put("retries", errors.getRetries().getCount());
+            errorJson.put("ignores", errors.getIgnores().getCount());
+            errorJson.put("speculative_executions", errors.getSpeculativeExecutions().getCount());
+            json.put("errors", errorJson);
+        }
+        return json;
+    }
+
+}
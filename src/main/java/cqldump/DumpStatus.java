@@ -0,0 +1,139 @@
+package cqldump;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.json.simple.JSONObject;
+
+/**
+ * Reports the metrics of queued, running and recent export and import jobs
+ * and of the shared driver connections as JSON. With a <code>job</code>
+ * parameter only that job is returned, with <code>cancel</code> the job is
+ * cancelled first. <code>download</code> delivers the result of a completed
+ * asynchronous job, the dump of an export or the report of a verify.
+ *
+ * @author theider
+ */
+public class DumpStatus extends HttpServlet {
+
+    /**
+     * Processes requests for both HTTP <code>GET</code> and <code>POST</code>
+     * methods.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    protected void processRequest(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String downloadId = request.getParameter("download");
+        if( (downloadId != null) && !downloadId.isEmpty() ) {
+            download(downloadId, response);
+            return;
+        }
+        String cancelId = request.getParameter("cancel");
+        if( (cancelId != null) && !cancelId.isEmpty() ) {
+            if (!JobManager.getInstance().cancel(cancelId)) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "no queued or running job " + cancelId);
+                return;
+            }
+        }
+        JSONObject status;
+        String jobId = request.getParameter("job");
+        if( (jobId == null) || jobId.isEmpty() ) {
+            jobId = cancelId;
+        }
+        if( (jobId == null) || jobId.isEmpty() ) {
+            status = DumpMetrics.getInstance().toJSON();
+        } else {
+            JobMetrics job = DumpMetrics.getInstance().getJob(jobId);
+            if (job == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "unknown job " + jobId);
+                return;
+            }
+            status = job.toJSON();
+        }
+        response.setContentType("application/json;charset=UTF-8");
+        try (PrintWriter out = response.getWriter()) {
+            out.print(status.toJSONString());
+        }
+    }
+
+    private void download(String jobId, HttpServletResponse response) throws IOException {
+        File file = JobManager.getInstance().getResult(jobId);
+        if (file == null) {
+            JobMetrics job = DumpMetrics.getInstance().getJob(jobId);
+            if ((job != null) && job.isRunning()) {
+                response.sendError(HttpServletResponse.SC_CONFLICT, "job " + jobId + " is " + job.getStatus());
+            } else {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "no result for job " + jobId);
+            }
+            return;
+        }
+        response.setContentType(file.getName().endsWith(".json") ? "application/json;charset=UTF-8" : "application/zip");
+        response.setHeader("Content-Disposition", "attachment; filename=\"" + file.getName() + "\"");
+        response.setContentLengthLong(file.length());
+        try (OutputStream out = response.getOutputStream()) {
+            Files.copy(file.toPath(), out);
+        }
+    }
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        DumpMetrics.getInstance().register();
+    }
+
+    @Override
+    public void destroy() {
+        DumpMetrics.getInstance().release();
+        super.destroy();
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="HttpServlet methods. Click on the + sign on the left to edit the code.">
+    /**
+     * Handles the HTTP <code>GET</code> method.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        processRequest(request, response);
+    }
+
+    /**
+     * Handles the HTTP <code>POST</code> method.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        processRequest(request, response);
+    }
+
+    /**
+     * Returns a short description of the servlet.
+     *
+     * @return a String containing servlet description
+     */
+    @Override
+    public String getServletInfo() {
+        return "Export and import job metrics and control";
+    }// </editor-fold>
+
+}
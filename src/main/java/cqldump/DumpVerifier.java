@@ -0,0 +1,409 @@
+package cqldump;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.Token;
+import com.datastax.driver.core.TokenRange;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.apache.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/**
+ * Compares a dump with a live keyspace without a second export. Every
+ * table entry of the dump and every token range of the live table is
+ * reduced to {@link RangeDigests}, so memory does not grow with the data,
+ * and the digests of both sides are compared range by range.
+ * <p>
+ * A row is digested by its encoded record: the dump record as stored, the
+ * live row as the dump's format encodes it when selecting the dump's
+ * columns. Dump rows are put in their range by the token of their
+ * partition key, which the prepared INSERT of the import computes; cqljson
+ * records carry no typed key and are only compared per table.
+ * <p>
+ * The dump is read from a zip file so its entries, and with an index
+ * consecutive row blocks of large entries, are digested on parallel
+ * workers, alongside the range scans of the live tables.
+ *
+ * @author theider
+ */
+public class DumpVerifier {
+
+    private static final Logger log = Logger.getLogger(DumpVerifier.class);
+
+    private static final int BUFFER_SIZE = 32768;
+    // mismatched ranges listed per table, the rest is only counted
+    private static final int MAX_REPORTED_RANGES = 100;
+
+    private final ClusterManager.Lease lease;
+    private final String keyspaceName;
+    private final int splits;
+    private final int parallelism;
+    private final Throttle throttle;
+    private final ScanPaging paging;
+    private final JobMetrics job;
+    private final Metadata metadata;
+    private final ProtocolVersion protocolVersion;
+    private final CodecRegistry codecRegistry;
+
+    /**
+     * A dump table and its live counterpart.
+     */
+    private static class TableCheck {
+        private final String tableName;
+        private final DumpFormat format;
+        private final List<String> columns;
+        private String status;
+        private TableMetadata tmd;
+        private RangeDigests dumpDigests;
+        private RangeDigests liveDigests;
+        private long dumpRows = -1;
+
+        TableCheck(String tableName, DumpFormat format, List<String> columns) {
+            this.tableName = tableName;
+            this.format = format;
+            this.columns = columns;
+        }
+    }
+
+    /**
+     * @param lease cluster of the live keyspace
+     * @param keyspaceName live keyspace
+     * @param splits minimum number of token ranges compared per table
+     * @param parallelism workers digesting the dump and scanning ranges
+     * @param throttle rate limit of the live scans
+     * @param paging page sizes of the live scans
+     * @param job metrics of the verification
+     */
+    public DumpVerifier(ClusterManager.Lease lease, String keyspaceName, int splits, int parallelism, Throttle throttle, ScanPaging paging, JobMetrics job) {
+        this.lease = lease;
+        this.keyspaceName = keyspaceName;
+        this.splits = splits;
+        this.parallelism = parallelism;
+        this.throttle = throttle;
+        this.paging = paging;
+        this.job = job;
+        this.metadata = lease.getCluster().getMetadata();
+        this.protocolVersion = lease.getCluster().getConfiguration().getProtocolOptions().getProtocolVersion();
+        this.codecRegistry = lease.getCluster().getConfiguration().getCodecRegistry();
+    }
+
+    /**
+     * Digests the dump and the keyspace and compares them.
+     *
+     * @param zip dump to verify
+     * @return report with the outcome of every table and its mismatched
+     * ranges
+     * @throws IOException if the dump cannot be verified or a scan fails
+     */
+    public JSONObject verify(ZipFile zip) throws IOException {
+        List<? extends ZipEntry> entries = Collections.list(zip.entries());
+        ZipEntry metadataEntry = null;
+        ZipEntry indexEntry = null;
+        for (ZipEntry zipEntry : entries) {
+            if (zipEntry.getName().endsWith("/metadata.json")) {
+                metadataEntry = zipEntry;
+            } else if (zipEntry.getName().endsWith("/index.json")) {
+                indexEntry = zipEntry;
+            }
+        }
+        if (metadataEntry == null) {
+            throw new IOException("dump has no METADATA.JSON entry");
+        }
+        JSONObject source = readJSON(zip, metadataEntry);
+        if (Boolean.TRUE.equals(source.get("delta"))) {
+            throw new IOException("a delta dump only holds the changed ranges and cannot be verified");
+        }
+        JSONObject selection = (JSONObject) source.get("selection");
+        if ((selection != null) && ((selection.get("tokens") != null)
+                || ((selection.get("partition_keys") != null) && !((JSONArray) selection.get("partition_keys")).isEmpty()))) {
+            throw new IOException("a dump of a token range or of partitions cannot be verified");
+        }
+        DumpIndex index = (indexEntry == null) ? null : DumpIndex.fromJSON(readJSON(zip, indexEntry));
+        KeyspaceMetadata ksmd = metadata.getKeyspace(keyspaceName);
+        if (ksmd == null) {
+            throw new IOException("keyspace not found: " + keyspaceName);
+        }
+        DumpFormat format = DumpFormat.forName((String) source.get("format"));
+        // import metadata for the decoders and INSERTs that yield the tokens
+        Map<String, KeyspaceImport.TableMetadata> importMetadata = new HashMap<>();
+        Map<String, TableCheck> checks = new LinkedHashMap<>();
+        for (Object tableObject : (JSONArray) source.get("tables")) {
+            JSONObject table = (JSONObject) tableObject;
+            String tableName = (String) table.get("name");
+            KeyspaceImport.TableMetadata tableMetadata = new KeyspaceImport.TableMetadata(tableName);
+            List<String> columns = new ArrayList<>();
+            for (Object columnObject : (JSONArray) table.get("columns")) {
+                JSONObject column = (JSONObject) columnObject;
+                columns.add((String) column.get("name"));
+                tableMetadata.getColumns().put((String) column.get("name"), (String) column.get("type"));
+            }
+            JSONArray columnOrder = (JSONArray) table.get("column_order");
+            if (columnOrder != null) {
+                for (Object name : columnOrder) {
+                    tableMetadata.getColumnOrder().add((String) name);
+                }
+            }
+            tableMetadata.compileDecoders();
+            importMetadata.put(tableName, tableMetadata);
+            checks.put(tableName, new TableCheck(tableName, format, columns));
+        }
+
+        List<TokenRange> ranges = TableExporter.getRanges(metadata, splits);
+        Session session = lease.getSession(keyspaceName);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        long expectedRows = (index == null) ? -1 : 0;
+        for (ZipEntry zipEntry : entries) {
+            String entryName = zipEntry.getName();
+            if ((zipEntry == metadataEntry) || (zipEntry == indexEntry) || entryName.endsWith("/manifest.json")
+                    || entryName.endsWith(".ranges.json")) {
+                continue;
+            }
+            DumpCompression compression = DumpCompression.forEntryName(entryName);
+            String tableEntryName = compression.stripEntrySuffix(entryName);
+            TableCheck check = checks.get(DumpFormat.getTableName(tableEntryName));
+            if (check == null) {
+                throw new IOException("entry without table in metadata: " + entryName);
+            }
+            DumpIndex.TableIndex tableIndex = (index == null) ? null : index.getTable(check.tableName);
+            if (tableIndex != null) {
+                check.dumpRows = tableIndex.getRows();
+            }
+            check.tmd = ksmd.getTable(Metadata.quoteIfNecessary(check.tableName));
+            if (check.tmd == null) {
+                check.status = "missing";
+                continue;
+            }
+            List<ColumnMetadata> columns = new ArrayList<>();
+            for (String columnName : check.columns) {
+                ColumnMetadata cmd = check.tmd.getColumn(Metadata.quoteIfNecessary(columnName));
+                if (cmd == null) {
+                    log.warn("column " + columnName + " of " + check.tableName + " not in the keyspace");
+                    check.status = "schema_mismatch";
+                    break;
+                }
+                columns.add(cmd);
+            }
+            if (check.status != null) {
+                continue;
+            }
+            List<TokenRange> tableRanges = (check.format == DumpFormat.CQLJSON) ? Collections.<TokenRange>emptyList() : ranges;
+            check.dumpDigests = new RangeDigests(tableRanges);
+            check.liveDigests = new RangeDigests(tableRanges);
+            TableMetrics tableMetrics = job.getTable(check.tableName);
+            tableMetrics.addCompressedBytes(zipEntry.getCompressedSize());
+
+            // dump side, consecutive blocks per worker with an index
+            int blocks = (tableIndex == null) ? 1 : tableIndex.getBlockCount();
+            int segmentCount = Math.min(parallelism, blocks);
+            for (int i = 0; i < segmentCount; i++) {
+                int segmentFirst = (int) ((long) blocks * i / segmentCount);
+                int segmentLast = (int) ((long) blocks * (i + 1) / segmentCount) - 1;
+                tasks.add(() -> {
+                    try (InputStream in = compression.newEntryInputStream(zip.getInputStream(zipEntry))) {
+                        InputStream entryStream = in;
+                        if ((tableIndex != null) && (segmentCount > 1)) {
+                            long start = tableIndex.getBlockOffset(segmentFirst);
+                            ByteStreams.skipFully(in, start);
+                            entryStream = ByteStreams.limit(in, tableIndex.getBlockEnd(segmentLast) - start);
+                        }
+                        digestEntry(entryStream, check, session, importMetadata.get(check.tableName).copy(), tableMetrics);
+                    }
+                    return null;
+                });
+            }
+            if ((expectedRows >= 0) && (tableIndex != null)) {
+                // the dump rows and about as many live rows
+                expectedRows += 2 * tableIndex.getRows();
+            } else {
+                expectedRows = -1;
+            }
+
+            // live side, one scan per range
+            PreparedStatement prepStmt = TableExporter.prepareRangeScan(session, check.tmd, check.format.getSelectList(columns));
+            List<TokenRange> scanRanges = check.liveDigests.isByRange() ? check.liveDigests.getRanges() : ranges;
+            for (int i = 0; i < scanRanges.size(); i++) {
+                TokenRange range = scanRanges.get(i);
+                int digest = check.liveDigests.isByRange() ? i : 0;
+                tasks.add(() -> {
+                    scanRange(session, prepStmt, range, digest, check, tableMetrics);
+                    return null;
+                });
+            }
+        }
+        job.setExpectedRows(expectedRows);
+        log.info("verifying " + checks.size() + " tables of keyspace " + keyspaceName + " in " + ranges.size() + " token ranges");
+        ExecutorService workerPool = Executors.newFixedThreadPool(parallelism);
+        try {
+            ParallelTasks.runAll(workerPool, tasks, "verifying keyspace " + keyspaceName);
+        } finally {
+            workerPool.shutdownNow();
+        }
+        return report(checks.values(), ranges.size());
+    }
+
+    private long digestEntry(InputStream in, TableCheck check, Session session, KeyspaceImport.TableMetadata tableMetadata, TableMetrics tableMetrics) throws IOException {
+        FrameReader frames = new FrameReader(in, BUFFER_SIZE);
+        RangeDigests digests = check.dumpDigests;
+        long c = 0;
+        if (check.format == DumpFormat.BINARY) {
+            if (tableMetadata.getColumnOrder().isEmpty()) {
+                throw new IOException("binary table entry without column order in metadata");
+            }
+            PreparedStatement prepStmt = tableMetadata.getInsertStatement(session, tableMetadata.getColumnOrder());
+            int columnCount = tableMetadata.getColumnOrder().size();
+            while (frames.nextBinary()) {
+                long start = System.nanoTime();
+                BoundStatement bprep = new BoundStatement(prepStmt);
+                byte[] row = Arrays.copyOfRange(frames.array(), frames.offset(), frames.offset() + frames.length());
+                BinaryRowEncoder.bindRow(bprep, row, columnCount);
+                digests.add(digests.indexOf(getToken(bprep, check)), row, 0, row.length);
+                tableMetrics.addCodecTime(System.nanoTime() - start);
+                tableMetrics.addBytes(4 + frames.length());
+                c = countRow(c, check, tableMetrics);
+            }
+        } else if (check.format == DumpFormat.CQLJSON) {
+            while (frames.next()) {
+                long start = System.nanoTime();
+                digests.add(0, frames.array(), frames.offset(), frames.length());
+                tableMetrics.addCodecTime(System.nanoTime() - start);
+                tableMetrics.addBytes(RowEncoder.FRAME_HEADER_SIZE + frames.length());
+                c = countRow(c, check, tableMetrics);
+            }
+        } else {
+            Map<String, KeyspaceImport.TableMetadata> decoderMetadata = Collections.singletonMap(check.tableName, tableMetadata);
+            RecordDecoder decoder = new RecordDecoder(session, decoderMetadata, BUFFER_SIZE);
+            while (frames.next()) {
+                long start = System.nanoTime();
+                // decoding reads the record without changing it
+                BoundStatement bprep = decoder.decode(frames.array(), frames.offset(), frames.length());
+                digests.add(digests.indexOf(getToken(bprep, check)), frames.array(), frames.offset(), frames.length());
+                tableMetrics.addCodecTime(System.nanoTime() - start);
+                tableMetrics.addBytes(RowEncoder.FRAME_HEADER_SIZE + frames.length());
+                c = countRow(c, check, tableMetrics);
+            }
+        }
+        tableMetrics.markRows(c % 1000);
+        log.info(" -- digested " + c + " dump rows of " + check.tableName);
+        return c;
+    }
+
+    private void scanRange(Session session, PreparedStatement prepStmt, TokenRange range, int digest, TableCheck check, TableMetrics tableMetrics) throws IOException {
+        Statement query = new RangeRoutingPolicy.RangeStatement(TableExporter.bindRange(prepStmt, range), range);
+        int header = check.format.getFrameHeaderSize();
+        RecordBuffer buffer = new RecordBuffer(BUFFER_SIZE);
+        long c = 0;
+        try (ScanPaging.Pager pager = paging.open(query, tableMetrics)) {
+            RecordEncoder encoder = check.format.newEncoder(check.tableName, pager.execute(session).getColumnDefinitions());
+            while (pager.hasNext()) {
+                long start = System.nanoTime();
+                buffer.reset();
+                encoder.encode(pager.next(), buffer);
+                check.liveDigests.add(digest, buffer.array(), header, buffer.length() - header);
+                tableMetrics.addCodecTime(System.nanoTime() - start);
+                pager.addRow(buffer.length());
+                throttle.acquire(1, buffer.length());
+                c = countRow(c, check, tableMetrics);
+            }
+        }
+        tableMetrics.markRows(c % 1000);
+    }
+
+    private long countRow(long c, TableCheck check, TableMetrics tableMetrics) throws IOException {
+        c++;
+        if ((c % 1000) == 0) {
+            tableMetrics.markRows(1000);
+            if (Thread.currentThread().isInterrupted()) {
+                // the job was cancelled
+                throw new InterruptedIOException("verification of " + check.tableName + " interrupted");
+            }
+        }
+        return c;
+    }
+
+    private Token getToken(BoundStatement bprep, TableCheck check) throws IOException {
+        ByteBuffer routingKey = bprep.getRoutingKey(protocolVersion, codecRegistry);
+        if (routingKey == null) {
+            throw new IOException("row of " + check.tableName + " without its partition key");
+        }
+        return metadata.newToken(routingKey);
+    }
+
+    private JSONObject report(Iterable<TableCheck> checks, int rangeCount) {
+        JSONArray tablesArray = new JSONArray();
+        boolean match = true;
+        for (TableCheck check : checks) {
+            JSONObject table = new JSONObject();
+            table.put("table", check.tableName);
+            if (check.dumpDigests != null) {
+                List<Integer> mismatched = check.dumpDigests.compare(check.liveDigests);
+                check.status = mismatched.isEmpty() ? "match" : "mismatch";
+                check.dumpRows = check.dumpDigests.getTotalRows();
+                table.put("live_rows", check.liveDigests.getTotalRows());
+                table.put("by_range", check.dumpDigests.isByRange());
+                table.put("mismatched_ranges", mismatched.size());
+                if (check.dumpDigests.isByRange()) {
+                    JSONArray rangesArray = new JSONArray();
+                    for (int i : mismatched.subList(0, Math.min(mismatched.size(), MAX_REPORTED_RANGES))) {
+                        JSONObject range = new JSONObject();
+                        range.put("range", TableExporter.getRangeKey(check.dumpDigests.getRanges().get(i)));
+                        range.put("dump_rows", check.dumpDigests.getRows(i));
+                        range.put("live_rows", check.liveDigests.getRows(i));
+                        rangesArray.add(range);
+                    }
+                    table.put("ranges", rangesArray);
+                }
+            } else if (check.status == null) {
+                // in the metadata but without an entry
+                check.status = "no_entry";
+            }
+            table.put("status", check.status);
+            table.put("dump_rows", check.dumpRows);
+            match &= "match".equals(check.status);
+            log.info(" -- table " + check.tableName + " " + check.status);
+            tablesArray.add(table);
+        }
+        JSONObject json = new JSONObject();
+        json.put("keyspace", keyspaceName);
+        json.put("ranges", rangeCount);
+        json.put("match", match);
+        json.put("tables", tablesArray);
+        return json;
+    }
+
+    private static JSONObject readJSON(ZipFile zip, ZipEntry zipEntry) throws IOException {
+        try (InputStream in = zip.getInputStream(zipEntry)) {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            ByteStreams.copy(in, bout);
+            return (JSONObject) JSONValue.parse(new String(bout.toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+
+}
@@ -0,0 +1,285 @@
+package cqldump;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/**
+ * Progress of one table of a named export, kept as
+ * <code>&lt;table&gt;.checkpoint</code> next to the table's spool file in the
+ * checkpoint directory. It records how many rows and spool bytes are safely
+ * on disk together with the driver paging state of the next page (single
+ * scan) or the token ranges already finished (split scan), so a failed
+ * export can continue where it stopped.
+ * <p>
+ * The chunks of concurrent range scans are interleaved in the spool, so
+ * the checkpoint also keeps the byte spans and rows of the ranges that
+ * were still in progress when it was saved. Those ranges are scanned again
+ * on resume, and {@link #truncateSpool} first cuts their earlier chunks out
+ * of the spool, so a resumed entry holds every row once.
+ *
+ * @author theider
+ */
+public class ExportCheckpoint {
+
+    private final File directory;
+    private final String tableName;
+    private final DumpFormat format;
+    private final int splits;
+    private long rowCount;
+    private long spoolLength;
+    private String pagingState;
+    private final Set<String> completedRanges = new LinkedHashSet<>();
+    // offset, length and rows of the chunks of unfinished ranges, in spool order
+    private final List<long[]> partialSpans = new ArrayList<>();
+    private boolean spooled;
+    private boolean complete;
+
+    private ExportCheckpoint(File directory, String tableName, DumpFormat format, int splits) {
+        this.directory = directory;
+        this.tableName = tableName;
+        this.format = format;
+        this.splits = splits;
+    }
+
+    /**
+     * Reads the checkpoint of a table, or starts a new one.
+     *
+     * @param directory checkpoint directory of the export
+     * @param tableName table name
+     * @param format record format of the export
+     * @param splits token sub-ranges of the export
+     * @return checkpoint of the table
+     * @throws IOException if the checkpoint cannot be read or was written by
+     * an export with other settings
+     */
+    public static ExportCheckpoint load(File directory, String tableName, DumpFormat format, int splits) throws IOException {
+        ExportCheckpoint checkpoint = new ExportCheckpoint(directory, tableName, format, splits);
+        File file = checkpoint.getFile();
+        if (!file.exists()) {
+            return checkpoint;
+        }
+        JSONObject state = (JSONObject) JSONValue.parse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        if (state == null) {
+            throw new IOException("invalid checkpoint " + file);
+        }
+        String savedFormat = (String) state.get("format");
+        long savedSplits = ((Number) state.get("splits")).longValue();
+        if (!format.getName().equals(savedFormat) || (savedSplits != splits)) {
+            throw new IOException("checkpoint of table " + tableName + " was written with format " + savedFormat
+                    + " and " + savedSplits + " splits");
+        }
+        checkpoint.rowCount = ((Number) state.get("rows")).longValue();
+        checkpoint.spoolLength = ((Number) state.get("spool_length")).longValue();
+        checkpoint.pagingState = (String) state.get("paging_state");
+        JSONArray ranges = (JSONArray) state.get("completed_ranges");
+        if (ranges != null) {
+            for (Object range : ranges) {
+                checkpoint.completedRanges.add((String) range);
+            }
+        }
+        JSONArray spans = (JSONArray) state.get("partial_spans");
+        if (spans != null) {
+            for (Object span : spans) {
+                JSONArray values = (JSONArray) span;
+                checkpoint.partialSpans.add(new long[]{((Number) values.get(0)).longValue(),
+                    ((Number) values.get(1)).longValue(), ((Number) values.get(2)).longValue()});
+            }
+        }
+        checkpoint.spooled = Boolean.TRUE.equals(state.get("spooled"));
+        checkpoint.complete = Boolean.TRUE.equals(state.get("complete"));
+        if (checkpoint.spoolLength > checkpoint.getSpoolFile().length()) {
+            // the spool lost data the checkpoint counts on, start the table over
+            checkpoint.reset();
+        }
+        return checkpoint;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public long getSpoolLength() {
+        return spoolLength;
+    }
+
+    public String getPagingState() {
+        return pagingState;
+    }
+
+    public boolean isRangeCompleted(String range) {
+        return completedRanges.contains(range);
+    }
+
+    public int getCompletedRangeCount() {
+        return completedRanges.size();
+    }
+
+    /**
+     * @return true once all rows of the table are in the spool file
+     */
+    public boolean isSpooled() {
+        return spooled;
+    }
+
+    /**
+     * @return true once the table entry was written to an export response
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public File getSpoolFile() {
+        return new File(directory, tableName + ".spool");
+    }
+
+    private File getFile() {
+        return new File(directory, tableName + ".checkpoint");
+    }
+
+    /**
+     * Records a finished token range. It becomes durable with the next
+     * {@link #save(long, long, String)}.
+     *
+     * @param range range key
+     */
+    public void addCompletedRange(String range) {
+        completedRanges.add(range);
+    }
+
+    /**
+     * Records the rows and bytes that are flushed to the spool file.
+     *
+     * @param rows rows in the spool file
+     * @param length spool file length
+     * @param nextPage paging state of the next page, null for split scans
+     * @throws IOException if the checkpoint cannot be written
+     */
+    public void save(long rows, long length, String nextPage) throws IOException {
+        save(rows, length, nextPage, new ArrayList<>());
+    }
+
+    /**
+     * Records the rows and bytes that are flushed to the spool file of a
+     * split scan, with the chunks of the ranges not finished yet.
+     *
+     * @param rows rows in the spool file
+     * @param length spool file length
+     * @param nextPage paging state of the next page, null for split scans
+     * @param spans offset, length and rows of every chunk of the unfinished
+     * ranges, in spool order
+     * @throws IOException if the checkpoint cannot be written
+     */
+    public void save(long rows, long length, String nextPage, List<long[]> spans) throws IOException {
+        rowCount = rows;
+        spoolLength = length;
+        pagingState = nextPage;
+        partialSpans.clear();
+        partialSpans.addAll(spans);
+        write();
+    }
+
+    /**
+     * Prepares the spool file of a resumed table: drops whatever was
+     * written after the checkpoint and the chunks of the ranges that were
+     * unfinished at the checkpoint, which are scanned again. Row count and
+     * spool length are reduced to match.
+     *
+     * @throws IOException if the spool cannot be rewritten
+     */
+    public void truncateSpool() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(getSpoolFile(), "rw")) {
+            raf.setLength(spoolLength);
+            if (partialSpans.isEmpty()) {
+                return;
+            }
+            byte[] buffer = new byte[65536];
+            long read = 0;
+            long written = 0;
+            long rows = rowCount;
+            List<long[]> spans = new ArrayList<>(partialSpans);
+            spans.add(new long[]{spoolLength, 0, 0});
+            for (long[] span : spans) {
+                // move the bytes before the span down over the dropped spans
+                while (read < span[0]) {
+                    int n = (int) Math.min(buffer.length, span[0] - read);
+                    raf.seek(read);
+                    raf.readFully(buffer, 0, n);
+                    raf.seek(written);
+                    raf.write(buffer, 0, n);
+                    read += n;
+                    written += n;
+                }
+                read += span[1];
+                rows -= span[2];
+            }
+            raf.setLength(written);
+            save(rows, written, pagingState);
+        }
+    }
+
+    public void markSpooled(long rows, long length) throws IOException {
+        spooled = true;
+        save(rows, length, null);
+    }
+
+    public void markComplete() throws IOException {
+        complete = true;
+        write();
+    }
+
+    private void reset() {
+        rowCount = 0;
+        spoolLength = 0;
+        pagingState = null;
+        completedRanges.clear();
+        partialSpans.clear();
+        spooled = false;
+        complete = false;
+    }
+
+    private void write() throws IOException {
+        JSONObject state = new JSONObject();
+        state.put("table", tableName);
+        state.put("format", format.getName());
+        state.put("splits", splits);
+        state.put("rows", rowCount);
+        state.put("spool_length", spoolLength);
+        state.put("paging_state", pagingState);
+        JSONArray ranges = new JSONArray();
+        ranges.addAll(completedRanges);
+        state.put("completed_ranges", ranges);
+        JSONArray spans = new JSONArray();
+        for (long[] span : partialSpans) {
+            JSONArray values = new JSONArray();
+            values.add(span[0]);
+            values.add(span[1]);
+            values.add(span[2]);
+            spans.add(values);
+        }
+        state.put("partial_spans", spans);
+        state.put("spooled", spooled);
+        state.put("complete", complete);
+        // replace the previous checkpoint in one step so a crash leaves
+        // either the old or the new one
+        File file = getFile();
+        File temp = new File(directory, file.getName() + ".tmp");
+        Files.write(temp.toPath(), state.toJSONString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
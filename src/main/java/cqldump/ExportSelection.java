@@ -0,0 +1,287 @@
+package cqldump;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.TokenRange;
+import com.datastax.driver.core.TypeCodec;
+import com.datastax.driver.core.exceptions.InvalidTypeException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * The part of a keyspace an export is limited to: included and excluded
+ * tables, a column projection per table, a token range and a list of
+ * partition keys. Token bounds restrict the range scans, partition keys
+ * replace them with one query per partition. Projections always keep the
+ * primary key columns so the rows can be imported.
+ *
+ * @author theider
+ */
+public class ExportSelection {
+
+    private final Set<String> include;
+    private final Set<String> exclude;
+    private final Map<String, Set<String>> projections;
+    private final String tokenStart;
+    private final String tokenEnd;
+    private final List<List<String>> partitionKeys;
+
+    private ExportSelection(Set<String> include, Set<String> exclude, Map<String, Set<String>> projections, String tokenStart, String tokenEnd, List<List<String>> partitionKeys) {
+        this.include = include;
+        this.exclude = exclude;
+        this.projections = projections;
+        this.tokenStart = tokenStart;
+        this.tokenEnd = tokenEnd;
+        this.partitionKeys = partitionKeys;
+    }
+
+    /**
+     * Parses the selection parameters of an export request.
+     *
+     * @param tablesText tables to export, comma separated, empty for all
+     * @param excludeText tables to leave out, comma separated
+     * @param columnsText projections as
+     * <code>table:col,col;table:col</code>
+     * @param tokensText token range as <code>start:end</code>, rows with
+     * start &lt; token &lt;= end
+     * @param keysText partition keys separated by <code>;</code>, the
+     * components of a composite key by <code>,</code>; only with exactly
+     * one table, keys are not meaningful across tables
+     * @return selection of the export
+     * @throws IllegalArgumentException if a parameter is malformed
+     */
+    public static ExportSelection forParameters(String tablesText, String excludeText, String columnsText, String tokensText, String keysText) {
+        Map<String, Set<String>> projections = new HashMap<>();
+        for (String projection : split(columnsText, ";")) {
+            int colon = projection.indexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("column projection " + projection + " is not table:columns");
+            }
+            projections.put(projection.substring(0, colon).trim(), new LinkedHashSet<>(split(projection.substring(colon + 1), ",")));
+        }
+        String tokenStart = null;
+        String tokenEnd = null;
+        if ((tokensText != null) && !tokensText.trim().isEmpty()) {
+            // tokens can be negative, the separator is the first colon after the start
+            int colon = tokensText.indexOf(':', 1);
+            if (colon < 0) {
+                throw new IllegalArgumentException("token range " + tokensText + " is not start:end");
+            }
+            tokenStart = tokensText.substring(0, colon).trim();
+            tokenEnd = tokensText.substring(colon + 1).trim();
+        }
+        List<List<String>> partitionKeys = new ArrayList<>();
+        for (String key : split(keysText, ";")) {
+            partitionKeys.add(split(key, ","));
+        }
+        Set<String> include = new LinkedHashSet<>(split(tablesText, ","));
+        if (!partitionKeys.isEmpty() && (include.size() != 1)) {
+            throw new IllegalArgumentException("partition keys need exactly one table in tables");
+        }
+        return new ExportSelection(include, new LinkedHashSet<>(split(excludeText, ",")),
+                projections, tokenStart, tokenEnd, partitionKeys);
+    }
+
+    private static List<String> split(String text, String separator) {
+        if ((text == null) || text.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> parts = new ArrayList<>();
+        for (String part : text.split(separator)) {
+            if (!part.trim().isEmpty()) {
+                parts.add(part.trim());
+            }
+        }
+        return parts;
+    }
+
+    public boolean hasTokenRange() {
+        return tokenStart != null;
+    }
+
+    public boolean hasPartitionKeys() {
+        return !partitionKeys.isEmpty();
+    }
+
+    /**
+     * @param md exported keyspace
+     * @return selected tables in keyspace order
+     * @throws IOException if a named table or column does not exist
+     */
+    public List<TableMetadata> selectTables(KeyspaceMetadata md) throws IOException {
+        Set<String> named = new LinkedHashSet<>(include);
+        named.addAll(exclude);
+        named.addAll(projections.keySet());
+        for (String tableName : named) {
+            if (md.getTable(tableName) == null) {
+                throw new IOException("table not found: " + md.getName() + "." + tableName);
+            }
+        }
+        List<TableMetadata> tables = new ArrayList<>();
+        for (TableMetadata tmd : md.getTables()) {
+            if ((include.isEmpty() || include.contains(tmd.getName())) && !exclude.contains(tmd.getName())) {
+                getColumns(tmd);
+                tables.add(tmd);
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * @param tmd exported table
+     * @return exported columns in table order, the primary key included
+     * @throws IOException if a projected column does not exist
+     */
+    public List<ColumnMetadata> getColumns(TableMetadata tmd) throws IOException {
+        Set<String> projection = projections.get(tmd.getName());
+        if (projection == null) {
+            return tmd.getColumns();
+        }
+        for (String name : projection) {
+            if (tmd.getColumn(name) == null) {
+                throw new IOException("column not found: " + tmd.getName() + "." + name);
+            }
+        }
+        List<ColumnMetadata> columns = new ArrayList<>();
+        for (ColumnMetadata cmd : tmd.getColumns()) {
+            if (projection.contains(cmd.getName()) || tmd.getPrimaryKey().contains(cmd)) {
+                columns.add(cmd);
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * @param tmd exported table
+     * @param format record format
+     * @return select list of the export queries
+     */
+    public String getSelectList(TableMetadata tmd, DumpFormat format) {
+        if (!projections.containsKey(tmd.getName())) {
+            return format.getSelectList(tmd);
+        }
+        try {
+            return format.getSelectList(getColumns(tmd));
+        } catch (IOException ex) {
+            // checked by selectTables
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Limits scan ranges to the selected token range.
+     *
+     * @param metadata cluster metadata
+     * @param ranges non-wrapping scan ranges
+     * @return the parts of the ranges inside the token range
+     */
+    public List<TokenRange> restrict(Metadata metadata, List<TokenRange> ranges) {
+        if (!hasTokenRange()) {
+            return ranges;
+        }
+        TokenRange bounds = metadata.newTokenRange(metadata.newToken(tokenStart), metadata.newToken(tokenEnd));
+        List<TokenRange> restricted = new ArrayList<>();
+        for (TokenRange range : ranges) {
+            if (range.intersects(bounds)) {
+                for (TokenRange part : range.intersectWith(bounds)) {
+                    restricted.addAll(part.unwrap());
+                }
+            }
+        }
+        return restricted;
+    }
+
+    /**
+     * Binds the per partition query of a table for every selected key.
+     *
+     * @param prepStmt query restricting every partition key column
+     * @param tmd exported table
+     * @return one statement per partition
+     * @throws IOException if a key does not match the table's partition key
+     */
+    public List<BoundStatement> bindPartitions(PreparedStatement prepStmt, TableMetadata tmd) throws IOException {
+        List<ColumnMetadata> keyColumns = tmd.getPartitionKey();
+        List<BoundStatement> statements = new ArrayList<>();
+        for (List<String> key : partitionKeys) {
+            if (key.size() != keyColumns.size()) {
+                throw new IOException("partition key " + key + " does not match the " + keyColumns.size()
+                        + " partition key columns of " + tmd.getName());
+            }
+            BoundStatement stmt = prepStmt.bind();
+            for (int i = 0; i < key.size(); i++) {
+                DataType type = keyColumns.get(i).getType();
+                TypeCodec<Object> codec = CodecRegistry.DEFAULT_INSTANCE.codecFor(type);
+                try {
+                    stmt.set(i, codec.parse(toLiteral(type, key.get(i))), codec);
+                } catch (InvalidTypeException ex) {
+                    throw new IOException("invalid partition key value " + key.get(i) + " for " + tmd.getName(), ex);
+                }
+            }
+            statements.add(stmt);
+        }
+        return statements;
+    }
+
+    private static String toLiteral(DataType type, String value) {
+        // text keys can be given without CQL quotes
+        switch (type.getName()) {
+            case ASCII:
+            case TEXT:
+            case VARCHAR:
+                if (!value.startsWith("'")) {
+                    return "'" + value.replace("'", "''") + "'";
+                }
+                return value;
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * @return description of the selection for metadata.json, null if the
+     * whole keyspace is exported
+     */
+    public JSONObject toJSON() {
+        if (include.isEmpty() && exclude.isEmpty() && projections.isEmpty() && !hasTokenRange() && !hasPartitionKeys()) {
+            return null;
+        }
+        JSONObject json = new JSONObject();
+        JSONArray includeArray = new JSONArray();
+        includeArray.addAll(include);
+        json.put("include", includeArray);
+        JSONArray excludeArray = new JSONArray();
+        excludeArray.addAll(exclude);
+        json.put("exclude", excludeArray);
+        JSONObject projectionObject = new JSONObject();
+        for (Map.Entry<String, Set<String>> projection : projections.entrySet()) {
+            JSONArray columns = new JSONArray();
+            columns.addAll(projection.getValue());
+            projectionObject.put(projection.getKey(), columns);
+        }
+        json.put("columns", projectionObject);
+        json.put("tokens", hasTokenRange() ? tokenStart + ":" + tokenEnd : null);
+        JSONArray keysArray = new JSONArray();
+        for (List<String> key : partitionKeys) {
+            JSONArray keyArray = new JSONArray();
+            keyArray.addAll(key);
+            keysArray.add(keyArray);
+        }
+        json.put("partition_keys", keysArray);
+        return json;
+    }
+
+}
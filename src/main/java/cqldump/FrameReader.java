@@ -0,0 +1,131 @@
+package cqldump;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads the records of a table entry. Each JSON record is a CRLF, an eight
+ * character space padded hex length and that many bytes of record data;
+ * binary rows have a 32 bit big endian length instead. Records are
+ * returned as a region of one reusable buffer that is valid until the next
+ * call to {@link #next()}.
+ *
+ * @author theider
+ */
+public class FrameReader {
+
+    private final InputStream in;
+    private byte[] buffer;
+    private int position;
+    private int limit;
+    private int recordOffset;
+    private int recordLength;
+
+    public FrameReader(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Advances to the next record.
+     *
+     * @return false at the end of the entry
+     * @throws IOException if the entry ends inside a record
+     */
+    public boolean next() throws IOException {
+        if (!fill(RowEncoder.FRAME_HEADER_SIZE)) {
+            if (position == limit) {
+                return false;
+            }
+            throw new IOException("incomplete record header, got " + (limit - position) + " bytes");
+        }
+        int length = parseLength(buffer, position + 2, RowEncoder.FRAME_HEADER_SIZE - 2);
+        position += RowEncoder.FRAME_HEADER_SIZE;
+        if (!fill(length)) {
+            throw new IOException("incomplete stream read expected " + length + " but got " + (limit - position) + " bytes");
+        }
+        recordOffset = position;
+        recordLength = length;
+        position += length;
+        return true;
+    }
+
+    /**
+     * Advances to the next binary row.
+     *
+     * @return false at the end of the entry
+     * @throws IOException if the entry ends inside a row
+     */
+    public boolean nextBinary() throws IOException {
+        if (!fill(4)) {
+            if (position == limit) {
+                return false;
+            }
+            throw new IOException("incomplete row header, got " + (limit - position) + " bytes");
+        }
+        int length = BinaryRowEncoder.getInt(buffer, position);
+        if (length < 0) {
+            throw new IOException("invalid row length " + length);
+        }
+        position += 4;
+        if (!fill(length)) {
+            throw new IOException("incomplete stream read expected " + length + " but got " + (limit - position) + " bytes");
+        }
+        recordOffset = position;
+        recordLength = length;
+        position += length;
+        return true;
+    }
+
+    public byte[] array() {
+        return buffer;
+    }
+
+    public int offset() {
+        return recordOffset;
+    }
+
+    public int length() {
+        return recordLength;
+    }
+
+    /**
+     * Makes sure at least count unread bytes are buffered.
+     */
+    private boolean fill(int count) throws IOException {
+        if (limit - position >= count) {
+            return true;
+        }
+        if (count > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(count, buffer.length * 2));
+        }
+        if (position + count > buffer.length) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        while (limit - position < count) {
+            int r = in.read(buffer, limit, buffer.length - limit);
+            if (r < 0) {
+                return false;
+            }
+            limit += r;
+        }
+        return true;
+    }
+
+    private static int parseLength(byte[] b, int offset, int width) throws IOException {
+        int value = 0;
+        for (int i = offset; i < offset + width; i++) {
+            int d = Character.digit(b[i], 16);
+            if (d >= 0) {
+                value = (value << 4) | d;
+            } else if (b[i] != ' ') {
+                throw new IOException("invalid record length [" + new String(b, offset, width) + "]");
+            }
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,389 @@
+package cqldump;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs export and import jobs off the request threads. At most
+ * {@code maxJobs} jobs run at a time and at most {@code maxClusterJobs}
+ * against the same cluster; further jobs wait in submission order. Every
+ * job has a {@link JobMetrics} under its id, which the status servlet
+ * reports and uses to cancel a job or download the dump of an
+ * asynchronous export. Servlets register in init() and release in
+ * destroy(), the last release stops all jobs.
+ *
+ * @author theider
+ */
+public class JobManager {
+
+    private static final Logger log = Logger.getLogger(JobManager.class);
+
+    public static final int DEFAULT_MAX_JOBS = 4;
+    public static final int DEFAULT_MAX_CLUSTER_JOBS = 2;
+
+    private static final JobManager instance = new JobManager();
+
+    private final AtomicLong threadSequence = new AtomicLong();
+    private final Deque<Job> pending = new ArrayDeque<>();
+    private final Map<String, Job> active = new HashMap<>();
+    private final Map<String, Integer> clusterJobs = new HashMap<>();
+    // dumps of finished asynchronous exports by job id
+    private final Map<String, File> results = new LinkedHashMap<>();
+    private ExecutorService executor;
+    private int registrations;
+    private int maxJobs = DEFAULT_MAX_JOBS;
+    private int maxClusterJobs = DEFAULT_MAX_CLUSTER_JOBS;
+    private int runningJobs;
+
+    /**
+     * Work of a job, run on a job thread.
+     */
+    public interface JobTask {
+
+        /**
+         * @param job metrics of the job, finished by the manager
+         * @throws IOException if the job fails
+         */
+        void run(JobMetrics job) throws IOException;
+    }
+
+    /**
+     * A submitted job.
+     */
+    public static class Job {
+        private final JobMetrics metrics;
+        private final String clusterKey;
+        private final JobTask task;
+        private final File result;
+        private final File spool;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        // thread running the task, guarded by the manager
+        private Thread thread;
+
+        Job(JobMetrics metrics, String clusterKey, JobTask task, File result, File spool) {
+            this.metrics = metrics;
+            this.clusterKey = clusterKey;
+            this.task = task;
+            this.result = result;
+            this.spool = spool;
+        }
+
+        public String getId() {
+            return metrics.getId();
+        }
+
+        public JobMetrics getMetrics() {
+            return metrics;
+        }
+
+        /**
+         * Waits for the job, for requests that deliver the result
+         * themselves. An interrupted wait cancels the job.
+         *
+         * @throws IOException if the job failed or was cancelled
+         */
+        public void await() throws IOException {
+            try {
+                done.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                JobManager.getInstance().cancel(getId());
+                throw new IOException("interrupted waiting for job " + getId(), ex);
+            } catch (CancellationException ex) {
+                throw new IOException("job " + getId() + " cancelled", ex);
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw new IOException("job " + getId() + " failed", ex.getCause());
+            }
+        }
+    }
+
+    public static JobManager getInstance() {
+        return instance;
+    }
+
+    /**
+     * Called by each servlet on init with the max-jobs and
+     * max-jobs-per-cluster context parameters, the first registration
+     * sets the limits.
+     *
+     * @param maxJobsText jobs running at a time, empty or null for the
+     * default
+     * @param maxClusterJobsText jobs running against one cluster, empty or
+     * null for the default
+     */
+    public synchronized void register(String maxJobsText, String maxClusterJobsText) {
+        if (registrations++ == 0) {
+            if( (maxJobsText == null) || maxJobsText.isEmpty() ) {
+                maxJobsText = Integer.toString(DEFAULT_MAX_JOBS);
+            }
+            if( (maxClusterJobsText == null) || maxClusterJobsText.isEmpty() ) {
+                maxClusterJobsText = Integer.toString(DEFAULT_MAX_CLUSTER_JOBS);
+            }
+            maxJobs = Math.max(1, Integer.parseInt(maxJobsText));
+            maxClusterJobs = Math.max(1, Integer.parseInt(maxClusterJobsText));
+            executor = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "cqldump-job-" + threadSequence.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * Called by each servlet on destroy, cancels all jobs once no servlet
+     * is left. Dispatched jobs are interrupted or, if their thread has not
+     * started the task yet, skip it; either way they finish through
+     * {@link #run}.
+     */
+    public void release() {
+        List<Job> cancelled;
+        List<File> files;
+        synchronized (this) {
+            if (--registrations > 0) {
+                return;
+            }
+            registrations = 0;
+            cancelled = new ArrayList<>(pending);
+            pending.clear();
+            for (Job job : cancelled) {
+                active.remove(job.getId());
+            }
+            for (Job job : active.values()) {
+                job.metrics.cancel();
+                if (job.thread != null) {
+                    job.thread.interrupt();
+                }
+            }
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+            files = new ArrayList<>(results.values());
+            results.clear();
+        }
+        for (Job job : cancelled) {
+            finish(job, new CancellationException("server shutdown"));
+        }
+        for (File file : files) {
+            deleteResult(file);
+        }
+    }
+
+    /**
+     * Queues a job, it starts as soon as the limits allow.
+     *
+     * @param type export or import
+     * @param keyspaceName keyspace of the job
+     * @param connection cluster the job runs against
+     * @param result dump file the job writes for later download, or null;
+     * deleted unless the job completes
+     * @param task work of the job
+     * @return the queued job
+     */
+    public Job submit(String type, String keyspaceName, ConnectionOptions connection, File result, JobTask task) {
+        return submit(type, keyspaceName, connection, result, null, task);
+    }
+
+    /**
+     * Queues a job that reads a spooled upload, the upload is deleted when
+     * the job finishes, however it finishes.
+     *
+     * @param type export or import
+     * @param keyspaceName keyspace of the job
+     * @param connection cluster the job runs against
+     * @param result dump file the job writes for later download, or null;
+     * deleted unless the job completes
+     * @param spool upload the job reads, or null
+     * @param task work of the job
+     * @return the queued job
+     */
+    public Job submit(String type, String keyspaceName, ConnectionOptions connection, File result, File spool, JobTask task) {
+        synchronized (this) {
+            if (executor == null) {
+                if (spool != null) {
+                    deleteResult(spool);
+                }
+                throw new IllegalStateException("job manager not registered");
+            }
+        }
+        JobMetrics metrics = DumpMetrics.getInstance().startJob(type, keyspaceName);
+        Job job = new Job(metrics, connection.getHost() + ":" + connection.getPort(), task, result, spool);
+        synchronized (this) {
+            active.put(job.getId(), job);
+            pending.addLast(job);
+            dispatch();
+        }
+        if (metrics.isQueued()) {
+            log.info("job " + job.getId() + " queued, " + runningJobs() + " jobs running");
+        }
+        return job;
+    }
+
+    /**
+     * Cancels a queued or running job. A running job is interrupted and
+     * stops at its next row or write, a dispatched job whose thread has
+     * not started yet skips its task.
+     *
+     * @param id job id
+     * @return false if there is no such active job
+     */
+    public boolean cancel(String id) {
+        Job job;
+        boolean queued;
+        synchronized (this) {
+            job = active.get(id);
+            if (job == null) {
+                return false;
+            }
+            job.metrics.cancel();
+            queued = pending.remove(job);
+            if (queued) {
+                active.remove(id);
+            } else if (job.thread != null) {
+                job.thread.interrupt();
+            }
+        }
+        log.info("cancelling job " + id);
+        if (queued) {
+            finish(job, new CancellationException("cancelled while queued"));
+        }
+        return true;
+    }
+
+    /**
+     * @param id job id
+     * @return dump written by a completed asynchronous export, or null
+     */
+    public synchronized File getResult(String id) {
+        return results.get(id);
+    }
+
+    private synchronized int runningJobs() {
+        return runningJobs;
+    }
+
+    // guarded by this
+    private void dispatch() {
+        if (executor == null) {
+            // released, nothing starts any more
+            return;
+        }
+        for (Iterator<Job> it = pending.iterator(); it.hasNext() && (runningJobs < maxJobs);) {
+            Job job = it.next();
+            int count = clusterJobs.getOrDefault(job.clusterKey, 0);
+            if (count >= maxClusterJobs) {
+                continue;
+            }
+            it.remove();
+            clusterJobs.put(job.clusterKey, count + 1);
+            runningJobs++;
+            executor.execute(() -> run(job));
+        }
+    }
+
+    private void run(Job job) {
+        Throwable failure = null;
+        try {
+            synchronized (this) {
+                job.thread = Thread.currentThread();
+            }
+            if (job.metrics.isCancelled()) {
+                // cancelled between dispatch and start
+                failure = new CancellationException("cancelled before start");
+            } else {
+                job.metrics.start();
+                job.task.run(job.metrics);
+            }
+        } catch (IOException | RuntimeException ex) {
+            failure = ex;
+        } catch (Error ex) {
+            failure = ex;
+            throw ex;
+        } finally {
+            synchronized (this) {
+                job.thread = null;
+                runningJobs--;
+                int count = clusterJobs.get(job.clusterKey) - 1;
+                if (count == 0) {
+                    clusterJobs.remove(job.clusterKey);
+                } else {
+                    clusterJobs.put(job.clusterKey, count);
+                }
+                active.remove(job.getId());
+                dispatch();
+            }
+            // the interrupt of a cancel must not reach the next job on this thread
+            Thread.interrupted();
+            finish(job, failure);
+        }
+    }
+
+    private void finish(Job job, Throwable failure) {
+        if (job.metrics.isCancelled() && !(failure instanceof CancellationException)) {
+            // whatever the interrupt made the job fail with
+            CancellationException cancelled = new CancellationException("cancelled");
+            cancelled.initCause(failure);
+            failure = cancelled;
+        }
+        job.metrics.finish(failure);
+        if (failure == null) {
+            log.info("job " + job.getId() + " completed");
+        } else {
+            log.warn("job " + job.getId() + " " + job.metrics.getStatus() + ": " + failure);
+        }
+        List<File> expired = new ArrayList<>();
+        if (job.spool != null) {
+            expired.add(job.spool);
+        }
+        synchronized (this) {
+            if (job.result != null) {
+                if ((failure == null) && (executor != null)) {
+                    results.put(job.getId(), job.result);
+                } else {
+                    expired.add(job.result);
+                }
+            }
+            // dumps of jobs that dropped out of the status history
+            for (Iterator<Map.Entry<String, File>> it = results.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, File> result = it.next();
+                if (DumpMetrics.getInstance().getJob(result.getKey()) == null) {
+                    expired.add(result.getValue());
+                    it.remove();
+                }
+            }
+        }
+        for (File file : expired) {
+            deleteResult(file);
+        }
+        if (failure == null) {
+            job.done.complete(null);
+        } else {
+            job.done.completeExceptionally(failure);
+        }
+    }
+
+    private void deleteResult(File file) {
+        if (file.exists() && !file.delete()) {
+            log.warn("failed to delete job file " + file);
+        }
+    }
+
+}
@@ -0,0 +1,162 @@
+package cqldump;
+
+import com.codahale.metrics.MetricRegistry;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Metrics of one export or import request, with a {@link TableMetrics} per
+ * table. The metrics are registered under <code>cqldump.&lt;job id&gt;</code>
+ * until the job is dropped from the finished job history.
+ *
+ * @author theider
+ */
+public class JobMetrics {
+
+    private final MetricRegistry registry;
+    private final String id;
+    private final String type;
+    private final String keyspaceName;
+    private final long submitTime = System.currentTimeMillis();
+    private final Map<String, TableMetrics> tables = new ConcurrentHashMap<>();
+    private volatile long startTime;
+    private volatile long endTime;
+    private volatile String status = "queued";
+    private volatile String error;
+    private volatile Throttle throttle;
+    private volatile long expectedRows = -1;
+    private volatile boolean cancelled;
+
+    JobMetrics(MetricRegistry registry, String id, String type, String keyspaceName) {
+        this.registry = registry;
+        this.id = id;
+        this.type = type;
+        this.keyspaceName = keyspaceName;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public boolean isRunning() {
+        return endTime == 0;
+    }
+
+    public boolean isQueued() {
+        return startTime == 0;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    /**
+     * Marks a queued job as started.
+     */
+    public void start() {
+        startTime = System.currentTimeMillis();
+        if (endTime == 0) {
+            status = "running";
+        }
+    }
+
+    /**
+     * Marks the job as cancelled, it is reported as such when it finishes.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @param expectedRows rows the job is expected to handle, for progress
+     * and ETA, -1 if unknown
+     */
+    public void setExpectedRows(long expectedRows) {
+        this.expectedRows = expectedRows;
+    }
+
+    /**
+     * @param tableName table name
+     * @return metrics of the table, created on first use
+     */
+    public TableMetrics getTable(String tableName) {
+        return tables.computeIfAbsent(tableName,
+                name -> new TableMetrics(registry, MetricRegistry.name(getPrefix(), name), name));
+    }
+
+    /**
+     * @param throttle throttle of the job, reported while it runs
+     */
+    public void setThrottle(Throttle throttle) {
+        this.throttle = throttle;
+    }
+
+    String getPrefix() {
+        return MetricRegistry.name("cqldump", id);
+    }
+
+    /**
+     * Marks the job as finished.
+     *
+     * @param failure cause of a failed job, null if it succeeded
+     */
+    public void finish(Throwable failure) {
+        if (cancelled) {
+            status = "cancelled";
+        } else if (failure != null) {
+            status = "failed";
+            error = failure.toString();
+        } else {
+            status = "completed";
+        }
+        endTime = System.currentTimeMillis();
+        DumpMetrics.getInstance().finished(this);
+    }
+
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("id", id);
+        json.put("type", type);
+        json.put("keyspace", keyspaceName);
+        json.put("status", status);
+        json.put("error", error);
+        json.put("submit_time", submitTime);
+        long start = startTime;
+        long end = endTime;
+        json.put("start_time", (start == 0) ? null : start);
+        long elapsed = (start == 0) ? 0 : ((end == 0) ? System.currentTimeMillis() : end) - start;
+        json.put("elapsed_ms", elapsed);
+        long rows = 0;
+        long bytes = 0;
+        JSONArray tableArray = new JSONArray();
+        for (TableMetrics table : tables.values()) {
+            rows += table.getRowCount();
+            bytes += table.getByteCount();
+            tableArray.add(table.toJSON());
+        }
+        json.put("rows", rows);
+        json.put("bytes", bytes);
+        long expected = expectedRows;
+        if (expected >= 0) {
+            json.put("expected_rows", expected);
+            json.put("progress", (expected == 0) ? 1.0 : Math.min(1.0, (double) rows / expected));
+            // remaining rows at the mean rate so far
+            if ((end == 0) && (rows > 0) && (elapsed > 0)) {
+                json.put("eta_ms", Math.max(0, expected - rows) * elapsed / rows);
+            }
+        }
+        json.put("tables", tableArray);
+        Throttle current = throttle;
+        if ((current != null) && current.isActive()) {
+            json.put("throttle", current.toJSON());
+        }
+        return json;
+    }
+
+}
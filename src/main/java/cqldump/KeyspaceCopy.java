@@ -0,0 +1,343 @@
+package cqldump;
+
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.IndexMetadata;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.TableMetadata;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Copies a keyspace from one cluster to another, or to another keyspace of
+ * the same cluster, without a dump in between. Missing keyspaces, tables
+ * and indexes are created on the target from the source schema, then the
+ * tables are copied by {@link TableCopier}, a few at a time. The answer is
+ * a JSON summary of the rows copied per table; an asynchronous copy only
+ * returns its job.
+ *
+ * @author theider
+ */
+public class KeyspaceCopy extends HttpServlet {
+
+    private static final Logger log = Logger.getLogger(KeyspaceCopy.class);
+
+    /**
+     * Processes requests for both HTTP <code>GET</code> and <code>POST</code>
+     * methods.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    protected void processRequest(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String hostAddress = request.getParameter("host");
+        if(hostAddress == null) {
+            throw new ServletException("missing required host parameter");
+        }
+        String keyspaceName = request.getParameter("keyspace");
+        if(keyspaceName == null) {
+            throw new ServletException("missing required keyspaceName parameter");
+        }
+        String portText = request.getParameter("port");
+        if( (portText == null) || portText.isEmpty() ) {
+            portText = "9042";
+        }
+        int portNumber = Integer.parseInt(portText);
+        // the target defaults to a keyspace of the same name
+        String targetHostAddress = request.getParameter("targethost");
+        if( (targetHostAddress == null) || targetHostAddress.isEmpty() ) {
+            throw new ServletException("missing required targethost parameter");
+        }
+        String targetKeyspaceName = request.getParameter("targetkeyspace");
+        if( (targetKeyspaceName == null) || targetKeyspaceName.isEmpty() ) {
+            targetKeyspaceName = keyspaceName;
+        }
+        String targetPortText = request.getParameter("targetport");
+        if( (targetPortText == null) || targetPortText.isEmpty() ) {
+            targetPortText = "9042";
+        }
+        int targetPortNumber = Integer.parseInt(targetPortText);
+        // coordinating datacenter, routing, consistency and requests per host of both clusters
+        ConnectionOptions source;
+        ConnectionOptions target;
+        try {
+            source = ConnectionOptions.forParameters(hostAddress, portNumber, request.getParameter("dc"), request.getParameter("routing"),
+                    request.getParameter("consistency"), request.getParameter("connections"), request.getParameter("maxrequests"));
+            target = ConnectionOptions.forParameters(targetHostAddress, targetPortNumber, request.getParameter("targetdc"), request.getParameter("targetrouting"),
+                    request.getParameter("targetconsistency"), request.getParameter("targetconnections"), request.getParameter("targetmaxrequests"));
+        } catch (IllegalArgumentException ex) {
+            throw new ServletException("invalid connection options: " + ex.getMessage());
+        }
+        if (source.getHost().equals(target.getHost()) && (source.getPort() == target.getPort()) && keyspaceName.equals(targetKeyspaceName)) {
+            throw new ServletException("source and target are the same keyspace");
+        }
+        String replicationText = request.getParameter("replication");
+        if( (replicationText == null) || replicationText.isEmpty() ) {
+            replicationText = "1";
+        }
+        int replicationFactor = Integer.parseInt(replicationText);
+        // token sub-ranges per table and number of concurrent range scans
+        String splitsText = request.getParameter("splits");
+        if( (splitsText == null) || splitsText.isEmpty() ) {
+            splitsText = "1";
+        }
+        int splits = Integer.parseInt(splitsText);
+        String parallelismText = request.getParameter("parallelism");
+        if( (parallelismText == null) || parallelismText.isEmpty() ) {
+            parallelismText = "4";
+        }
+        int parallelism = Integer.parseInt(parallelismText);
+        // number of tables copied at the same time
+        String concurrencyText = request.getParameter("concurrency");
+        if( (concurrencyText == null) || concurrencyText.isEmpty() ) {
+            concurrencyText = "4";
+        }
+        int concurrency = Integer.parseInt(concurrencyText);
+        if ((splits < 1) || (parallelism < 1) || (concurrency < 1)) {
+            throw new ServletException("splits, parallelism and concurrency must be at least 1");
+        }
+        // writes in flight per table and rows per partition batch
+        String windowText = request.getParameter("window");
+        if( (windowText == null) || windowText.isEmpty() ) {
+            windowText = "64";
+        }
+        int writeWindow = Integer.parseInt(windowText);
+        String batchText = request.getParameter("batch");
+        if( (batchText == null) || batchText.isEmpty() ) {
+            batchText = "1";
+        }
+        int batchRows = Integer.parseInt(batchText);
+        if ((writeWindow < 1) || (batchRows < 1)) {
+            throw new ServletException("window and batch must be at least 1");
+        }
+        // rows/s and bytes/s caps, adaptive backs off when the target is loaded
+        Throttle throttle;
+        try {
+            throttle = Throttle.forParameters(request.getParameter("maxrows"), request.getParameter("maxbytes"),
+                    request.getParameter("adaptive"), request.getParameter("latency"));
+        } catch (IllegalArgumentException ex) {
+            throw new ServletException("invalid throttle: " + ex.getMessage());
+        }
+        // megabytes of rows the scans may hold, caps the page sizes
+        ScanPaging paging;
+        try {
+            paging = ScanPaging.forParameter(request.getParameter("fetchmemory"));
+        } catch (IllegalArgumentException ex) {
+            throw new ServletException("invalid fetch memory: " + ex.getMessage());
+        }
+        // optional subset: tables to include or exclude, columns per table,
+        // a token range and a list of partition keys
+        ExportSelection selection;
+        try {
+            selection = ExportSelection.forParameters(request.getParameter("tables"), request.getParameter("exclude"),
+                    request.getParameter("columns"), request.getParameter("tokens"), request.getParameter("keys"));
+        } catch (IllegalArgumentException ex) {
+            throw new ServletException(ex.getMessage());
+        }
+        boolean async = Boolean.parseBoolean(request.getParameter("async"));
+        String copyTargetKeyspace = targetKeyspaceName;
+        AtomicReference<JSONObject> summary = new AtomicReference<>();
+        JobManager.Job job = JobManager.getInstance().submit("copy", keyspaceName, source, null, metrics ->
+                summary.set(copyKeyspace(metrics, source, keyspaceName, target, copyTargetKeyspace, replicationFactor, splits, parallelism, concurrency,
+                        writeWindow, batchRows, throttle, paging, selection)));
+        response.setContentType("application/json;charset=UTF-8");
+        if (async) {
+            JSONObject accepted = new JSONObject();
+            accepted.put("job", job.getId());
+            accepted.put("status", "status?job=" + job.getId());
+            response.setStatus(HttpServletResponse.SC_ACCEPTED);
+            try (PrintWriter out = response.getWriter()) {
+                out.print(accepted.toJSONString());
+            }
+            return;
+        }
+        job.await();
+        response.setHeader("X-Cqldump-Job", job.getId());
+        try (PrintWriter out = response.getWriter()) {
+            out.print(summary.get().toJSONString());
+        }
+    }
+
+    private JSONObject copyKeyspace(JobMetrics job, ConnectionOptions source, String keyspaceName, ConnectionOptions target, String targetKeyspaceName, int replicationFactor, int splits, int parallelism, int concurrency, int writeWindow, int batchRows, Throttle throttle, ScanPaging paging, ExportSelection selection) throws IOException {
+        try (ClusterManager.Lease lease = ClusterManager.getInstance().acquire(source);
+                ClusterManager.Lease targetLease = ClusterManager.getInstance().acquire(target)) {
+            // writes are what a copy usually waits for
+            throttle.register(targetLease.getCluster());
+            job.setThrottle(throttle);
+            Metadata metadata = lease.getCluster().getMetadata();
+            log.info("Connected to source cluster: " + metadata.getClusterName() + ", target cluster: " + targetLease.getCluster().getMetadata().getClusterName());
+            checkProtocolVersions(lease, targetLease);
+            KeyspaceMetadata md = metadata.getKeyspace(keyspaceName);
+            if (md == null) {
+                throw new IOException("keyspace not found: " + keyspaceName);
+            }
+            List<TableMetadata> tables = selection.selectTables(md);
+            if (!selection.hasTokenRange() && !selection.hasPartitionKeys()) {
+                job.setExpectedRows(KeyspaceExport.estimateRows(lease.getSession(null), keyspaceName, tables));
+            }
+            KeyspaceImport.createKeyspace(targetLease, targetKeyspaceName, replicationFactor);
+            createTables(targetLease, keyspaceName, targetKeyspaceName, tables, selection);
+            Session session = lease.getSession(keyspaceName);
+            Session targetSession = targetLease.getSession(targetKeyspaceName);
+            Map<String, Long> rows = new ConcurrentHashMap<>();
+            List<Callable<Void>> tasks = new ArrayList<>();
+            ExecutorService scanPool = Executors.newFixedThreadPool(parallelism);
+            ExecutorService tablePool = Executors.newFixedThreadPool(concurrency);
+            try {
+                for (TableMetadata tmd : tables) {
+                    tasks.add(() -> {
+                        KeyspaceImport.TableMetadata targetMetadata = new KeyspaceImport.TableMetadata(Metadata.quoteIfNecessary(tmd.getName()));
+                        TableCopier copier = new TableCopier(session, metadata, tmd, scanPool, splits, throttle, paging, selection,
+                                targetSession, targetMetadata, writeWindow, batchRows, job.getTable(tmd.getName()));
+                        rows.put(tmd.getName(), copier.copy());
+                        return null;
+                    });
+                }
+                ParallelTasks.runAll(tablePool, tasks, "copying keyspace " + keyspaceName);
+            } finally {
+                tablePool.shutdownNow();
+                scanPool.shutdownNow();
+            }
+            log.info(" - completed copy of keyspace " + keyspaceName + " to " + targetKeyspaceName + ", copied " + tables.size() + " tables.");
+            JSONArray tablesArray = new JSONArray();
+            long total = 0;
+            for (TableMetadata tmd : tables) {
+                JSONObject table = new JSONObject();
+                table.put("table", tmd.getName());
+                table.put("rows", rows.get(tmd.getName()));
+                tablesArray.add(table);
+                total += rows.get(tmd.getName());
+            }
+            JSONObject json = new JSONObject();
+            json.put("job", job.getId());
+            json.put("keyspace", keyspaceName);
+            json.put("target_keyspace", targetKeyspaceName);
+            json.put("rows", total);
+            json.put("tables", tablesArray);
+            return json;
+        } finally {
+            throttle.release();
+        }
+    }
+
+    /**
+     * Cells are copied serialized, which needs the same collection encoding
+     * on both sides; it changed with protocol version 3.
+     */
+    private void checkProtocolVersions(ClusterManager.Lease lease, ClusterManager.Lease targetLease) throws IOException {
+        ProtocolVersion version = lease.getCluster().getConfiguration().getProtocolOptions().getProtocolVersion();
+        ProtocolVersion targetVersion = targetLease.getCluster().getConfiguration().getProtocolOptions().getProtocolVersion();
+        if ((version != targetVersion) && ((version.compareTo(ProtocolVersion.V3) < 0) || (targetVersion.compareTo(ProtocolVersion.V3) < 0))) {
+            throw new IOException("cannot copy between protocol versions " + version + " and " + targetVersion);
+        }
+    }
+
+    /**
+     * Creates the tables and their indexes that do not exist in the target
+     * keyspace yet, from the CQL of the source schema. Existing tables must
+     * have every copied column.
+     */
+    private void createTables(ClusterManager.Lease targetLease, String keyspaceName, String targetKeyspaceName, List<TableMetadata> tables, ExportSelection selection) throws IOException {
+        Session csession = targetLease.getSession(null);
+        String qualifier = Metadata.quoteIfNecessary(keyspaceName) + ".";
+        String targetQualifier = Metadata.quoteIfNecessary(targetKeyspaceName) + ".";
+        for (TableMetadata tmd : tables) {
+            KeyspaceMetadata targetKeyspace = targetLease.getCluster().getMetadata().getKeyspace(Metadata.quoteIfNecessary(targetKeyspaceName));
+            TableMetadata existing = (targetKeyspace == null) ? null : targetKeyspace.getTable(Metadata.quoteIfNecessary(tmd.getName()));
+            if (existing != null) {
+                for (ColumnMetadata cmd : selection.getColumns(tmd)) {
+                    if (existing.getColumn(Metadata.quoteIfNecessary(cmd.getName())) == null) {
+                        throw new IOException("column " + cmd.getName() + " of " + tmd.getName() + " not in the target table");
+                    }
+                }
+                continue;
+            }
+            // only the keyspace qualifier of the statements is replaced
+            String createText = tmd.asCQLQuery().replace(qualifier, targetQualifier);
+            log.info("create table " + tmd.getName() + " create:" + createText);
+            csession.execute(createText);
+            for (IndexMetadata index : tmd.getIndexes()) {
+                String createIndexText = index.asCQLQuery().replace(qualifier, targetQualifier);
+                log.debug(" -- create index " + createIndexText);
+                csession.execute(createIndexText);
+            }
+        }
+    }
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        ClusterManager.getInstance().register();
+        DumpMetrics.getInstance().register();
+        JobManager.getInstance().register(getServletContext().getInitParameter("max-jobs"),
+                getServletContext().getInitParameter("max-jobs-per-cluster"));
+    }
+
+    @Override
+    public void destroy() {
+        JobManager.getInstance().release();
+        DumpMetrics.getInstance().release();
+        ClusterManager.getInstance().release();
+        super.destroy();
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="HttpServlet methods. Click on the + sign on the left to edit the code.">
+    /**
+     * Handles the HTTP <code>GET</code> method.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        processRequest(request, response);
+    }
+
+    /**
+     * Handles the HTTP <code>POST</code> method.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        processRequest(request, response);
+    }
+
+    /**
+     * Returns a short description of the servlet.
+     *
+     * @return a String containing servlet description
+     */
+    @Override
+    public String getServletInfo() {
+        return "Copies a keyspace to another cluster";
+    }// </editor-fold>
+
+}
@@ -1,35 +1,35 @@
 package cqldump;
 
 import com.datastax.driver.core.Cluster;
-import com.datastax.driver.core.ColumnDefinitions.Definition;
 import com.datastax.driver.core.ColumnMetadata;
-import com.datastax.driver.core.DataType;
 import com.datastax.driver.core.Host;
 import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.Metadata;
-import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
-import com.datastax.driver.core.SimpleStatement;
-import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.TableMetadata;
-import com.datastax.driver.core.policies.DCAwareRoundRobinPolicy;
-import com.datastax.driver.core.policies.DefaultRetryPolicy;
-import com.datastax.driver.core.policies.TokenAwarePolicy;
+import com.datastax.driver.core.TokenRange;
+import com.datastax.driver.core.exceptions.DriverException;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Iterator;
-import java.util.TimeZone;
-import java.util.UUID;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.apache.commons.codec.binary.Base64;
 import org.apache.log4j.Logger;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -42,6 +42,8 @@ public class KeyspaceExport extends HttpServlet {
 
     private static final Logger log = Logger.getLogger(KeyspaceExport.class);
 
+    private static final int SPOOL_BUFFER_SIZE = 65536;
+
     /**
      * Processes requests for both HTTP <code>GET</code> and <code>POST</code>
      * methods.
@@ -66,119 +68,496 @@ public class KeyspaceExport extends HttpServlet {
             portText = "9042";
         }
         int portNumber = Integer.parseInt(portText);
-        Cluster cluster = Cluster.builder()
-                //.addContactPoint(config.getCassandraHostAddress())
-                .addContactPoint(hostAddress)
-                .withRetryPolicy(DefaultRetryPolicy.INSTANCE)
-                // port
-                .withPort(portNumber)
-                .build();
-        cluster.getConfiguration().getSocketOptions().setReadTimeoutMillis(60000);
-        Metadata metadata = cluster.getMetadata();
-        log.info("Connected to Cassandra cluster: " + metadata.getClusterName());
-        for (Host host : metadata.getAllHosts()) {
-            log.info(String.format("Datatacenter: %s; Host: %s; Rack: %s",
-                    host.getDatacenter(), host.getAddress(), host.getRack()));
-        }        
-        KeyspaceMetadata md = metadata.getKeyspace(keyspaceName);
-        if (md == null) {
-            throw new IOException("keyspace not found: " + keyspaceName);
-        }
-        response.setContentType("application/zip");
-        JSONObject mdObject = new JSONObject();
-        mdObject.put("keyspace", keyspaceName);
-        try (ZipOutputStream zout = new ZipOutputStream(response.getOutputStream())) {
-            log.info("export data from keyspace " + md.getName());
-            JSONArray tablesArray = new JSONArray();
-            for (TableMetadata tmd : md.getTables()) {
-                log.info("export table " + tmd.getName());
-                // make a JSON object for the description
-                JSONObject tableObject = new JSONObject();
-                tableObject.put("name", tmd.getName());
-                tableObject.put("create", tmd.asCQLQuery());
-                JSONArray columnsArray = new JSONArray();
-                for (ColumnMetadata cmd : tmd.getColumns()) {
-                    JSONObject columnObject = new JSONObject();
-                    columnObject.put("name", cmd.getName());
-                    String colName = cmd.getType().getName().toString();
-                    columnObject.put("type", colName);
-                    columnsArray.add(columnObject);
+        // coordinating datacenter, routing, consistency and requests per host
+        ConnectionOptions connection;
+        try {
+            connection = ConnectionOptions.forParameters(hostAddress, portNumber, request.getParameter("dc"), request.getParameter("routing"),
+                    request.getParameter("consistency"), request.getParameter("connections"), request.getParameter("maxrequests"));
+        } catch (IllegalArgumentException ex) {
+            throw new ServletException("invalid connection options: " + ex.getMessage());
+        }
+        // token sub-ranges per table and number of concurrent range scans
+        String splitsText = request.getParameter("splits");
+        if( (splitsText == null) || splitsText.isEmpty() ) {
+            splitsText = "1";
+        }
+        int splits = Integer.parseInt(splitsText);
+        String parallelismText = request.getParameter("parallelism");
+        if( (parallelismText == null) || parallelismText.isEmpty() ) {
+            parallelismText = "4";
+        }
+        int parallelism = Integer.parseInt(parallelismText);
+        // number of tables exported at the same time
+        String concurrencyText = request.getParameter("concurrency");
+        if( (concurrencyText == null) || concurrencyText.isEmpty() ) {
+            concurrencyText = "4";
+        }
+        int concurrency = Integer.parseInt(concurrencyText);
+        // json (default) or binary
+        DumpFormat format;
+        try {
+            format = DumpFormat.forName(request.getParameter("format"));
+        } catch (IllegalArgumentException ex) {
+            throw new ServletException(ex.getMessage());
+        }
+        // stored, deflate (default), parallel or lz4
+        DumpCompression compression;
+        try {
+            compression = DumpCompression.forName(request.getParameter("compression"));
+        } catch (IllegalArgumentException ex) {
+            throw new ServletException(ex.getMessage());
+        }
+        String levelText = request.getParameter("level");
+        if( (levelText == null) || levelText.isEmpty() ) {
+            levelText = Integer.toString(Deflater.DEFAULT_COMPRESSION);
+        }
+        int level = Integer.parseInt(levelText);
+        if ((level < Deflater.DEFAULT_COMPRESSION) || (level > Deflater.BEST_COMPRESSION)) {
+            throw new ServletException("invalid deflate level " + level);
+        }
+        // rows/s and bytes/s caps, adaptive backs off when the cluster is loaded
+        Throttle throttle;
+        try {
+            throttle = Throttle.forParameters(request.getParameter("maxrows"), request.getParameter("maxbytes"),
+                    request.getParameter("adaptive"), request.getParameter("latency"));
+        } catch (IllegalArgumentException ex) {
+            throw new ServletException("invalid throttle: " + ex.getMessage());
+        }
+        // megabytes of rows the scans may hold, caps the page sizes
+        ScanPaging paging;
+        try {
+            paging = ScanPaging.forParameter(request.getParameter("fetchmemory"));
+        } catch (IllegalArgumentException ex) {
+            throw new ServletException("invalid fetch memory: " + ex.getMessage());
+        }
+        // optional export name, a named export keeps per table checkpoints
+        // and a later request with the same name produces only the entries
+        // that were not delivered yet
+        String checkpointName = request.getParameter("checkpoint");
+        if( (checkpointName != null) && !checkpointName.isEmpty() && !checkpointName.matches("[A-Za-z0-9_-]+") ) {
+            throw new ServletException("invalid checkpoint name " + checkpointName);
+        }
+        // optional manifest name, the range digests of the export are kept
+        // under this name and a delta export only writes the token ranges
+        // that changed since the last export with the same name
+        String manifestName = request.getParameter("manifest");
+        if( (manifestName != null) && !manifestName.isEmpty() ) {
+            if (!manifestName.matches("[A-Za-z0-9_-]+")) {
+                throw new ServletException("invalid manifest name " + manifestName);
+            }
+            if ((checkpointName != null) && !checkpointName.isEmpty()) {
+                throw new ServletException("checkpoint and manifest cannot be combined");
+            }
+        } else {
+            manifestName = null;
+        }
+        // optional subset: tables to include or exclude, columns per table,
+        // a token range and a list of partition keys
+        ExportSelection selection;
+        try {
+            selection = ExportSelection.forParameters(request.getParameter("tables"), request.getParameter("exclude"),
+                    request.getParameter("columns"), request.getParameter("tokens"), request.getParameter("keys"));
+        } catch (IllegalArgumentException ex) {
+            throw new ServletException(ex.getMessage());
+        }
+        if (selection.hasPartitionKeys() && (((checkpointName != null) && !checkpointName.isEmpty()) || (manifestName != null))) {
+            throw new ServletException("partition keys cannot be combined with a checkpoint or manifest");
+        }
+        boolean delta = Boolean.parseBoolean(request.getParameter("delta"));
+        if (delta && (manifestName == null)) {
+            throw new ServletException("a delta export needs a manifest name");
+        }
+        // id from the manifest.json of the last dump the client received, the
+        // manifest of an export only becomes the base once a delta names it
+        String baseId = request.getParameter("base");
+        if (delta && ((baseId == null) || baseId.isEmpty())) {
+            throw new ServletException("a delta export needs the id of its base manifest");
+        }
+        // run as a background job whose dump is downloaded from the status
+        // servlet once it completes, instead of streaming the response
+        boolean async = Boolean.parseBoolean(request.getParameter("async"));
+        File spoolDirectory = (File) getServletContext().getAttribute("javax.servlet.context.tempdir");
+        String exportManifestName = manifestName;
+        if (async) {
+            File resultFile = File.createTempFile("cqldump-export-" + keyspaceName + "-", ".zip", spoolDirectory);
+            JobManager.Job job = JobManager.getInstance().submit("export", keyspaceName, connection, resultFile, metrics -> {
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(resultFile), SPOOL_BUFFER_SIZE)) {
+                    exportKeyspace(metrics, out, connection, keyspaceName, splits, parallelism, concurrency, format, compression, level,
+                            throttle, paging, checkpointName, exportManifestName, delta, baseId, selection, spoolDirectory);
+                }
+            });
+            JSONObject accepted = new JSONObject();
+            accepted.put("job", job.getId());
+            accepted.put("status", "status?job=" + job.getId());
+            accepted.put("download", "status?download=" + job.getId());
+            response.setStatus(HttpServletResponse.SC_ACCEPTED);
+            response.setContentType("application/json;charset=UTF-8");
+            try (PrintWriter out = response.getWriter()) {
+                out.print(accepted.toJSONString());
+            }
+            return;
+        }
+        JobManager.Job job = JobManager.getInstance().submit("export", keyspaceName, connection, null, metrics -> {
+            // set on the job thread before the first byte of the zip
+            response.setContentType("application/zip");
+            // lets the caller follow the job in the status servlet
+            response.setHeader("X-Cqldump-Job", metrics.getId());
+            exportKeyspace(metrics, response.getOutputStream(), connection, keyspaceName, splits, parallelism, concurrency, format, compression, level,
+                    throttle, paging, checkpointName, exportManifestName, delta, baseId, selection, spoolDirectory);
+        });
+        job.await();
+    }
+
+    private void exportKeyspace(JobMetrics job, OutputStream output, ConnectionOptions connection, String keyspaceName, int splits, int parallelism, int concurrency, DumpFormat format, DumpCompression compression, int level, Throttle throttle, ScanPaging paging, String checkpointName, String manifestName, boolean delta, String baseId, ExportSelection selection, File spoolDirectory) throws IOException {
+        try (ClusterManager.Lease lease = ClusterManager.getInstance().acquire(connection)) {
+            Cluster cluster = lease.getCluster();
+            throttle.register(cluster);
+            job.setThrottle(throttle);
+            Metadata metadata = cluster.getMetadata();
+            log.info("Connected to Cassandra cluster: " + metadata.getClusterName());
+            for (Host host : metadata.getAllHosts()) {
+                log.info(String.format("Datatacenter: %s; Host: %s; Rack: %s",
+                        host.getDatacenter(), host.getAddress(), host.getRack()));
+            }        
+            KeyspaceMetadata md = metadata.getKeyspace(keyspaceName);
+            if (md == null) {
+                throw new IOException("keyspace not found: " + keyspaceName);
+            }
+            List<TableMetadata> tables = selection.selectTables(md);
+            if (!selection.hasTokenRange() && !selection.hasPartitionKeys()) {
+                job.setExpectedRows(estimateRows(lease.getSession(null), keyspaceName, tables));
+            }
+            ExecutorService scanPool = Executors.newFixedThreadPool(parallelism);
+            ExecutorService tablePool = Executors.newFixedThreadPool(concurrency);
+            // blocks of all tables share the cores
+            ExecutorService compressPool = (compression == DumpCompression.PARALLEL)
+                    ? Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()) : null;
+            File checkpointDirectory = null;
+            if ((checkpointName != null) && !checkpointName.isEmpty()) {
+                checkpointDirectory = new File(spoolDirectory, "cqldump-checkpoint-" + keyspaceName + "-" + checkpointName);
+                if (!checkpointDirectory.isDirectory() && !checkpointDirectory.mkdirs()) {
+                    throw new IOException("cannot create checkpoint directory " + checkpointDirectory);
                 }
-                tableObject.put("columns", columnsArray);
-                tablesArray.add(tableObject);
-            }
-            mdObject.put("tables", tablesArray);
-            String mdText = mdObject.toJSONString();
-            ZipEntry ze = new ZipEntry(keyspaceName + "/metadata.json");
-            zout.putNextEntry(ze);
-            zout.write(mdText.getBytes());
-            // next query all records in each table
-            for (TableMetadata tmd : md.getTables()) {
-                log.info("export table " + tmd.getName());
-                try (Session hsession = cluster.connect(keyspaceName)) {
-                    ze = new ZipEntry(keyspaceName + "/" + tmd.getName() + ".json");
-                    zout.putNextEntry(ze);
-                    String tableName = tmd.getName();
-                    // content is a series of JSON objects with a 32 bit hex prefix indicating text size of record JSON                    
-                    Statement stmt = new SimpleStatement("SELECT * FROM " + tableName);
-                    log.info("exporting records from " + tableName);
-                    stmt.setFetchSize(1000);
-                    ResultSet rs = hsession.execute(stmt);
-                    Iterator<Row> iter = rs.iterator();
-                    int c = 0;
-                    while(iter.hasNext()) {
-                        Row row = iter.next();                        
-                        JSONObject rowObject = new JSONObject();
-                        JSONObject rowData = new JSONObject();
-                        for (Definition key : row.getColumnDefinitions().asList()) {
-                            Object o = row.getObject(key.getName());
-                            if(o == null) {
-                                rowData.put(key.getName(), null);
-                            } else if(key.getType() == DataType.timeuuid()) {
-                                UUID uuid = (UUID) o;
-                                String txt = uuid.toString();
-                                rowData.put(key.getName(), txt);
-                            } else if(key.getType() == DataType.uuid()) {
-                                UUID uuid = (UUID) o;
-                                String txt = uuid.toString();
-                                rowData.put(key.getName(), txt);
-                            } else if(key.getType() == DataType.blob()) {
-                                ByteBuffer buffer = (ByteBuffer) o;
-                                byte[] blobData = buffer.array();
-                                String blobBase64 = Base64.encodeBase64String(blobData);
-                                rowData.put(key.getName(), blobBase64);
-                            } else if(key.getType() == DataType.timestamp()) {
-                                SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-                                fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
-                                Date t = row.getTimestamp(key.getName());                                
-                                String text = fmt.format(t);
-                                rowData.put(key.getName(), text);
-                            } else {
-                                rowData.put(key.getName(), o.toString());
-                            }                            
+            }
+            File pendingManifestFile = null;
+            RangeManifest manifest = null;
+            if (manifestName != null) {
+                File manifestFile = new File(spoolDirectory, "cqldump-manifest-" + keyspaceName + "-" + manifestName + ".json");
+                pendingManifestFile = new File(spoolDirectory, "cqldump-manifest-" + keyspaceName + "-" + manifestName + ".pending.json");
+                List<String> rangeKeys = new ArrayList<>();
+                for (TokenRange range : selection.restrict(metadata, TableExporter.getRanges(metadata, splits))) {
+                    rangeKeys.add(TableExporter.getRangeKey(range));
+                }
+                String ring = RangeManifest.ringDigest(rangeKeys);
+                RangeManifest base = delta ? RangeManifest.loadBase(manifestFile, pendingManifestFile, baseId, format, ring) : null;
+                if (delta && (base == null)) {
+                    log.info("no " + format.getName() + " manifest " + manifestName + " yet, exporting all of " + keyspaceName);
+                }
+                manifest = new RangeManifest(keyspaceName, format, splits, ring, base);
+            }
+            RangeManifest tableManifest = manifest;
+            JSONObject mdObject = new JSONObject();
+            mdObject.put("keyspace", keyspaceName);
+            mdObject.put("format", format.getName());
+            mdObject.put("compression", compression.getName());
+            mdObject.put("delta", (manifest != null) && manifest.isDelta());
+            if (selection.toJSON() != null) {
+                mdObject.put("selection", selection.toJSON());
+            }
+            try (ZipWriter zout = new ZipWriter(output)) {
+                log.info("export data from keyspace " + md.getName());
+                JSONArray tablesArray = new JSONArray();
+                for (TableMetadata tmd : tables) {
+                    log.info("export table " + tmd.getName());
+                    // make a JSON object for the description
+                    JSONObject tableObject = new JSONObject();
+                    tableObject.put("name", tmd.getName());
+                    tableObject.put("create", tmd.asCQLQuery());
+                    JSONArray columnsArray = new JSONArray();
+                    JSONArray columnOrder = new JSONArray();
+                    for (ColumnMetadata cmd : selection.getColumns(tmd)) {
+                        JSONObject columnObject = new JSONObject();
+                        columnObject.put("name", cmd.getName());
+                        String colName = cmd.getType().getName().toString();
+                        columnObject.put("type", colName);
+                        columnsArray.add(columnObject);
+                        columnOrder.add(cmd.getName());
+                    }
+                    tableObject.put("columns", columnsArray);
+                    if (format == DumpFormat.BINARY) {
+                        // binary rows are cells in this order without names
+                        tableObject.put("column_order", columnOrder);
+                    }
+                    tablesArray.add(tableObject);
+                }
+                mdObject.put("tables", tablesArray);
+                String mdText = mdObject.toJSONString();
+                zout.write(keyspaceName + "/metadata.json", mdText.getBytes());
+                // next query all records in each table, each table is spooled
+                // concurrently and copied into the zip as soon as it completes
+                CompletionService<TableSpool> completion = new ExecutorCompletionService<>(tablePool);
+                List<Future<TableSpool>> futures = new ArrayList<>();
+                DumpIndex dumpIndex = new DumpIndex();
+                for (TableMetadata tmd : tables) {
+                    ExportCheckpoint checkpoint = null;
+                    if (checkpointDirectory != null) {
+                        checkpoint = ExportCheckpoint.load(checkpointDirectory, tmd.getName(), format, splits);
+                        if (checkpoint.isComplete()) {
+                            log.info("skipping table " + tmd.getName() + ", exported by an earlier request");
+                            continue;
                         }
-                        rowObject.put("data", rowData);
-                        rowObject.put("table_name", tableName);
-                        byte[] textData = rowObject.toJSONString().getBytes();
-                        String sizeHex = String.format("\r\n%8s", Integer.toHexString(textData.length));
-                        zout.write(sizeHex.getBytes());
-                        zout.write(textData);
-                        if((c % 1000) == 0) {
-                            log.info(" ... exported " + c + " rows");
+                    }
+                    ExportCheckpoint tableCheckpoint = checkpoint;
+                    futures.add(completion.submit(() -> packTable(spoolTable(lease, keyspaceName, tmd, scanPool, splits, format, spoolDirectory, tableCheckpoint, throttle, paging, tableManifest, selection, job.getTable(tmd.getName())), compression, level, compressPool, spoolDirectory, job.getTable(tmd.getName()))));
+                }
+                try {
+                    for (int t = 0; t < futures.size(); t++) {
+                        TableSpool spool = completion.take().get();
+                        try {
+                            if ((manifest != null) && manifest.isDelta()) {
+                                // import clears the changed ranges before it writes their rows
+                                if (manifest.getChangedRanges(spool.getTableName()).isEmpty()) {
+                                    log.info("table " + spool.getTableName() + " unchanged");
+                                    continue;
+                                }
+                                zout.write(keyspaceName + "/" + spool.getTableName() + ".ranges.json",
+                                        manifest.toRangesJSON(spool.getTableName()).toJSONString().getBytes(StandardCharsets.UTF_8));
+                            }
+                            long start = System.nanoTime();
+                            String entryName = format.getEntryName(keyspaceName, spool.getTableName()) + compression.getEntrySuffix();
+                            zout.write(entryName, spool.getEntry());
+                            spool.getIndex().setEntry(entryName, spool.getRows(), spool.getEntry().getSize(), spool.getEntry().getCompressedSize());
+                            dumpIndex.add(spool.getIndex());
+                            TableMetrics tableMetrics = job.getTable(spool.getTableName());
+                            tableMetrics.addIoTime(System.nanoTime() - start);
+                            tableMetrics.addCompressedBytes(spool.getEntry().getCompressedSize());
+                            log.info("added table " + spool.getTableName() + " to output zip");
+                            if (spool.getCheckpoint() != null) {
+                                zout.flush();
+                                spool.getCheckpoint().markComplete();
+                            }
+                        } finally {
+                            spool.delete();
                         }
-                        c++;
                     }
-                    log.info(" -- exported " + c + " records from table " + tableName);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted exporting keyspace " + keyspaceName, ex);
+                } catch (ExecutionException ex) {
+                    throw new IOException("failed to export keyspace " + keyspaceName, ex.getCause());
+                } finally {
+                    for (Future<TableSpool> future : futures) {
+                        future.cancel(true);
+                        discardSpool(future);
+                    }
+                }
+
+                // sizes and row blocks of the table entries for random access imports
+                zout.write(keyspaceName + "/index.json", dumpIndex.toJSON().toJSONString().getBytes(StandardCharsets.UTF_8));
+                if (manifest != null) {
+                    zout.write(keyspaceName + "/manifest.json", manifest.toJSON().toJSONString().getBytes(StandardCharsets.UTF_8));
+                }
+                zout.finish();
+                zout.close();
+                if (checkpointDirectory != null) {
+                    deleteCheckpoints(checkpointDirectory);
+                }
+                if (manifest != null) {
+                    // pending until a delta names it, the dump may not arrive
+                    manifest.save(pendingManifestFile);
+                    log.info("manifest " + manifest.getId() + " of " + keyspaceName + " is pending");
+                }
+
+                log.info("done writing table data to output zip");
+            } finally {
+                tablePool.shutdownNow();
+                scanPool.shutdownNow();
+                if (compressPool != null) {
+                    compressPool.shutdownNow();
                 }
             }
+        } finally {
+            throttle.release();
+        }
+    }
 
-            zout.finish();
-            zout.close();
+    /**
+     * Sums the partition estimates of the tables, the node local estimates
+     * of the contacted node stand in for row counts in the job's ETA.
+     *
+     * @return estimated rows, -1 if there are no estimates
+     */
+    static long estimateRows(Session session, String keyspaceName, List<TableMetadata> tables) {
+        long rows = 0;
+        try {
+            for (TableMetadata tmd : tables) {
+                for (Row row : session.execute("SELECT partitions_count FROM system.size_estimates WHERE keyspace_name=? AND table_name=?",
+                        keyspaceName, tmd.getName())) {
+                    rows += row.getLong(0);
+                }
+            }
+        } catch (DriverException ex) {
+            log.debug("no size estimates for " + keyspaceName + ": " + ex);
+            return -1;
+        }
+        return (rows > 0) ? rows : -1;
+    }
+
+    /**
+     * Table records spooled to a temporary file, or to the checkpoint spool
+     * file of a named export, and the zip entry content packed from them.
+     */
+    private static class TableSpool {
+        private final String tableName;
+        private final File file;
+        private final ExportCheckpoint checkpoint;
+        private final long rows;
+        private final DumpIndex.TableIndex index;
+        private ZipWriter.EntryData entry;
+
+        public TableSpool(String tableName, File file, ExportCheckpoint checkpoint, long rows, DumpIndex.TableIndex index) {
+            this.tableName = tableName;
+            this.file = file;
+            this.checkpoint = checkpoint;
+            this.rows = rows;
+            this.index = index;
+        }
+
+        public String getTableName() {
+            return tableName;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public ExportCheckpoint getCheckpoint() {
+            return checkpoint;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public DumpIndex.TableIndex getIndex() {
+            return index;
+        }
+
+        public ZipWriter.EntryData getEntry() {
+            return entry;
+        }
+
+        public void setEntry(ZipWriter.EntryData entry) {
+            this.entry = entry;
+        }
+
+        public void delete() {
+            if (entry != null) {
+                entry.delete();
+            }
+            // a checkpoint spool is kept until its entry has been delivered
+            if ((checkpoint != null) && !checkpoint.isComplete()) {
+                return;
+            }
+            if (!file.delete()) {
+                log.warn("failed to delete spool file " + file);
+            }
+        }
+    }
 
-            log.info("done writing table data to output zip");
+    private TableSpool spoolTable(ClusterManager.Lease lease, String keyspaceName, TableMetadata tmd, ExecutorService scanPool, int splits, DumpFormat format, File spoolDirectory, ExportCheckpoint checkpoint, Throttle throttle, ScanPaging paging, RangeManifest manifest, ExportSelection selection, TableMetrics tableMetrics) throws IOException {
+        File file;
+        if (checkpoint == null) {
+            file = File.createTempFile("cqldump-" + tmd.getName() + "-", ".spool", spoolDirectory);
+        } else {
+            file = checkpoint.getSpoolFile();
+            if (checkpoint.isSpooled()) {
+                log.info("table " + tmd.getName() + " already spooled, " + checkpoint.getRowCount() + " rows");
+                // the row blocks of an earlier request are not known, the index has a single block
+                return new TableSpool(tmd.getName(), file, checkpoint, checkpoint.getRowCount(), new DumpIndex.TableIndex(tmd.getName()));
+            }
+            // drop whatever was written after the last checkpoint and the
+            // rows of the ranges that are scanned again
+            checkpoint.truncateSpool();
+        }
+        log.info("export table " + tmd.getName());
+        Session hsession = lease.getSession(keyspaceName);
+        TableExporter exporter;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file, checkpoint != null), SPOOL_BUFFER_SIZE)) {
+            // content is a series of JSON objects with a 32 bit hex prefix indicating text size of record JSON,
+            // or length prefixed binary rows
+            exporter = new TableExporter(hsession, lease.getCluster().getMetadata(), tmd, scanPool, splits, format, checkpoint, throttle, paging, manifest, selection, tableMetrics);
+            exporter.export(out);
+            if (checkpoint != null) {
+                out.flush();
+                checkpoint.markSpooled(exporter.getRowsWritten(), file.length());
+            }
+        } catch (IOException | RuntimeException ex) {
+            if ((checkpoint == null) && !file.delete()) {
+                log.warn("failed to delete spool file " + file);
+            }
+            throw ex;
+        }
+        return new TableSpool(tmd.getName(), file, checkpoint, exporter.getRowsWritten(), exporter.getBlockIndex());
+    }
+
+    private TableSpool packTable(TableSpool spool, DumpCompression compression, int level, ExecutorService compressPool, File spoolDirectory, TableMetrics tableMetrics) throws IOException {
+        long start = System.nanoTime();
+        try {
+            spool.setEntry(compression.pack(spool.getFile(), spoolDirectory, level, compressPool));
+        } catch (IOException | RuntimeException ex) {
+            spool.delete();
+            throw ex;
+        }
+        tableMetrics.addCodecTime(System.nanoTime() - start);
+        return spool;
+    }
+
+    private void discardSpool(Future<TableSpool> future) {
+        // spools of tables that completed after the export failed
+        if (future.isDone() && !future.isCancelled()) {
+            try {
+                TableSpool spool = future.get();
+                if (spool.getFile().exists()) {
+                    spool.delete();
+                }
+            } catch (InterruptedException | ExecutionException ex) {
+                // nothing was spooled
+            }
         }
     }
 
+    private void deleteCheckpoints(File checkpointDirectory) {
+        File[] files = checkpointDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    log.warn("failed to delete checkpoint file " + file);
+                }
+            }
+        }
+        if (!checkpointDirectory.delete()) {
+            log.warn("failed to delete checkpoint directory " + checkpointDirectory);
+        }
+    }
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        ClusterManager.getInstance().register();
+        DumpMetrics.getInstance().register();
+        JobManager.getInstance().register(getServletContext().getInitParameter("max-jobs"),
+                getServletContext().getInitParameter("max-jobs-per-cluster"));
+    }
+
+    @Override
+    public void destroy() {
+        JobManager.getInstance().release();
+        DumpMetrics.getInstance().release();
+        ClusterManager.getInstance().release();
+        super.destroy();
+    }
+
     // <editor-fold defaultstate="collapsed" desc="HttpServlet methods. Click on the + sign on the left to edit the code.">
     /**
      * Handles the HTTP <code>GET</code> method.
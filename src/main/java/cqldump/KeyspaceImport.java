@@ -1,39 +1,47 @@
 package cqldump;
 
 import com.datastax.driver.core.BoundStatement;
-import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
 import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.ColumnMetadata;
 import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
-import com.datastax.driver.core.policies.DefaultRetryPolicy;
+import com.datastax.driver.core.VersionNumber;
+import com.google.common.io.ByteStreams;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
-import java.nio.ByteBuffer;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.TimeZone;
-import java.util.UUID;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
-import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.fileupload.FileItem;
-import org.apache.commons.fileupload.disk.DiskFileItemFactory;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
 import org.apache.log4j.Logger;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -47,6 +55,12 @@ public class KeyspaceImport extends HttpServlet {
 
     private static final Logger log = Logger.getLogger(KeyspaceImport.class);
 
+    // resend attempts for a failed insert before it is reported
+    static final int WRITE_RETRIES = 3;
+
+    // directory of dumps that can be imported by name, null if not configured
+    private File dumpDirectory;
+
     /**
      * Processes requests for both HTTP <code>GET</code> and <code>POST</code>
      * methods.
@@ -60,70 +74,105 @@ public class KeyspaceImport extends HttpServlet {
             throws ServletException, IOException {
         response.setContentType("text/html;charset=UTF-8");
 
-        DiskFileItemFactory factory = new DiskFileItemFactory();
-
-        ServletContext servletContext = this.getServletConfig().getServletContext();
-        File repository = (File) servletContext.getAttribute("javax.servlet.context.tempdir");
-        factory.setRepository(repository);
-
-        ServletFileUpload upload = new ServletFileUpload(factory);
-        String hostName = null;
-        String portText = null;
-        String keyspaceName = null;
-        String replicationFactorText = null;
+        // the upload is read as it arrives instead of being stored in the
+        // temp directory first, so the form fields have to come before the
+        // zip file part
+        ServletFileUpload upload = new ServletFileUpload();
+        Map<String, String> fields = new HashMap<>();
+        List<JobManager.Job> jobs = new ArrayList<>();
+        boolean async = false;
+        Throwable failure = null;
         try {
-            // Parse the request
-            List<FileItem> items = upload.parseRequest(request);
-            for (FileItem item : items) {
-                log.debug("item:" + item + " size=" + item.getSize());
+            FileItemIterator items = upload.getItemIterator(request);
+            while (items.hasNext()) {
+                FileItemStream item = items.next();
+                log.debug("item:" + item.getFieldName());
                 if (item.isFormField()) {
-                    switch (item.getFieldName()) {
-                        case "host":
-                            hostName = item.getString();
-                            log.debug("host:" + hostName);
-                            break;
-                        case "port":
-                            portText = item.getString();
-                            log.debug("port:" + portText);
-                            break;
-                        case "keyspace":
-                            keyspaceName = item.getString();
-                            log.debug("keyspace:" + keyspaceName);
-                            break;
-                        case "replication":
-                            replicationFactorText = item.getString();
-                            log.debug("replication:" + replicationFactorText);
-                            break;
+                    String value;
+                    try (InputStream in = item.openStream()) {
+                        value = Streams.asString(in, "UTF-8");
                     }
+                    log.debug(item.getFieldName() + ":" + value);
+                    fields.put(item.getFieldName(), value);
+                    continue;
                 }
-            }
-            if (hostName == null) {
-                throw new ServletException("missing required host parameter");
-            }
-            if (keyspaceName == null) {
-                throw new ServletException("missing required keyspaceName parameter");
-            }
-            if ((portText == null) || portText.isEmpty()) {
-                portText = "9042";
-            }
-            int portNumber = Integer.parseInt(portText);
-            if ((replicationFactorText == null) || replicationFactorText.isEmpty()) {
-                replicationFactorText = "1";
-            }
-            int replicationFactor = Integer.parseInt(replicationFactorText);
-
-            for (FileItem item : items) {
-                log.debug("item:" + item + " size=" + item.getSize());
                 String itemName = item.getName();
-                if ((itemName != null) && itemName.endsWith(".zip")) {
-                    log.debug("found zip item " + itemName);
-                    importKeyspace(item.getInputStream(), hostName, portNumber, keyspaceName, replicationFactor);
+                if ((itemName == null) || !itemName.endsWith(".zip")) {
+                    continue;
+                }
+                log.debug("found zip item " + itemName);
+                ImportOptions options = new ImportOptions(fields);
+                async = options.async;
+                if (options.isRandomAccess() || async) {
+                    // selected tables and blocks, parallel workers and
+                    // background jobs read from a random access copy
+                    File spoolDirectory = (File) getServletContext().getAttribute("javax.servlet.context.tempdir");
+                    File file = File.createTempFile("cqldump-import-", ".zip", spoolDirectory);
+                    try (InputStream in = item.openStream()) {
+                        Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    } catch (IOException ex) {
+                        deleteImportFile(file);
+                        throw ex;
+                    }
+                    // the job deletes the copy when it finishes, even if it never starts
+                    JobManager.Job job = JobManager.getInstance().submit("import", options.keyspaceName, options.getConnection(), null, file,
+                            metrics -> importFile(file, options, metrics));
+                    jobs.add(job);
+                    if (!async) {
+                        job.await();
+                    }
+                } else {
+                    // the upload can only be read while this request waits
+                    try (InputStream in = item.openStream()) {
+                        JobManager.Job job = JobManager.getInstance().submit("import", options.keyspaceName, options.getConnection(), null,
+                                metrics -> importKeyspace(in, options, metrics));
+                        jobs.add(job);
+                        job.await();
+                    }
+                }
+            }
+            String dumpName = fields.get("dump");
+            if (jobs.isEmpty() && (dumpName != null) && !dumpName.isEmpty()) {
+                // a dump that is already on the server
+                ImportOptions options = new ImportOptions(fields);
+                async = options.async;
+                File file = getDumpFile(dumpName);
+                JobManager.Job job = JobManager.getInstance().submit("import", options.keyspaceName, options.getConnection(), null,
+                        metrics -> importFile(file, options, metrics));
+                jobs.add(job);
+                if (!async) {
+                    job.await();
                 }
             }
+            if (jobs.isEmpty()) {
+                throw new ServletException("request contained no zip file to import");
+            }
         } catch (Exception ex) {
             log.error(ex, ex);
+            failure = ex;
         }
 
+        if (async && (failure == null)) {
+            JSONArray accepted = new JSONArray();
+            for (JobManager.Job job : jobs) {
+                JSONObject jobObject = new JSONObject();
+                jobObject.put("job", job.getId());
+                jobObject.put("status", "status?job=" + job.getId());
+                accepted.add(jobObject);
+            }
+            JSONObject json = new JSONObject();
+            json.put("jobs", accepted);
+            response.setStatus(HttpServletResponse.SC_ACCEPTED);
+            response.setContentType("application/json;charset=UTF-8");
+            try (PrintWriter out = response.getWriter()) {
+                out.print(json.toJSONString());
+            }
+            return;
+        }
+        if (failure != null) {
+            response.setStatus((failure instanceof ServletException) ? HttpServletResponse.SC_BAD_REQUEST
+                    : HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
         try (PrintWriter out = response.getWriter()) {
             /* TODO output your page here. You may use following sample code. */
             out.println("<!DOCTYPE html>");
@@ -132,12 +181,195 @@ public class KeyspaceImport extends HttpServlet {
             out.println("<title>Import</title>");
             out.println("</head>");
             out.println("<body>");
-            out.println("Keyspace import complete");
+            if (failure == null) {
+                out.println("Keyspace import complete");
+            } else {
+                out.println("Keyspace import failed: " + escapeHtml(String.valueOf(failure.getMessage())));
+            }
+            for (JobManager.Job job : jobs) {
+                out.println("<br/><a href=\"status?job=" + job.getId() + "\">" + job.getId() + "</a>");
+            }
             out.println("</body>");
             out.println("</html>");
         }
     }
 
+    private static String escapeHtml(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private void deleteImportFile(File file) {
+        if (!file.delete()) {
+            log.warn("failed to delete import file " + file);
+        }
+    }
+
+    /**
+     * Form fields of an import request.
+     */
+    private static class ImportOptions {
+        private final String hostName;
+        private final int portNumber;
+        private final ConnectionOptions connection;
+        private final String keyspaceName;
+        private final int replicationFactor;
+        private final int writeWindow;
+        private final int batchRows;
+        private final Throttle throttle;
+        private final int threads;
+        private final Set<String> tables = new LinkedHashSet<>();
+        // first and last block of a block restore, last is -1 up to the end
+        private int firstBlock = -1;
+        private int lastBlock = -1;
+        // submit the import and answer with its job id at once
+        private final boolean async;
+
+        ImportOptions(Map<String, String> fields) throws ServletException {
+            hostName = fields.get("host");
+            if (hostName == null) {
+                throw new ServletException("missing required host parameter before the import file");
+            }
+            keyspaceName = fields.get("keyspace");
+            if (keyspaceName == null) {
+                throw new ServletException("missing required keyspaceName parameter before the import file");
+            }
+            String portText = fields.get("port");
+            if ((portText == null) || portText.isEmpty()) {
+                portText = "9042";
+            }
+            portNumber = Integer.parseInt(portText);
+            // coordinating datacenter, routing, consistency and requests per host
+            try {
+                connection = ConnectionOptions.forParameters(hostName, portNumber, fields.get("dc"), fields.get("routing"),
+                        fields.get("consistency"), fields.get("connections"), fields.get("maxrequests"));
+            } catch (IllegalArgumentException ex) {
+                throw new ServletException("invalid connection options: " + ex.getMessage());
+            }
+            String replicationFactorText = fields.get("replication");
+            if ((replicationFactorText == null) || replicationFactorText.isEmpty()) {
+                replicationFactorText = "1";
+            }
+            replicationFactor = Integer.parseInt(replicationFactorText);
+            String windowText = fields.get("window");
+            if ((windowText == null) || windowText.isEmpty()) {
+                windowText = "64";
+            }
+            writeWindow = Integer.parseInt(windowText);
+            // rows of one partition sent as a single UNLOGGED batch, 1 for plain inserts
+            String batchText = fields.get("batch");
+            if ((batchText == null) || batchText.isEmpty()) {
+                batchText = "1";
+            }
+            batchRows = Integer.parseInt(batchText);
+            // rows/s and bytes/s caps, adaptive backs off when the cluster is loaded
+            try {
+                throttle = Throttle.forParameters(fields.get("maxrows"), fields.get("maxbytes"), fields.get("adaptive"), fields.get("latency"));
+            } catch (IllegalArgumentException ex) {
+                throw new ServletException("invalid throttle: " + ex.getMessage());
+            }
+            async = Boolean.parseBoolean(fields.get("async"));
+            // workers loading tables and parts of tables at the same time
+            String threadsText = fields.get("threads");
+            if ((threadsText == null) || threadsText.isEmpty()) {
+                threadsText = "1";
+            }
+            threads = Integer.parseInt(threadsText);
+            if (threads < 1) {
+                throw new ServletException("threads must be at least 1");
+            }
+            // tables to restore, comma separated, empty for all
+            String tablesText = fields.get("tables");
+            if (tablesText != null) {
+                for (String tableName : tablesText.split(",")) {
+                    if (!tableName.trim().isEmpty()) {
+                        tables.add(tableName.trim());
+                    }
+                }
+            }
+            // row blocks of the index to restore: n, n-m or n-
+            String blockText = fields.get("block");
+            if ((blockText != null) && !blockText.trim().isEmpty()) {
+                if (tables.size() != 1) {
+                    throw new ServletException("a block restore needs exactly one table");
+                }
+                try {
+                    String[] bounds = blockText.trim().split("-", -1);
+                    firstBlock = Integer.parseInt(bounds[0].trim());
+                    if (bounds.length == 1) {
+                        lastBlock = firstBlock;
+                    } else if (!bounds[1].trim().isEmpty()) {
+                        lastBlock = Integer.parseInt(bounds[1].trim());
+                    }
+                } catch (NumberFormatException ex) {
+                    throw new ServletException("invalid block range " + blockText);
+                }
+                if ((firstBlock < 0) || ((lastBlock >= 0) && (lastBlock < firstBlock))) {
+                    throw new ServletException("invalid block range " + blockText);
+                }
+            }
+        }
+
+        /**
+         * @return true if only some tables or blocks are restored, or the
+         * import runs on several workers
+         */
+        boolean isRandomAccess() {
+            return !tables.isEmpty() || (threads > 1);
+        }
+
+        ConnectionOptions getConnection() {
+            return connection;
+        }
+
+        boolean isSelected(String tableName) {
+            return tables.isEmpty() || tables.contains(tableName);
+        }
+
+        boolean hasBlocks() {
+            return firstBlock >= 0;
+        }
+    }
+
+    /**
+     * Resolves a dump already on the server, which has to be in the
+     * directory named by the dump-directory init parameter.
+     *
+     * @param dumpName file name of the dump
+     * @return dump file
+     * @throws IOException if there is no such dump
+     */
+    private File getDumpFile(String dumpName) throws IOException {
+        if (dumpDirectory == null) {
+            throw new IOException("no dump-directory configured for server side dumps");
+        }
+        File file = new File(dumpDirectory, dumpName).getCanonicalFile();
+        if (!dumpDirectory.getCanonicalFile().equals(file.getParentFile()) || !file.isFile()) {
+            throw new IOException("dump not found: " + dumpName);
+        }
+        return file;
+    }
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        String dumpDirectoryText = getInitParameter("dump-directory");
+        if ((dumpDirectoryText != null) && !dumpDirectoryText.isEmpty()) {
+            dumpDirectory = new File(dumpDirectoryText);
+        }
+        ClusterManager.getInstance().register();
+        DumpMetrics.getInstance().register();
+        JobManager.getInstance().register(getServletContext().getInitParameter("max-jobs"),
+                getServletContext().getInitParameter("max-jobs-per-cluster"));
+    }
+
+    @Override
+    public void destroy() {
+        JobManager.getInstance().release();
+        DumpMetrics.getInstance().release();
+        ClusterManager.getInstance().release();
+        super.destroy();
+    }
+
     // <editor-fold defaultstate="collapsed" desc="HttpServlet methods. Click on the + sign on the left to edit the code.">
     /**
      * Handles the HTTP <code>GET</code> method.
@@ -177,10 +409,9 @@ public class KeyspaceImport extends HttpServlet {
         return "Short description";
     }// </editor-fold>
 
-    private void importKeyspace(InputStream inputStream, String hostName, int portNumber, String keyspaceName, int replicationFactor) throws IOException {
+    private void importKeyspace(InputStream inputStream, ImportOptions options, JobMetrics job) throws IOException {
         ZipInputStream zin = new ZipInputStream(inputStream);
         // find metadata entry
-        Cluster cluster;
         ZipEntry zipEntry = zin.getNextEntry();
         if (zipEntry != null) {
             String entryName = zipEntry.getName();
@@ -188,57 +419,314 @@ public class KeyspaceImport extends HttpServlet {
             if (!entryName.endsWith("metadata.json")) {
                 throw new IOException("expecting first entry to be METADATA.JSON");
             }
-            // process metadata
-            cluster = getCluster(hostName, portNumber, keyspaceName, replicationFactor);
-            // read into JSON block
-            Map<String, TableMetadata> tableMetadata = loadMetadata(zin, cluster, keyspaceName);
-            // process entries
-            int t = 0;
-            do {
-                zipEntry = zin.getNextEntry();
-                if (zipEntry != null) {
-                    entryName = zipEntry.getName();
-                    log.debug("processing entry " + entryName);                    
-                    loadTableData(zin, cluster, keyspaceName, tableMetadata);
+            String keyspaceName = options.keyspaceName;
+            Throttle throttle = options.throttle;
+            try (ClusterManager.Lease lease = ClusterManager.getInstance().acquire(options.getConnection())) {
+                throttle.register(lease.getCluster());
+                job.setThrottle(throttle);
+                // process metadata
+                createKeyspace(lease, keyspaceName, options.replicationFactor);
+                // read into JSON block
+                Map<String, TableMetadata> tableMetadata = loadMetadata(zin, lease.getSession(null), keyspaceName);
+                Session csession = lease.getSession(keyspaceName);
+                // process entries
+                int t = 0;
+                do {
+                    zipEntry = zin.getNextEntry();
+                    if (zipEntry != null) {
+                        entryName = zipEntry.getName();
+                        log.debug("processing entry " + entryName);
+                        if (entryName.endsWith("/manifest.json") || entryName.endsWith("/index.json")) {
+                            // range digests for the next delta export and the
+                            // random access index, nothing to import
+                            log.debug("skipping " + entryName);
+                        } else if (entryName.endsWith(".ranges.json")) {
+                            // a delta dump lists the token ranges it replaces before the table entry
+                            JSONObject ranges = (JSONObject) JSONValue.parse(getJSONData(zin));
+                            String tableName = (String) ranges.get("table");
+                            clearRanges(lease, csession, keyspaceName, tableName, (JSONArray) ranges.get("changed"), options.writeWindow, throttle, job.getTable(tableName));
+                        } else {
+                            // stored and deflated entries are read by the zip stream,
+                            // LZ4 entries are unpacked here
+                            DumpCompression compression = DumpCompression.forEntryName(entryName);
+                            InputStream entryStream = compression.newEntryInputStream(zin);
+                            entryName = compression.stripEntrySuffix(entryName);
+                            TableMetrics tableMetrics = job.getTable(DumpFormat.getTableName(entryName));
+                            loadEntry(entryStream, entryName, csession, keyspaceName, tableMetadata, options, tableMetrics);
+                            // sizes are known once the entry has been read to its end
+                            if (zipEntry.getCompressedSize() >= 0) {
+                                tableMetrics.addCompressedBytes(zipEntry.getCompressedSize());
+                            }
+                            t++;
+                        }
+                    }
+                } while (zipEntry != null);
+                log.info(" - completed import of keyspace " + keyspaceName + " imported " + t + " tables.");
+            } finally {
+                throttle.release();
+            }
+        }
+    }
+
+    /**
+     * Imports from a dump file opened for random access. Only the selected
+     * tables are read; for a block restore the entries are read from the
+     * start of the first block up to the end of the last one, found in the
+     * dump's index. A block restore writes rows over the existing ones and
+     * leaves the changed ranges of a delta dump as they are.
+     * <p>
+     * Tables are loaded on a pool of the requested number of workers. An
+     * entry with more than one block in the index is split into up to that
+     * many segments of whole blocks, each read from its own entry stream
+     * and decoded with its own copy of the table metadata, so several
+     * workers share a large table. Every worker keeps its own write window
+     * in flight. The changed ranges of a delta dump are cleared before any
+     * rows are written.
+     */
+    private void importFile(File file, ImportOptions options, JobMetrics job) throws IOException {
+        try (ZipFile zip = new ZipFile(file)) {
+            List<? extends ZipEntry> entries = Collections.list(zip.entries());
+            ZipEntry metadataEntry = null;
+            ZipEntry indexEntry = null;
+            for (ZipEntry zipEntry : entries) {
+                if (zipEntry.getName().endsWith("/metadata.json")) {
+                    metadataEntry = zipEntry;
+                } else if (zipEntry.getName().endsWith("/index.json")) {
+                    indexEntry = zipEntry;
+                }
+            }
+            if (metadataEntry == null) {
+                throw new IOException("dump has no METADATA.JSON entry");
+            }
+            DumpIndex index = null;
+            if (indexEntry != null) {
+                try (InputStream in = zip.getInputStream(indexEntry)) {
+                    index = DumpIndex.fromJSON((JSONObject) JSONValue.parse(getJSONData(in)));
+                }
+            } else if (options.hasBlocks()) {
+                throw new IOException("dump has no index, blocks cannot be restored");
+            }
+            String keyspaceName = options.keyspaceName;
+            Throttle throttle = options.throttle;
+            ExecutorService workerPool = Executors.newFixedThreadPool(options.threads);
+            try (ClusterManager.Lease lease = ClusterManager.getInstance().acquire(options.getConnection())) {
+                throttle.register(lease.getCluster());
+                job.setThrottle(throttle);
+                createKeyspace(lease, keyspaceName, options.replicationFactor);
+                Map<String, TableMetadata> tableMetadata;
+                try (InputStream in = zip.getInputStream(metadataEntry)) {
+                    tableMetadata = loadMetadata(in, lease.getSession(null), keyspaceName);
+                }
+                for (String tableName : options.tables) {
+                    if (!tableMetadata.containsKey(tableName)) {
+                        throw new IOException("table not in dump: " + tableName);
+                    }
+                }
+                Session csession = lease.getSession(keyspaceName);
+                List<Callable<Void>> clears = new ArrayList<>();
+                List<Callable<Void>> segments = new ArrayList<>();
+                // rows of the selected blocks for the job's ETA, unknown without an index
+                long expectedRows = (index == null) ? -1 : 0;
+                int t = 0;
+                for (ZipEntry zipEntry : entries) {
+                    String entryName = zipEntry.getName();
+                    if ((zipEntry == metadataEntry) || (zipEntry == indexEntry) || entryName.endsWith("/manifest.json")) {
+                        continue;
+                    }
+                    if (entryName.endsWith(".ranges.json")) {
+                        if (options.hasBlocks()) {
+                            continue;
+                        }
+                        JSONObject ranges;
+                        try (InputStream in = zip.getInputStream(zipEntry)) {
+                            ranges = (JSONObject) JSONValue.parse(getJSONData(in));
+                        }
+                        String tableName = (String) ranges.get("table");
+                        if (options.isSelected(tableName)) {
+                            clears.add(() -> {
+                                clearRanges(lease, csession, keyspaceName, tableName, (JSONArray) ranges.get("changed"), options.writeWindow, throttle, job.getTable(tableName));
+                                return null;
+                            });
+                        }
+                        continue;
+                    }
+                    DumpCompression compression = DumpCompression.forEntryName(entryName);
+                    String tableEntryName = compression.stripEntrySuffix(entryName);
+                    String tableName = DumpFormat.getTableName(tableEntryName);
+                    if (!options.isSelected(tableName)) {
+                        log.debug("skipping entry " + entryName);
+                        continue;
+                    }
+                    DumpIndex.TableIndex tableIndex = (index == null) ? null : index.getTable(tableName);
+                    TableProgress progress = new TableProgress(tableName, (tableIndex == null) ? -1 : tableIndex.getRows());
+                    TableMetrics tableMetrics = job.getTable(tableName);
+                    tableMetrics.addCompressedBytes(zipEntry.getCompressedSize());
+                    int firstBlock = 0;
+                    int lastBlock = 0;
+                    if (tableIndex != null) {
+                        firstBlock = options.hasBlocks() ? options.firstBlock : 0;
+                        lastBlock = ((options.lastBlock < 0) || !options.hasBlocks()) ? tableIndex.getBlockCount() - 1 : options.lastBlock;
+                        if ((firstBlock >= tableIndex.getBlockCount()) || (lastBlock >= tableIndex.getBlockCount())) {
+                            throw new IOException("table " + tableName + " has " + tableIndex.getBlockCount() + " blocks");
+                        }
+                    } else if (options.hasBlocks()) {
+                        throw new IOException("table " + tableName + " is not in the dump index");
+                    }
+                    // consecutive blocks per segment, one segment without an index
+                    int blocks = lastBlock - firstBlock + 1;
+                    int segmentCount = Math.min(options.threads, blocks);
+                    progress.setSegments(segmentCount);
+                    if ((tableIndex != null) && (expectedRows >= 0)) {
+                        long endRow = (lastBlock + 1 < tableIndex.getBlockCount()) ? tableIndex.getBlockRow(lastBlock + 1) : tableIndex.getRows();
+                        expectedRows += endRow - tableIndex.getBlockRow(firstBlock);
+                    } else {
+                        expectedRows = -1;
+                    }
+                    for (int i = 0; i < segmentCount; i++) {
+                        int segmentFirst = firstBlock + (int) ((long) blocks * i / segmentCount);
+                        int segmentLast = firstBlock + (int) ((long) blocks * (i + 1) / segmentCount) - 1;
+                        segments.add(() -> {
+                            try (InputStream in = compression.newEntryInputStream(zip.getInputStream(zipEntry))) {
+                                InputStream entryStream = in;
+                                if ((tableIndex != null) && ((segmentFirst > 0) || (segmentLast < tableIndex.getBlockCount() - 1))) {
+                                    entryStream = openBlocks(in, tableIndex, segmentFirst, segmentLast);
+                                }
+                                long rows = loadEntry(entryStream, tableEntryName, csession, keyspaceName, copyMetadata(tableMetadata), options, tableMetrics);
+                                progress.segmentDone(rows);
+                            }
+                            return null;
+                        });
+                    }
                     t++;
                 }
-            } while (zipEntry != null);
-            log.info(" - completed import of keyspace " + keyspaceName + " imported " + t + " tables.");
+                job.setExpectedRows(expectedRows);
+                ParallelTasks.runAll(workerPool, clears, "importing keyspace " + keyspaceName);
+                ParallelTasks.runAll(workerPool, segments, "importing keyspace " + keyspaceName);
+                log.info(" - completed import of keyspace " + keyspaceName + " imported " + t + " tables.");
+            } finally {
+                workerPool.shutdownNow();
+                throttle.release();
+            }
+        }
+    }
+
+    /**
+     * Rows and finished segments of a table loaded by several workers.
+     */
+    private static class TableProgress {
+        private final String tableName;
+        private final long totalRows;
+        private int segments;
+        private int done;
+        private long rows;
+
+        TableProgress(String tableName, long totalRows) {
+            this.tableName = tableName;
+            this.totalRows = totalRows;
+        }
+
+        synchronized void setSegments(int segments) {
+            this.segments = segments;
+        }
+
+        synchronized void segmentDone(long segmentRows) {
+            done++;
+            rows += segmentRows;
+            if (done == segments) {
+                log.info(" -- table " + tableName + " complete, imported " + rows + " rows");
+            } else {
+                log.info(" -- table " + tableName + " segment " + done + " of " + segments + " done, "
+                        + rows + ((totalRows >= 0) ? " of " + totalRows : "") + " rows imported");
+            }
+        }
+    }
+
+    /**
+     * Positions an entry stream at the first block of a segment and limits
+     * it to the end of the last one. Stored entries seek, compressed ones
+     * are unpacked up to the block without decoding any record.
+     */
+    private InputStream openBlocks(InputStream in, DumpIndex.TableIndex tableIndex, int firstBlock, int lastBlock) throws IOException {
+        long start = tableIndex.getBlockOffset(firstBlock);
+        long end = tableIndex.getBlockEnd(lastBlock);
+        log.info("loading blocks " + firstBlock + " to " + lastBlock + " of " + tableIndex.getTableName()
+                + ", rows from " + tableIndex.getBlockRow(firstBlock) + ", bytes " + start + " to " + end);
+        ByteStreams.skipFully(in, start);
+        return ByteStreams.limit(in, end - start);
+    }
+
+    private long loadEntry(InputStream in, String entryName, Session csession, String keyspaceName, Map<String, TableMetadata> tableMetadata, ImportOptions options, TableMetrics tableMetrics) throws IOException {
+        DumpFormat format = DumpFormat.forEntryName(entryName);
+        if (format == DumpFormat.BINARY) {
+            return loadBinaryTableData(in, csession, keyspaceName, tableMetadata.get(DumpFormat.getTableName(entryName)), options.writeWindow, options.batchRows, options.throttle, tableMetrics);
+        } else if (format == DumpFormat.CQLJSON) {
+            return loadCqlJsonTableData(in, csession, keyspaceName, tableMetadata.get(DumpFormat.getTableName(entryName)), options.writeWindow, options.batchRows, options.throttle, tableMetrics);
+        } else {
+            return loadTableData(in, csession, keyspaceName, tableMetadata, options.writeWindow, options.batchRows, options.throttle, tableMetrics);
         }
     }
 
-    private Cluster getCluster(String hostName, int portNumber, String keyspaceName, int replicationFactor) {
+    static void createKeyspace(ClusterManager.Lease lease, String keyspaceName, int replicationFactor) {
         // connect to cluster
         log.debug("loading keyspace metadata keyspace=" + keyspaceName);
-        Cluster cluster = Cluster.builder()
-                //.addContactPoint(config.getCassandraHostAddress())
-                .addContactPoint(hostName)
-                .withRetryPolicy(DefaultRetryPolicy.INSTANCE)
-                // port
-                .withPort(portNumber)
-                .build();
-        cluster.getConfiguration().getSocketOptions().setReadTimeoutMillis(60000);
-        Metadata metadata = cluster.getMetadata();
+        Metadata metadata = lease.getCluster().getMetadata();
         log.info("Connected to Cassandra cluster: " + metadata.getClusterName());
         KeyspaceMetadata keyspace = metadata.getKeyspace(keyspaceName);
         if (keyspace == null) {
             // create default keyspace
-            try (Session csession = cluster.connect()) {
-                // create keyspace
-                String keyspaceCreate = "CREATE KEYSPACE " + keyspaceName + " WITH replication = {'class':'SimpleStrategy', 'replication_factor':" + Integer.toString(replicationFactor) + "};";
-                csession.execute(keyspaceCreate);
-                log.debug("created keyspace " + keyspaceName);
-            }
+            Session csession = lease.getSession(null);
+            String keyspaceCreate = "CREATE KEYSPACE " + keyspaceName + " WITH replication = {'class':'SimpleStrategy', 'replication_factor':" + Integer.toString(replicationFactor) + "};";
+            csession.execute(keyspaceCreate);
+            log.debug("created keyspace " + keyspaceName);
         }
-        return cluster;
     }
 
-    protected class TableMetadata {
+    protected static class TableMetadata {
+        // own logger so the metadata can be used without initializing the servlet
+        private static final Logger log = Logger.getLogger(KeyspaceImport.class);
+
+        // first release with INSERT JSON ... DEFAULT UNSET
+        static final VersionNumber JSON_DEFAULT_UNSET_VERSION = VersionNumber.parse("3.10");
+
         private final String tableName;
         private final Map<String, String> columns = new HashMap<>();
+        // cell order of binary rows
+        private final List<String> columnOrder = new ArrayList<>();
+        // prepared INSERT statements keyed by the ordered column list of the
+        // row, shared by the copies of the metadata
+        private final Map<String, PreparedStatement> insertStatements;
+        private long cacheHits;
+        private long cacheMisses;
+        // decoding plan compiled from the columns map
+        private byte[] tableNameBytes;
+        private String[] columnNames;
+        private byte[][] columnNameBytes;
+        private ColumnDecoder[] decoders;
+        // column indexes of the last row shape and its statement
+        private int[] lastShape = new int[0];
+        private PreparedStatement lastStatement;
 
         public TableMetadata(String tableName) {
+            this(tableName, new ConcurrentHashMap<>());
+        }
+
+        private TableMetadata(String tableName, Map<String, PreparedStatement> insertStatements) {
             this.tableName = tableName;
+            this.insertStatements = insertStatements;
+        }
+
+        /**
+         * Copies the metadata for another import worker: the row shape and
+         * decoding state are per copy, prepared statements are shared.
+         *
+         * @return compiled copy
+         */
+        public TableMetadata copy() {
+            TableMetadata copy = new TableMetadata(tableName, insertStatements);
+            copy.columns.putAll(columns);
+            copy.columnOrder.addAll(columnOrder);
+            copy.compileDecoders();
+            return copy;
         }
 
         public String getTableName() {
@@ -249,9 +737,189 @@ public class KeyspaceImport extends HttpServlet {
             return columns;
         }
 
+        public List<String> getColumnOrder() {
+            return columnOrder;
+        }
+
+        /**
+         * Returns the prepared INSERT for the given ordered column list,
+         * preparing it on first use.
+         *
+         * @param csession session used to prepare a missing statement
+         * @param columnNames ordered column names of the row
+         * @return prepared insert statement
+         */
+        public PreparedStatement getInsertStatement(Session csession, List<String> columnNames) {
+            String key = String.join(",", columnNames);
+            PreparedStatement prepStmt = insertStatements.get(key);
+            if (prepStmt != null) {
+                cacheHits++;
+                return prepStmt;
+            }
+            cacheMisses++;
+            StringBuilder sb = new StringBuilder();
+            sb.append("INSERT INTO ");
+            sb.append(tableName);
+            sb.append(" (");
+            sb.append(key);
+            sb.append(") VALUES (");
+            for (int i = 0; i < columnNames.size(); i++) {
+                if (i != 0) {
+                    sb.append(',');
+                }
+                sb.append('?');
+            }
+            sb.append(");");
+            log.debug("prepare " + sb);
+            prepStmt = csession.prepare(sb.toString());
+            // another worker may have prepared the same statement meanwhile
+            PreparedStatement prepared = insertStatements.putIfAbsent(key, prepStmt);
+            return (prepared != null) ? prepared : prepStmt;
+        }
+
+        /**
+         * Returns the prepared <code>INSERT JSON</code> of cqljson rows,
+         * preparing it on first use. Columns missing from a row, such as
+         * those left out by a column projection, stay unset instead of
+         * being overwritten with null.
+         *
+         * @param csession session used to prepare a missing statement
+         * @return prepared insert statement with the row JSON as only value
+         */
+        public PreparedStatement getJsonInsertStatement(Session csession) {
+            // cannot collide with a column list key
+            String key = "JSON ?";
+            PreparedStatement prepStmt = insertStatements.get(key);
+            if (prepStmt != null) {
+                cacheHits++;
+                return prepStmt;
+            }
+            cacheMisses++;
+            String insert = "INSERT INTO " + tableName + " JSON ? DEFAULT UNSET;";
+            log.debug("prepare " + insert);
+            prepStmt = csession.prepare(insert);
+            PreparedStatement prepared = insertStatements.putIfAbsent(key, prepStmt);
+            return (prepared != null) ? prepared : prepStmt;
+        }
+
+        /**
+         * Refuses a cqljson import before any row is sent when a node is older
+         * than 3.10 and would reject <code>INSERT JSON ... DEFAULT UNSET</code>.
+         * Nodes of unknown version are left to fail the prepare.
+         *
+         * @param csession session of the import
+         * @throws IOException if a node is too old
+         */
+        static void checkJsonInsert(Session csession) throws IOException {
+            for (Host host : csession.getCluster().getMetadata().getAllHosts()) {
+                VersionNumber version = host.getCassandraVersion();
+                if ((version != null) && (version.compareTo(JSON_DEFAULT_UNSET_VERSION) < 0)) {
+                    throw new IOException("cqljson import needs Cassandra " + JSON_DEFAULT_UNSET_VERSION
+                            + " or later, host " + host.getAddress() + " runs " + version);
+                }
+            }
+        }
+
+        /**
+         * Compiles the per-column decoders once all columns are known.
+         */
+        public void compileDecoders() {
+            tableNameBytes = tableName.getBytes(StandardCharsets.UTF_8);
+            int count = columns.size();
+            columnNames = new String[count];
+            columnNameBytes = new byte[count][];
+            decoders = new ColumnDecoder[count];
+            int i = 0;
+            for (Map.Entry<String, String> column : columns.entrySet()) {
+                columnNames[i] = column.getKey();
+                columnNameBytes[i] = column.getKey().getBytes(StandardCharsets.UTF_8);
+                decoders[i] = ColumnDecoder.forType(column.getValue());
+                i++;
+            }
+        }
+
+        public byte[] getTableNameBytes() {
+            return tableNameBytes;
+        }
+
+        public ColumnDecoder getDecoder(int column) {
+            return decoders[column];
+        }
+
+        /**
+         * Finds a column by its UTF-8 name.
+         *
+         * @param b buffer holding the name
+         * @param offset start of the name
+         * @param length name length
+         * @param hint column index to try first
+         * @return column index or -1
+         */
+        public int indexOf(byte[] b, int offset, int length, int hint) {
+            if ((hint >= 0) && (hint < columnNameBytes.length) && (columnNameBytes[hint].length == length)
+                    && RecordParser.regionEquals(b, offset, columnNameBytes[hint], 0, length)) {
+                return hint;
+            }
+            for (int i = 0; i < columnNameBytes.length; i++) {
+                if ((columnNameBytes[i].length == length) && RecordParser.regionEquals(b, offset, columnNameBytes[i], 0, length)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        public int getLastShapeColumn(int k) {
+            return (k < lastShape.length) ? lastShape[k] : -1;
+        }
+
+        /**
+         * Returns the prepared INSERT for a row shape given as column
+         * indexes, reusing the previous statement when the shape repeats.
+         *
+         * @param csession session used to prepare a missing statement
+         * @param shape column indexes in row order
+         * @param count number of columns in the row
+         * @return prepared insert statement
+         */
+        public PreparedStatement getInsertStatement(Session csession, int[] shape, int count) {
+            if ((lastStatement != null) && (lastShape.length == count)) {
+                boolean same = true;
+                for (int k = 0; same && (k < count); k++) {
+                    same = lastShape[k] == shape[k];
+                }
+                if (same) {
+                    cacheHits++;
+                    return lastStatement;
+                }
+            }
+            List<String> names = new ArrayList<>(count);
+            for (int k = 0; k < count; k++) {
+                names.add(columnNames[shape[k]]);
+            }
+            lastStatement = getInsertStatement(csession, names);
+            lastShape = Arrays.copyOf(shape, count);
+            return lastStatement;
+        }
+
+        public long getCacheHits() {
+            return cacheHits;
+        }
+
+        public long getCacheMisses() {
+            return cacheMisses;
+        }
+
     }
 
-    private Map<String, TableMetadata> loadMetadata(ZipInputStream zin, Cluster cluster, String keyspaceName) throws IOException {
+    private static Map<String, TableMetadata> copyMetadata(Map<String, TableMetadata> tableMetadata) {
+        Map<String, TableMetadata> copy = new HashMap<>();
+        for (Map.Entry<String, TableMetadata> table : tableMetadata.entrySet()) {
+            copy.put(table.getKey(), table.getValue().copy());
+        }
+        return copy;
+    }
+
+    private Map<String, TableMetadata> loadMetadata(InputStream zin, Session csession, String keyspaceName) throws IOException {
         log.info("importing metadata keyspace " + keyspaceName);
         Map<String, TableMetadata> typeMap = new HashMap<>();
         String sourceJson = getJSONData(zin);
@@ -269,77 +937,38 @@ public class KeyspaceImport extends HttpServlet {
             // search and replace new keyspace name
             createText = createText.replaceAll(originalKeyspace, keyspaceName);
             log.info("create table " + tableName + " create:" + createText);
-            try (Session csession = cluster.connect()) {
-                // create keyspace                
-                //csession.execute(createText);
-                // for each table create the indices
-                JSONArray columns = (JSONArray) table.get("columns");
-                if (columns != null) {
-                    for (Iterator it = columns.iterator(); it.hasNext();) {
-                        JSONObject column = (JSONObject) it.next();
-                        String name = (String) column.get("name");
-                        String colType = (String) column.get("type");
-                        metadata.getColumns().put(name, colType);
-                        String createIndexText = (String) column.get("create_index");
-                        if (createIndexText != null) {
-                            createIndexText = createIndexText.replaceAll(originalKeyspace, keyspaceName);
-                            log.debug(" -- create index " + createIndexText);
-                            //csession.execute(createIndexText);
-                        }
+            // create keyspace                
+            //csession.execute(createText);
+            // for each table create the indices
+            JSONArray columns = (JSONArray) table.get("columns");
+            if (columns != null) {
+                for (Iterator it = columns.iterator(); it.hasNext();) {
+                    JSONObject column = (JSONObject) it.next();
+                    String name = (String) column.get("name");
+                    String colType = (String) column.get("type");
+                    metadata.getColumns().put(name, colType);
+                    String createIndexText = (String) column.get("create_index");
+                    if (createIndexText != null) {
+                        createIndexText = createIndexText.replaceAll(originalKeyspace, keyspaceName);
+                        log.debug(" -- create index " + createIndexText);
+                        //csession.execute(createIndexText);
                     }
                 }
             }
+            JSONArray columnOrder = (JSONArray) table.get("column_order");
+            if (columnOrder != null) {
+                for (Object name : columnOrder) {
+                    metadata.getColumnOrder().add((String) name);
+                }
+            }
+            metadata.compileDecoders();
         }
         return typeMap;
     }
 
     private static final int BUFFER_SIZE = 32768;
 
-    private byte[] getStreamBytes(InputStream in, int byteCount) throws IOException {
-        byte[] buffer = new byte[BUFFER_SIZE];
-        int bytesRead = 0;
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        int r;
-        do {
-            r = BUFFER_SIZE;
-            if (r > byteCount) {
-                r = byteCount;
-            }
-            int c = in.read(buffer, 0, r);
-            if (c > 0) {
-                bout.write(buffer, 0, c);
-                byteCount -= c;
-                bytesRead += c;
-            } else if(bytesRead != 0) {
-                throw new IOException("incomplete stream read expected " + r + " but got " + c + " bytes");
-            } else {
-                return null;
-            }
-        } while (byteCount > 0);
-        return bout.toByteArray();
-    }
-
-    private String getJSONRowData(ZipInputStream zin) throws IOException {
-        byte[] newline = getStreamBytes(zin, 2);
-        if ((newline != null) && (newline.length == 2)) {
-            byte[] hexBuf = getStreamBytes(zin, 8);
-            if (hexBuf.length == 8) {
-                String hexText = new String(hexBuf);
-                log.debug("[" + hexText + "]");
-                hexText = hexText.trim();
-                int dataLength = Integer.parseInt(hexText, 16);
-                log.debug("record len:" + dataLength);
-                byte[] data = getStreamBytes(zin, dataLength);
-                return new String(data);
-            } else {
-                return null;
-            }
-        } else {
-            return null;
-        }
-    }
-
-    private String getJSONData(ZipInputStream zin) throws IOException {
+    private String getJSONData(InputStream zin) throws IOException {
         int r;
         byte[] buffer = new byte[BUFFER_SIZE];
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
@@ -353,112 +982,187 @@ public class KeyspaceImport extends HttpServlet {
         return jsonData;
     }
 
-    private void loadTableData(ZipInputStream zin, Cluster cluster, String keyspaceName, Map<String, TableMetadata> tableMetadata) throws IOException {
+    private long loadTableData(InputStream in, Session csession, String keyspaceName, Map<String, TableMetadata> tableMetadata, int writeWindow, int batchRows, Throttle throttle, TableMetrics tableMetrics) throws IOException {
         // table data is a series of records.
         // 8 bytes of text representing a hex length
         // that length is how long the JSON is for the record data.
         // skip the first two chars
-        try (Session csession = cluster.connect(keyspaceName)) {
-            String tableData;
-            int c = 0;
-            do {
-                tableData = getJSONRowData(zin);
-                if (tableData != null) {                    
-                    log.debug(c + " row data:" + tableData);                    
-                    JSONObject record = (JSONObject) JSONValue.parse(tableData);
-                    String tableName = (String) record.get("table_name");
-                    if(c == 0) {
-                        log.info("importing table data " + keyspaceName + ":" + tableName);
-                    } else if((c % 1000) == 0) {
-                        log.info(" ... imported " + c + " rows");
-                    }
-                    
-                    TableMetadata metadata = tableMetadata.get(tableName);
-                    JSONObject rowData = (JSONObject) record.get("data");                    
-                    log.debug("record: " + record);
-                    // series of values
-                    StringBuilder sb = new StringBuilder();
-                    sb.append("INSERT INTO ");
-                    sb.append(tableName);
-                    sb.append(" (");
-                    int i=0;
-                    for (Iterator it = rowData.keySet().iterator(); it.hasNext();) {
-                        String colName = (String) it.next();
-                        if(i != 0) {
-                            sb.append(',');
-                        }
-                        sb.append(colName);
-                        i++;
-                    }
-                    int columnCount = rowData.size();
-                    sb.append(") VALUES (");
-                    for(i=0; i < columnCount;i++) {
-                        if(i != 0) {
-                            sb.append(',');
-                        }
-                        sb.append('?');
-                    }
-                    sb.append(");");
-                    PreparedStatement prepStmt = csession.prepare(sb.toString());
-                    List<Object> columnData = new ArrayList<>();
-                    i = 0;
-                    for (Iterator it = rowData.keySet().iterator(); it.hasNext();) {
-                        String colName = (String) it.next();
-                        String dataValue = (String) rowData.get(colName);
-                        if(dataValue == null) {
-                            columnData.add(null);
-                        } else {
-                            String colType = metadata.getColumns().get(colName);
-                            switch(colType) {
-                                case "timestamp":
-                                    SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-                                    fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
-                                    Date d = fmt.parse(dataValue);
-                                    columnData.add(d);
-                                    break;
-                                case "blob":
-                                    byte[] blobData = Base64.decodeBase64(dataValue);
-                                    ByteBuffer buffer = ByteBuffer.wrap(blobData);
-                                    columnData.add(buffer);
-                                    break;
-                                case "double":
-                                    Double dv = Double.parseDouble(dataValue);
-                                    columnData.add(dv);
-                                    break;
-                                case "bigint":
-                                    Long ln = Long.parseLong(dataValue);
-                                    columnData.add(ln);
-                                    break;
-                                case "boolean":
-                                    Boolean bv = Boolean.parseBoolean(dataValue);
-                                    columnData.add(bv);
-                                    break;
-                                case "int":
-                                    Integer n = Integer.parseInt(dataValue);
-                                    columnData.add(n);
-                                    break;
-                                case "timeuuid":
-                                case "uuid":
-                                    columnData.add(UUID.fromString(dataValue));
-                                    break;
-                                default:
-                                    columnData.add(dataValue);
-                                    break;
-                            }
-                        }
-                        i++;
-                    }                                                            
-                    BoundStatement bprep = new BoundStatement(prepStmt);
-                    Object[] dataValues = columnData.toArray();
-                    bprep.bind(dataValues);
-                    csession.execute(bprep);
-                    c++;
+        // writes are pipelined, decoding continues while up to writeWindow inserts are pending
+        AsyncWriter writer = new AsyncWriter(csession, writeWindow, WRITE_RETRIES, tableMetrics);
+        PartitionBatcher batcher = new PartitionBatcher(writer, csession, batchRows);
+        FrameReader frames = new FrameReader(in, BUFFER_SIZE);
+        RecordDecoder decoder = new RecordDecoder(csession, tableMetadata, BUFFER_SIZE);
+        TableMetadata metadata = null;
+        int c = 0;
+        long readStart = System.nanoTime();
+        while (frames.next()) {
+            long decodeStart = System.nanoTime();
+            tableMetrics.addIoTime(decodeStart - readStart);
+            tableMetrics.addBytes(RowEncoder.FRAME_HEADER_SIZE + frames.length());
+            if (log.isDebugEnabled()) {
+                log.debug(c + " row data:" + new String(frames.array(), frames.offset(), frames.length(), StandardCharsets.UTF_8));
+            }
+            BoundStatement bprep = decoder.decode(frames.array(), frames.offset(), frames.length());
+            metadata = decoder.getTableMetadata();
+            if(c == 0) {
+                log.info("importing table data " + keyspaceName + ":" + metadata.getTableName());
+            } else if((c % 1000) == 0) {
+                log.info(" ... imported " + c + " rows");
+            }
+            tableMetrics.addCodecTime(System.nanoTime() - decodeStart);
+            throttle.acquire(1, frames.length());
+            batcher.add(bprep, frames.length());
+            c++;
+            if ((c % 1000) == 0) {
+                tableMetrics.markRows(1000);
+            }
+            readStart = System.nanoTime();
+        }
+        batcher.flush();
+        writer.drain();
+        tableMetrics.markRows(c % 1000);
+        log.info(" -- table import complete imported " + c + " rows");
+        if (batcher.getBatchCount() > 0) {
+            log.info(" -- sent " + batcher.getBatchCount() + " partition batches");
+        }
+        if (writer.getRetried() > 0) {
+            log.info(" -- retried " + writer.getRetried() + " writes");
+        }
+        if (metadata != null) {
+            log.info(" -- prepared statement cache " + metadata.getTableName() + " hits=" + metadata.getCacheHits() + " misses=" + metadata.getCacheMisses());
+        }
+        return c;
+    }
+
+    /**
+     * Deletes every partition of the given token ranges before a delta dump
+     * writes their current rows, so that rows deleted since the base dump
+     * are gone as well. Partition keys are read with SELECT DISTINCT per
+     * range.
+     */
+    private void clearRanges(ClusterManager.Lease lease, Session csession, String keyspaceName, String tableName, JSONArray ranges, int writeWindow, Throttle throttle, TableMetrics tableMetrics) throws IOException {
+        Metadata metadata = lease.getCluster().getMetadata();
+        KeyspaceMetadata keyspace = metadata.getKeyspace(keyspaceName);
+        com.datastax.driver.core.TableMetadata tmd = (keyspace == null) ? null : keyspace.getTable(tableName);
+        if (tmd == null) {
+            throw new IOException("table " + keyspaceName + "." + tableName + " of the delta dump does not exist");
+        }
+        StringBuilder pk = new StringBuilder();
+        StringBuilder where = new StringBuilder();
+        for (ColumnMetadata cmd : tmd.getPartitionKey()) {
+            if (pk.length() != 0) {
+                pk.append(',');
+                where.append(" AND ");
+            }
+            String name = Metadata.quoteIfNecessary(cmd.getName());
+            pk.append(name);
+            where.append(name).append("=?");
+        }
+        String table = Metadata.quoteIfNecessary(tableName);
+        PreparedStatement select = csession.prepare("SELECT DISTINCT " + pk + " FROM " + table
+                + " WHERE token(" + pk + ") > ? AND token(" + pk + ") <= ?");
+        PreparedStatement delete = csession.prepare("DELETE FROM " + table + " WHERE " + where);
+        int keyCount = tmd.getPartitionKey().size();
+        AsyncWriter writer = new AsyncWriter(csession, writeWindow, WRITE_RETRIES, tableMetrics);
+        long partitions = 0;
+        for (Object range : ranges) {
+            String[] bounds = ((String) range).split(":");
+            BoundStatement stmt = select.bind();
+            stmt.setToken(0, metadata.newToken(bounds[0]));
+            stmt.setToken(1, metadata.newToken(bounds[1]));
+            stmt.setFetchSize(1000);
+            for (Row row : csession.execute(stmt)) {
+                BoundStatement bdelete = delete.bind();
+                for (int i = 0; i < keyCount; i++) {
+                    bdelete.setBytesUnsafe(i, row.getBytesUnsafe(i));
                 }
-            } while (tableData != null);
-            log.info(" -- table import complete imported " + c + " rows");
-        } catch (ParseException ex) {
-            throw new IOException("failed to load data",ex);
+                throttle.acquire(1, 0);
+                writer.submit(bdelete);
+                partitions++;
+            }
         }
+        writer.drain();
+        log.info(" -- cleared " + partitions + " partitions in " + ranges.size() + " changed ranges of " + tableName);
     }
-}
 
+    private long loadBinaryTableData(InputStream in, Session csession, String keyspaceName, TableMetadata metadata, int writeWindow, int batchRows, Throttle throttle, TableMetrics tableMetrics) throws IOException {
+        // rows are a 32 bit length followed by length prefixed serialized cells
+        // in the column order from metadata.json, bound without any parsing
+        if ((metadata == null) || metadata.getColumnOrder().isEmpty()) {
+            throw new IOException("binary table entry without column order in metadata");
+        }
+        log.info("importing binary table data " + keyspaceName + ":" + metadata.getTableName());
+        AsyncWriter writer = new AsyncWriter(csession, writeWindow, WRITE_RETRIES, tableMetrics);
+        PartitionBatcher batcher = new PartitionBatcher(writer, csession, batchRows);
+        PreparedStatement prepStmt = metadata.getInsertStatement(csession, metadata.getColumnOrder());
+        int columnCount = metadata.getColumnOrder().size();
+        FrameReader frames = new FrameReader(in, BUFFER_SIZE);
+        int c = 0;
+        long readStart = System.nanoTime();
+        while (frames.nextBinary()) {
+            long decodeStart = System.nanoTime();
+            tableMetrics.addIoTime(decodeStart - readStart);
+            tableMetrics.addBytes(4 + frames.length());
+            // the frame buffer is reused, the pending write needs its own copy
+            byte[] row = Arrays.copyOfRange(frames.array(), frames.offset(), frames.offset() + frames.length());
+            BoundStatement bprep = new BoundStatement(prepStmt);
+            BinaryRowEncoder.bindRow(bprep, row, columnCount);
+            tableMetrics.addCodecTime(System.nanoTime() - decodeStart);
+            throttle.acquire(1, row.length);
+            batcher.add(bprep, row.length);
+            c++;
+            if ((c % 1000) == 0) {
+                tableMetrics.markRows(1000);
+                log.info(" ... imported " + c + " rows");
+            }
+            readStart = System.nanoTime();
+        }
+        batcher.flush();
+        writer.drain();
+        tableMetrics.markRows(c % 1000);
+        log.info(" -- table import complete imported " + c + " rows");
+        if (batcher.getBatchCount() > 0) {
+            log.info(" -- sent " + batcher.getBatchCount() + " partition batches");
+        }
+        return c;
+    }
+
+    private long loadCqlJsonTableData(InputStream in, Session csession, String keyspaceName, TableMetadata metadata, int writeWindow, int batchRows, Throttle throttle, TableMetrics tableMetrics) throws IOException {
+        // each record is the JSON of one row as returned by SELECT JSON,
+        // bound unchanged to INSERT JSON so the cluster converts the values
+        if (metadata == null) {
+            throw new IOException("cqljson table entry without table in metadata");
+        }
+        log.info("importing cqljson table data " + keyspaceName + ":" + metadata.getTableName());
+        TableMetadata.checkJsonInsert(csession);
+        AsyncWriter writer = new AsyncWriter(csession, writeWindow, WRITE_RETRIES, tableMetrics);
+        // the routing key of INSERT JSON is not known to the driver, rows
+        // are sent one by one even with a batch size
+        PartitionBatcher batcher = new PartitionBatcher(writer, csession, batchRows);
+        PreparedStatement prepStmt = metadata.getJsonInsertStatement(csession);
+        FrameReader frames = new FrameReader(in, BUFFER_SIZE);
+        int c = 0;
+        long readStart = System.nanoTime();
+        while (frames.next()) {
+            long decodeStart = System.nanoTime();
+            tableMetrics.addIoTime(decodeStart - readStart);
+            tableMetrics.addBytes(RowEncoder.FRAME_HEADER_SIZE + frames.length());
+            BoundStatement bprep = new BoundStatement(prepStmt);
+            bprep.setString(0, new String(frames.array(), frames.offset(), frames.length(), StandardCharsets.UTF_8));
+            tableMetrics.addCodecTime(System.nanoTime() - decodeStart);
+            throttle.acquire(1, frames.length());
+            batcher.add(bprep, frames.length());
+            c++;
+            if ((c % 1000) == 0) {
+                tableMetrics.markRows(1000);
+                log.info(" ... imported " + c + " rows");
+            }
+            readStart = System.nanoTime();
+        }
+        batcher.flush();
+        writer.drain();
+        tableMetrics.markRows(c % 1000);
+        log.info(" -- table import complete imported " + c + " rows");
+        return c;
+    }
+}
@@ -0,0 +1,273 @@
+package cqldump;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.ZipFile;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
+import org.apache.log4j.Logger;
+import org.json.simple.JSONObject;
+
+/**
+ * Verifies a dump against a live keyspace, usually right after it was
+ * imported, and answers with a JSON report of the tables and token ranges
+ * whose rows differ. The dump is an uploaded zip or, with the dump field,
+ * a dump in the dump-directory. Verification runs as a job; an
+ * asynchronous job leaves its report for download from the status
+ * servlet.
+ *
+ * @author theider
+ */
+public class KeyspaceVerify extends HttpServlet {
+
+    private static final Logger log = Logger.getLogger(KeyspaceVerify.class);
+
+    // directory of dumps that can be verified by name, null if not configured
+    private File dumpDirectory;
+
+    /**
+     * Processes requests for both HTTP <code>GET</code> and <code>POST</code>
+     * methods.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    protected void processRequest(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        File spoolDirectory = (File) getServletContext().getAttribute("javax.servlet.context.tempdir");
+        Map<String, String> fields = new HashMap<>();
+        File upload = null;
+        try {
+            // digests are taken on parallel workers, which needs a random
+            // access copy of the upload
+            FileItemIterator items = new ServletFileUpload().getItemIterator(request);
+            while (items.hasNext()) {
+                FileItemStream item = items.next();
+                if (item.isFormField()) {
+                    try (InputStream in = item.openStream()) {
+                        fields.put(item.getFieldName(), Streams.asString(in, "UTF-8"));
+                    }
+                    continue;
+                }
+                String itemName = item.getName();
+                if ((upload != null) || (itemName == null) || !itemName.endsWith(".zip")) {
+                    continue;
+                }
+                upload = File.createTempFile("cqldump-verify-", ".zip", spoolDirectory);
+                try (InputStream in = item.openStream()) {
+                    Files.copy(in, upload.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        } catch (FileUploadException ex) {
+            deleteFile(upload);
+            throw new ServletException("invalid verify request: " + ex.getMessage());
+        } catch (IOException ex) {
+            deleteFile(upload);
+            throw ex;
+        }
+        File uploadFile = upload;
+        try {
+            String hostAddress = fields.get("host");
+            if(hostAddress == null) {
+                throw new ServletException("missing required host parameter");
+            }
+            String keyspaceName = fields.get("keyspace");
+            if(keyspaceName == null) {
+                throw new ServletException("missing required keyspaceName parameter");
+            }
+            String portText = fields.get("port");
+            if( (portText == null) || portText.isEmpty() ) {
+                portText = "9042";
+            }
+            int portNumber = Integer.parseInt(portText);
+            // coordinating datacenter, routing, consistency and requests per host
+            ConnectionOptions connection;
+            try {
+                connection = ConnectionOptions.forParameters(hostAddress, portNumber, fields.get("dc"), fields.get("routing"),
+                        fields.get("consistency"), fields.get("connections"), fields.get("maxrequests"));
+            } catch (IllegalArgumentException ex) {
+                throw new ServletException("invalid connection options: " + ex.getMessage());
+            }
+            // token sub-ranges compared per table and number of workers
+            String splitsText = fields.get("splits");
+            if( (splitsText == null) || splitsText.isEmpty() ) {
+                splitsText = "1";
+            }
+            int splits = Integer.parseInt(splitsText);
+            String parallelismText = fields.get("parallelism");
+            if( (parallelismText == null) || parallelismText.isEmpty() ) {
+                parallelismText = "4";
+            }
+            int parallelism = Integer.parseInt(parallelismText);
+            if ((splits < 1) || (parallelism < 1)) {
+                throw new ServletException("splits and parallelism must be at least 1");
+            }
+            // rows/s and bytes/s caps of the live scans
+            Throttle throttle;
+            try {
+                throttle = Throttle.forParameters(fields.get("maxrows"), fields.get("maxbytes"), fields.get("adaptive"), fields.get("latency"));
+            } catch (IllegalArgumentException ex) {
+                throw new ServletException("invalid throttle: " + ex.getMessage());
+            }
+            ScanPaging paging;
+            try {
+                paging = ScanPaging.forParameter(fields.get("fetchmemory"));
+            } catch (IllegalArgumentException ex) {
+                throw new ServletException("invalid fetch memory: " + ex.getMessage());
+            }
+            File dumpFile = uploadFile;
+            String dumpName = fields.get("dump");
+            if ((dumpFile == null) && (dumpName != null) && !dumpName.isEmpty()) {
+                dumpFile = getDumpFile(dumpName);
+            }
+            if (dumpFile == null) {
+                throw new ServletException("request contained no zip file to verify");
+            }
+            boolean async = Boolean.parseBoolean(fields.get("async"));
+            File verifyFile = dumpFile;
+            File resultFile = async ? File.createTempFile("cqldump-verify-" + keyspaceName + "-", ".json", spoolDirectory) : null;
+            AtomicReference<JSONObject> report = new AtomicReference<>();
+            JobManager.Job job = JobManager.getInstance().submit("verify", keyspaceName, connection, resultFile, uploadFile, metrics -> {
+                try (ClusterManager.Lease lease = ClusterManager.getInstance().acquire(connection);
+                        ZipFile zip = new ZipFile(verifyFile)) {
+                    throttle.register(lease.getCluster());
+                    metrics.setThrottle(throttle);
+                    report.set(new DumpVerifier(lease, keyspaceName, splits, parallelism, throttle, paging, metrics).verify(zip));
+                } finally {
+                    throttle.release();
+                }
+                if (resultFile != null) {
+                    try (OutputStream out = new FileOutputStream(resultFile)) {
+                        out.write(report.get().toJSONString().getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+            });
+            // the job deletes the upload when it finishes, even if it never starts
+            uploadFile = null;
+            response.setContentType("application/json;charset=UTF-8");
+            if (async) {
+                JSONObject accepted = new JSONObject();
+                accepted.put("job", job.getId());
+                accepted.put("status", "status?job=" + job.getId());
+                accepted.put("download", "status?download=" + job.getId());
+                response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                try (PrintWriter out = response.getWriter()) {
+                    out.print(accepted.toJSONString());
+                }
+                return;
+            }
+            job.await();
+            response.setHeader("X-Cqldump-Job", job.getId());
+            try (PrintWriter out = response.getWriter()) {
+                out.print(report.get().toJSONString());
+            }
+        } finally {
+            deleteFile(uploadFile);
+        }
+    }
+
+    /**
+     * Resolves a dump already on the server, which has to be in the
+     * directory named by the dump-directory init parameter.
+     *
+     * @param dumpName file name of the dump
+     * @return dump file
+     * @throws IOException if there is no such dump
+     */
+    private File getDumpFile(String dumpName) throws IOException {
+        if (dumpDirectory == null) {
+            throw new IOException("no dump-directory configured for server side dumps");
+        }
+        File file = new File(dumpDirectory, dumpName).getCanonicalFile();
+        if (!dumpDirectory.getCanonicalFile().equals(file.getParentFile()) || !file.isFile()) {
+            throw new IOException("dump not found: " + dumpName);
+        }
+        return file;
+    }
+
+    private void deleteFile(File file) {
+        if ((file != null) && file.exists() && !file.delete()) {
+            log.warn("failed to delete verify file " + file);
+        }
+    }
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        String dumpDirectoryText = getInitParameter("dump-directory");
+        if ((dumpDirectoryText != null) && !dumpDirectoryText.isEmpty()) {
+            dumpDirectory = new File(dumpDirectoryText);
+        }
+        ClusterManager.getInstance().register();
+        DumpMetrics.getInstance().register();
+        JobManager.getInstance().register(getServletContext().getInitParameter("max-jobs"),
+                getServletContext().getInitParameter("max-jobs-per-cluster"));
+    }
+
+    @Override
+    public void destroy() {
+        JobManager.getInstance().release();
+        DumpMetrics.getInstance().release();
+        ClusterManager.getInstance().release();
+        super.destroy();
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="HttpServlet methods. Click on the + sign on the left to edit the code.">
+    /**
+     * Handles the HTTP <code>GET</code> method.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        processRequest(request, response);
+    }
+
+    /**
+     * Handles the HTTP <code>POST</code> method.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        processRequest(request, response);
+    }
+
+    /**
+     * Returns a short description of the servlet.
+     *
+     * @return a String containing servlet description
+     */
+    @Override
+    public String getServletInfo() {
+        return "Verifies a dump against a live keyspace";
+    }// </editor-fold>
+
+}
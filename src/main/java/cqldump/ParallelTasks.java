@@ -0,0 +1,58 @@
+package cqldump;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the tasks of a job on a worker pool and waits for all of them.
+ *
+ * @author theider
+ */
+final class ParallelTasks {
+
+    private ParallelTasks() {
+    }
+
+    /**
+     * Submits the tasks and waits until all are done; the first failure
+     * cancels the rest and is rethrown.
+     *
+     * @param pool workers
+     * @param tasks tasks to run
+     * @param work what the tasks do, such as "importing keyspace ks", for
+     * the error messages
+     * @throws IOException if a task fails or the wait is interrupted
+     */
+    static void runAll(ExecutorService pool, List<Callable<Void>> tasks, String work) throws IOException {
+        CompletionService<Void> completion = new ExecutorCompletionService<>(pool);
+        List<Future<Void>> futures = new ArrayList<>();
+        for (Callable<Void> task : tasks) {
+            futures.add(completion.submit(task));
+        }
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                completion.take().get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted " + work, ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("failed " + work, ex.getCause());
+        } finally {
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+}
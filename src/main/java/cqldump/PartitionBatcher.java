@@ -0,0 +1,100 @@
+package cqldump;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.Session;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Groups consecutive inserts of the same partition into UNLOGGED batches.
+ * Exported rows come in token order, so rows of one partition follow each
+ * other; the partition is the routing key the driver derives from the
+ * prepared statement's partition key columns. A group is sent through the
+ * {@link AsyncWriter} when the partition changes or the group reaches its
+ * row or byte limit, a group of one as the plain statement.
+ *
+ * @author theider
+ */
+public class PartitionBatcher {
+
+    // stays well below the default batch_size_fail_threshold_in_kb of 50
+    static final int MAX_BATCH_BYTES = 32 * 1024;
+
+    private final AsyncWriter writer;
+    private final ProtocolVersion protocolVersion;
+    private final CodecRegistry codecRegistry;
+    private final int maxRows;
+    private final List<BoundStatement> group = new ArrayList<>();
+    private ByteBuffer groupKey;
+    private int groupBytes;
+    private long batches;
+
+    /**
+     * @param writer writer the groups are sent through
+     * @param session session the statements are prepared on
+     * @param maxRows maximum number of rows in one batch
+     */
+    public PartitionBatcher(AsyncWriter writer, Session session, int maxRows) {
+        this.writer = writer;
+        this.protocolVersion = session.getCluster().getConfiguration().getProtocolOptions().getProtocolVersion();
+        this.codecRegistry = session.getCluster().getConfiguration().getCodecRegistry();
+        this.maxRows = maxRows;
+    }
+
+    /**
+     * Adds a row insert.
+     *
+     * @param stmt bound insert, not modified afterwards
+     * @param size approximate serialized size of the row
+     * @throws IOException if interrupted while waiting for the write window
+     */
+    public void add(BoundStatement stmt, int size) throws IOException {
+        if (maxRows <= 1) {
+            writer.submit(stmt);
+            return;
+        }
+        ByteBuffer key = stmt.getRoutingKey(protocolVersion, codecRegistry);
+        if (!group.isEmpty() && ((key == null) || !key.equals(groupKey)
+                || (group.size() >= maxRows) || (groupBytes + size > MAX_BATCH_BYTES))) {
+            flush();
+        }
+        group.add(stmt);
+        groupKey = key;
+        groupBytes += size;
+    }
+
+    /**
+     * Sends the pending group.
+     *
+     * @throws IOException if interrupted while waiting for the write window
+     */
+    public void flush() throws IOException {
+        if (group.isEmpty()) {
+            return;
+        }
+        if (group.size() == 1) {
+            writer.submit(group.get(0));
+        } else {
+            BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+            batch.addAll(group);
+            writer.submit(batch);
+            batches++;
+        }
+        group.clear();
+        groupKey = null;
+        groupBytes = 0;
+    }
+
+    /**
+     * @return number of multi-row batches sent
+     */
+    public long getBatchCount() {
+        return batches;
+    }
+
+}
@@ -0,0 +1,137 @@
+package cqldump;
+
+import com.datastax.driver.core.Token;
+import com.datastax.driver.core.TokenRange;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Order independent digests of the rows of one table, one per token range.
+ * A range digest is the row count and the sums of the two halves of the
+ * 128 bit murmur3 hash of every row, so rows can be added in any order and
+ * from any thread, and a missing, extra or changed row changes the digest
+ * of its range. Memory is three longs per range regardless of the rows.
+ * <p>
+ * A table without tokens for its rows uses a single digest for the whole
+ * ring.
+ *
+ * @author theider
+ */
+public class RangeDigests {
+
+    private static final HashFunction ROW_HASH = Hashing.murmur3_128();
+
+    private final List<TokenRange> ranges;
+    private final AtomicLongArray rows;
+    private final AtomicLongArray sumHigh;
+    private final AtomicLongArray sumLow;
+
+    /**
+     * @param ranges non-overlapping ranges covering the ring, empty for a
+     * single digest of the whole ring
+     */
+    public RangeDigests(List<TokenRange> ranges) {
+        this.ranges = new ArrayList<>(ranges);
+        Collections.sort(this.ranges);
+        int count = Math.max(1, ranges.size());
+        rows = new AtomicLongArray(count);
+        sumHigh = new AtomicLongArray(count);
+        sumLow = new AtomicLongArray(count);
+    }
+
+    public boolean isByRange() {
+        return !ranges.isEmpty();
+    }
+
+    public List<TokenRange> getRanges() {
+        return Collections.unmodifiableList(ranges);
+    }
+
+    /**
+     * @return number of digests
+     */
+    public int size() {
+        return rows.length();
+    }
+
+    /**
+     * @param token token of a row, ignored for a single digest
+     * @return digest the row belongs to
+     */
+    public int indexOf(Token token) {
+        if (ranges.isEmpty()) {
+            return 0;
+        }
+        // the last range starting before the token
+        int low = 0;
+        int high = ranges.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (ranges.get(mid).getStart().compareTo(token) < 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (ranges.get(low).contains(token)) {
+            return low;
+        }
+        for (int i = 0; i < ranges.size(); i++) {
+            if (ranges.get(i).contains(token)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("token " + token + " outside of the ranges");
+    }
+
+    /**
+     * Adds a row.
+     *
+     * @param index digest of the row
+     * @param b buffer holding the encoded row
+     * @param offset start of the row
+     * @param length row length
+     */
+    public void add(int index, byte[] b, int offset, int length) {
+        ByteBuffer hash = ByteBuffer.wrap(ROW_HASH.hashBytes(b, offset, length).asBytes());
+        rows.incrementAndGet(index);
+        sumHigh.addAndGet(index, hash.getLong(0));
+        sumLow.addAndGet(index, hash.getLong(8));
+    }
+
+    public long getRows(int index) {
+        return rows.get(index);
+    }
+
+    public long getTotalRows() {
+        long total = 0;
+        for (int i = 0; i < rows.length(); i++) {
+            total += rows.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @param other digests of the same ranges
+     * @return indexes of the ranges whose digests differ
+     */
+    public List<Integer> compare(RangeDigests other) {
+        if (other.size() != size()) {
+            throw new IllegalArgumentException("digests of " + other.size() + " and " + size() + " ranges");
+        }
+        List<Integer> mismatched = new ArrayList<>();
+        for (int i = 0; i < size(); i++) {
+            if ((rows.get(i) != other.rows.get(i)) || (sumHigh.get(i) != other.sumHigh.get(i))
+                    || (sumLow.get(i) != other.sumLow.get(i))) {
+                mismatched.add(i);
+            }
+        }
+        return mismatched;
+    }
+
+}
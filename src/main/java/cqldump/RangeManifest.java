@@ -0,0 +1,312 @@
+package cqldump;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/**
+ * Content digest and row count of every token range of every table in an
+ * export. A named manifest is kept in the servlet temp directory; a delta
+ * export compares the digests of its scan with the stored manifest and only
+ * writes the ranges that changed. Digests are taken over the encoded
+ * records, so they only compare between exports of the same format, and
+ * range keys only compare between exports of the same token ring, which
+ * the manifest records as a digest of its range keys.
+ * <p>
+ * The server cannot tell whether a dump reached the client, so the
+ * manifest of an export is first kept as pending, with the id that is also
+ * in the dump's manifest.json. A delta export names the id of the dump it
+ * builds on: naming the pending id promotes the pending manifest, naming
+ * the current id drops the pending one, whose download failed. Any other id
+ * is refused, and a full export with the manifest name starts over.
+ *
+ * @author theider
+ */
+public class RangeManifest {
+
+    /**
+     * Digest and row count of one token range.
+     */
+    public static class RangeDigest {
+        private final String digest;
+        private final long rows;
+
+        public RangeDigest(String digest, long rows) {
+            this.digest = digest;
+            this.rows = rows;
+        }
+
+        public String getDigest() {
+            return digest;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RangeDigest)) {
+                return false;
+            }
+            RangeDigest other = (RangeDigest) o;
+            return digest.equals(other.digest) && (rows == other.rows);
+        }
+
+        @Override
+        public int hashCode() {
+            return digest.hashCode();
+        }
+    }
+
+    private final String id;
+    private final String keyspaceName;
+    private final DumpFormat format;
+    private final int splits;
+    private final String ring;
+    private final RangeManifest base;
+    private final Map<String, Map<String, RangeDigest>> tables = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> changed = new ConcurrentHashMap<>();
+
+    /**
+     * @param keyspaceName exported keyspace
+     * @param format record format of the export
+     * @param splits token sub-ranges of the export
+     * @param ring digest of the range keys of the export, see
+     * {@link #ringDigest(List)}
+     * @param base manifest of the previous export for a delta export, or null
+     */
+    public RangeManifest(String keyspaceName, DumpFormat format, int splits, String ring, RangeManifest base) {
+        this(UUID.randomUUID().toString(), keyspaceName, format, splits, ring, base);
+    }
+
+    private RangeManifest(String id, String keyspaceName, DumpFormat format, int splits, String ring, RangeManifest base) {
+        this.id = id;
+        this.keyspaceName = keyspaceName;
+        this.format = format;
+        this.splits = splits;
+        this.ring = ring;
+        this.base = base;
+    }
+
+    /**
+     * Digests the range keys an export scans, which change with the token
+     * ring, the number of splits and a token range selection.
+     *
+     * @param rangeKeys range keys in ring order
+     * @return digest of the keys
+     */
+    public static String ringDigest(List<String> rangeKeys) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (String key : rangeKeys) {
+            hasher.putString(key, StandardCharsets.UTF_8);
+            hasher.putByte((byte) ',');
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * @return id of the manifest, in the dump and named by the next delta
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return true if only changed ranges are exported
+     */
+    public boolean isDelta() {
+        return base != null;
+    }
+
+    /**
+     * @param tableName table name
+     * @param range range key
+     * @return digest of the range in the previous export, or null
+     */
+    public RangeDigest getBaseDigest(String tableName, String range) {
+        if (base == null) {
+            return null;
+        }
+        Map<String, RangeDigest> ranges = base.tables.get(tableName);
+        return (ranges == null) ? null : ranges.get(range);
+    }
+
+    /**
+     * Records the digest of a scanned range.
+     *
+     * @param tableName table name
+     * @param range range key
+     * @param digest digest and rows of the range
+     */
+    public void record(String tableName, String range, RangeDigest digest) {
+        tables.computeIfAbsent(tableName, name -> new ConcurrentHashMap<>()).put(range, digest);
+    }
+
+    /**
+     * Records a range that is in the dump because it differs from the base.
+     *
+     * @param tableName table name
+     * @param range range key
+     */
+    public void markChanged(String tableName, String range) {
+        changed.computeIfAbsent(tableName, name -> new ConcurrentSkipListSet<>()).add(range);
+    }
+
+    /**
+     * @param tableName table name
+     * @return ranges of the table written to a delta dump
+     */
+    public Set<String> getChangedRanges(String tableName) {
+        Set<String> ranges = changed.get(tableName);
+        return (ranges == null) ? Collections.<String>emptySet() : ranges;
+    }
+
+    /**
+     * Describes the changed ranges of a table for import, which clears them
+     * before it writes the table's rows.
+     *
+     * @param tableName table name
+     * @return content of the table's ranges entry
+     */
+    public JSONObject toRangesJSON(String tableName) {
+        JSONObject json = new JSONObject();
+        json.put("table", tableName);
+        JSONArray ranges = new JSONArray();
+        ranges.addAll(getChangedRanges(tableName));
+        json.put("changed", ranges);
+        return json;
+    }
+
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("id", id);
+        json.put("keyspace", keyspaceName);
+        json.put("format", format.getName());
+        json.put("splits", splits);
+        json.put("ring", ring);
+        json.put("delta", isDelta());
+        if (base != null) {
+            json.put("base", base.id);
+        }
+        JSONObject tablesJson = new JSONObject();
+        for (Map.Entry<String, Map<String, RangeDigest>> table : tables.entrySet()) {
+            JSONObject rangesJson = new JSONObject();
+            for (Map.Entry<String, RangeDigest> range : new TreeMap<>(table.getValue()).entrySet()) {
+                JSONObject rangeJson = new JSONObject();
+                rangeJson.put("digest", range.getValue().getDigest());
+                rangeJson.put("rows", range.getValue().getRows());
+                rangesJson.put(range.getKey(), rangeJson);
+            }
+            JSONObject tableJson = new JSONObject();
+            tableJson.put("ranges", rangesJson);
+            if (isDelta()) {
+                JSONArray changedJson = new JSONArray();
+                changedJson.addAll(getChangedRanges(table.getKey()));
+                tableJson.put("changed", changedJson);
+            }
+            tablesJson.put(table.getKey(), tableJson);
+        }
+        json.put("tables", tablesJson);
+        return json;
+    }
+
+    /**
+     * Writes the manifest, replacing the previous one in one step.
+     *
+     * @param file manifest file
+     * @throws IOException if the manifest cannot be written
+     */
+    public void save(File file) throws IOException {
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        Files.write(temp.toPath(), toJSON().toJSONString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Finds the base of a delta export. A pending manifest named as base is
+     * promoted to the current one; when the current manifest is named, the
+     * pending one belongs to a dump the client did not get and is dropped.
+     *
+     * @param file current manifest file
+     * @param pendingFile pending manifest file
+     * @param baseId manifest id named by the delta export
+     * @param format record format of the new export
+     * @param ring ring digest of the new export
+     * @return the base, or null if it was written in another format
+     * @throws IOException if the base is unknown, was taken on another ring
+     * or cannot be read
+     */
+    public static RangeManifest loadBase(File file, File pendingFile, String baseId, DumpFormat format, String ring) throws IOException {
+        if (pendingFile.exists() && baseId.equals(read(pendingFile).get("id"))) {
+            Files.move(pendingFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } else if (file.exists() && baseId.equals(read(file).get("id"))) {
+            Files.deleteIfExists(pendingFile.toPath());
+        } else {
+            throw new IOException("base manifest " + baseId + " is not known, a full export is needed");
+        }
+        return load(file, format, ring);
+    }
+
+    /**
+     * Reads a stored manifest as the base of a delta export.
+     *
+     * @param file manifest file
+     * @param format record format of the new export
+     * @param ring ring digest of the new export
+     * @return the manifest, or null if there is none or it was written in
+     * another format
+     * @throws IOException if the manifest was taken on another ring or
+     * cannot be read
+     */
+    public static RangeManifest load(File file, DumpFormat format, String ring) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        JSONObject json = read(file);
+        if (!format.getName().equals(json.get("format"))) {
+            return null;
+        }
+        // range keys of another ring never match, every range would differ
+        if (!ring.equals(json.get("ring"))) {
+            throw new IOException("manifest " + file.getName() + " was taken on another token ring or token range,"
+                    + " a full export is needed");
+        }
+        RangeManifest manifest = new RangeManifest((String) json.get("id"), (String) json.get("keyspace"), format,
+                ((Number) json.get("splits")).intValue(), ring, null);
+        JSONObject tablesJson = (JSONObject) json.get("tables");
+        for (Object tableName : tablesJson.keySet()) {
+            JSONObject rangesJson = (JSONObject) ((JSONObject) tablesJson.get(tableName)).get("ranges");
+            for (Object range : rangesJson.keySet()) {
+                JSONObject rangeJson = (JSONObject) rangesJson.get(range);
+                manifest.record((String) tableName, (String) range,
+                        new RangeDigest((String) rangeJson.get("digest"), ((Number) rangeJson.get("rows")).longValue()));
+            }
+        }
+        return manifest;
+    }
+
+    private static JSONObject read(File file) throws IOException {
+        JSONObject json = (JSONObject) JSONValue.parse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        if (json == null) {
+            throw new IOException("invalid manifest " + file);
+        }
+        return json;
+    }
+
+}
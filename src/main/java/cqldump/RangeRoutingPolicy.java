@@ -0,0 +1,129 @@
+package cqldump;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.StatementWrapper;
+import com.datastax.driver.core.TokenRange;
+import com.datastax.driver.core.policies.ChainableLoadBalancingPolicy;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Sends token range scans to a replica of their range. Token aware routing
+ * needs the partition key of a statement, which a range scan does not
+ * have, so without this policy every range scan takes an extra hop from a
+ * random coordinator to the replicas. Scans wrapped in a
+ * {@link RangeStatement} go to the up replicas of their range that the
+ * child policy treats as local, in random order, and then follow the
+ * child's plan; all other statements use the child's plan as is.
+ *
+ * @author theider
+ */
+public class RangeRoutingPolicy implements ChainableLoadBalancingPolicy {
+
+    private final LoadBalancingPolicy childPolicy;
+    private volatile Metadata metadata;
+
+    /**
+     * A statement that scans one token range.
+     */
+    public static class RangeStatement extends StatementWrapper {
+        private final TokenRange range;
+
+        public RangeStatement(Statement wrapped, TokenRange range) {
+            super(wrapped);
+            this.range = range;
+        }
+
+        public TokenRange getRange() {
+            return range;
+        }
+    }
+
+    public RangeRoutingPolicy(LoadBalancingPolicy childPolicy) {
+        this.childPolicy = childPolicy;
+    }
+
+    @Override
+    public LoadBalancingPolicy getChildPolicy() {
+        return childPolicy;
+    }
+
+    @Override
+    public void init(Cluster cluster, Collection<Host> hosts) {
+        metadata = cluster.getMetadata();
+        childPolicy.init(cluster, hosts);
+    }
+
+    @Override
+    public HostDistance distance(Host host) {
+        return childPolicy.distance(host);
+    }
+
+    @Override
+    public Iterator<Host> newQueryPlan(String loggedKeyspace, Statement statement) {
+        Iterator<Host> childPlan = childPolicy.newQueryPlan(loggedKeyspace, statement);
+        if (!(statement instanceof RangeStatement)) {
+            return childPlan;
+        }
+        String keyspace = statement.getKeyspace();
+        if (keyspace == null) {
+            keyspace = loggedKeyspace;
+        }
+        if (keyspace == null) {
+            return childPlan;
+        }
+        Set<Host> replicas = metadata.getReplicas(Metadata.quote(keyspace), ((RangeStatement) statement).getRange());
+        List<Host> local = new ArrayList<>();
+        for (Host host : replicas) {
+            if (host.isUp() && (childPolicy.distance(host) == HostDistance.LOCAL)) {
+                local.add(host);
+            }
+        }
+        if (local.isEmpty()) {
+            return childPlan;
+        }
+        // spread the scans of a range over its replicas
+        Collections.shuffle(local);
+        Set<Host> plan = new LinkedHashSet<>(local);
+        while (childPlan.hasNext()) {
+            plan.add(childPlan.next());
+        }
+        return plan.iterator();
+    }
+
+    @Override
+    public void onAdd(Host host) {
+        childPolicy.onAdd(host);
+    }
+
+    @Override
+    public void onUp(Host host) {
+        childPolicy.onUp(host);
+    }
+
+    @Override
+    public void onDown(Host host) {
+        childPolicy.onDown(host);
+    }
+
+    @Override
+    public void onRemove(Host host) {
+        childPolicy.onRemove(host);
+    }
+
+    @Override
+    public void close() {
+        childPolicy.close();
+    }
+
+}
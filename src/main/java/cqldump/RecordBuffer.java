@@ -0,0 +1,115 @@
+package cqldump;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer that is reset and reused between records instead of
+ * allocating new arrays per row.
+ *
+ * @author theider
+ */
+public class RecordBuffer {
+
+    private byte[] data;
+    private int length;
+
+    public RecordBuffer(int initialCapacity) {
+        data = new byte[initialCapacity];
+    }
+
+    public byte[] array() {
+        return data;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public void reset() {
+        length = 0;
+    }
+
+    /**
+     * Extends the buffer by the given number of bytes.
+     *
+     * @param count number of bytes to append
+     * @return backing array, the reserved bytes end at {@link #length()}
+     */
+    public byte[] reserve(int count) {
+        ensureCapacity(length + count);
+        length += count;
+        return data;
+    }
+
+    public void write(int b) {
+        if (length == data.length) {
+            ensureCapacity(length + 1);
+        }
+        data[length++] = (byte) b;
+    }
+
+    public void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    public void write(byte[] b, int offset, int count) {
+        ensureCapacity(length + count);
+        System.arraycopy(b, offset, data, length, count);
+        length += count;
+    }
+
+    /**
+     * Appends a string that only contains ASCII characters.
+     *
+     * @param text ASCII text
+     */
+    public void writeAscii(String text) {
+        int count = text.length();
+        ensureCapacity(length + count);
+        for (int i = 0; i < count; i++) {
+            data[length++] = (byte) text.charAt(i);
+        }
+    }
+
+    /**
+     * Appends the decimal form of a long, as {@link Long#toString(long)}.
+     *
+     * @param value number to write
+     */
+    public void writeDecimal(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            write('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        reserve(digits);
+        for (int i = length - 1; i >= length - digits; i--) {
+            data[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(data, 0, length);
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(data, length);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > data.length) {
+            data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+        }
+    }
+
+}
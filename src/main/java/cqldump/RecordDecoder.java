@@ -0,0 +1,103 @@
+package cqldump;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Turns one dumped JSON record into a bound INSERT. The record is parsed in
+ * place, its columns are resolved against the table metadata, usually by
+ * repeating the previous row's shape, and each value is bound by the
+ * column's {@link ColumnDecoder}.
+ *
+ * @author theider
+ */
+public class RecordDecoder {
+
+    private final Session session;
+    private final Map<String, KeyspaceImport.TableMetadata> tableMetadata;
+    private final RecordParser parser = new RecordParser();
+    private final RecordBuffer scratch;
+    private KeyspaceImport.TableMetadata metadata;
+    private int[] shape = new int[16];
+
+    /**
+     * @param session session the inserts are prepared on
+     * @param tableMetadata import metadata by table name
+     * @param bufferSize initial size of the unescape buffer
+     */
+    public RecordDecoder(Session session, Map<String, KeyspaceImport.TableMetadata> tableMetadata, int bufferSize) {
+        this.session = session;
+        this.tableMetadata = tableMetadata;
+        this.scratch = new RecordBuffer(bufferSize);
+    }
+
+    /**
+     * @return metadata of the table of the last decoded record
+     */
+    public KeyspaceImport.TableMetadata getTableMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Decodes a record.
+     *
+     * @param b buffer holding the record
+     * @param offset start of the record
+     * @param length record length
+     * @return insert bound with the record's values
+     * @throws IOException if the record is invalid or names an unknown
+     * table or column
+     */
+    public BoundStatement decode(byte[] b, int offset, int length) throws IOException {
+        parser.parse(b, offset, length);
+        if ((metadata == null) || !parser.isTableName(metadata.getTableNameBytes())) {
+            String tableName = parser.getTableName(scratch);
+            metadata = tableMetadata.get(tableName);
+            if (metadata == null) {
+                throw new IOException("no metadata for table " + tableName);
+            }
+        }
+        // resolve the row's columns, rows usually repeat the previous shape
+        int columnCount = parser.size();
+        if (shape.length < columnCount) {
+            shape = new int[columnCount];
+        }
+        for (int k = 0; k < columnCount; k++) {
+            int column;
+            if (parser.isKeyEscaped(k)) {
+                scratch.reset();
+                RecordParser.unescape(parser.array(), parser.keyOffset(k), parser.keyLength(k), scratch);
+                column = metadata.indexOf(scratch.array(), 0, scratch.length(), metadata.getLastShapeColumn(k));
+            } else {
+                column = metadata.indexOf(parser.array(), parser.keyOffset(k), parser.keyLength(k), metadata.getLastShapeColumn(k));
+            }
+            if (column < 0) {
+                throw new IOException("unknown column in table " + metadata.getTableName());
+            }
+            shape[k] = column;
+        }
+        PreparedStatement prepStmt = metadata.getInsertStatement(session, shape, columnCount);
+        BoundStatement bprep = new BoundStatement(prepStmt);
+        for (int k = 0; k < columnCount; k++) {
+            ColumnDecoder decoder = metadata.getDecoder(shape[k]);
+            switch (parser.valueKind(k)) {
+                case RecordParser.NULL:
+                    bprep.setToNull(k);
+                    break;
+                case RecordParser.ESCAPED:
+                    scratch.reset();
+                    RecordParser.unescape(parser.array(), parser.valueOffset(k), parser.valueLength(k), scratch);
+                    decoder.bind(bprep, k, scratch.array(), 0, scratch.length());
+                    break;
+                default:
+                    decoder.bind(bprep, k, parser.array(), parser.valueOffset(k), parser.valueLength(k));
+                    break;
+            }
+        }
+        return bprep;
+    }
+
+}
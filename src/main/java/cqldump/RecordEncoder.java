@@ -0,0 +1,18 @@
+package cqldump;
+
+import com.datastax.driver.core.Row;
+
+/**
+ * Appends one exported row, including its framing, to a buffer.
+ *
+ * @author theider
+ */
+public interface RecordEncoder {
+
+    /**
+     * @param row row to encode
+     * @param out destination buffer
+     */
+    void encode(Row row, RecordBuffer out);
+
+}
@@ -0,0 +1,387 @@
+package cqldump;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Pull parser for one dumped record,
+ * <code>{"data":{"col":"value",...},"table_name":"name"}</code>, in either
+ * key order. Parsing only records where keys and values are in the record
+ * buffer; values are decoded later straight from those positions, so a
+ * record is parsed without allocating.
+ *
+ * @author theider
+ */
+public class RecordParser {
+
+    private static final byte[] DATA = "data".getBytes();
+    private static final byte[] TABLE_NAME = "table_name".getBytes();
+
+    static final int NULL = 0;
+    static final int STRING = 1;
+    static final int ESCAPED = 2;
+    static final int LITERAL = 3;
+
+    private byte[] b;
+    private int p;
+    private int end;
+
+    private int size;
+    private int[] keyOffsets = new int[16];
+    private int[] keyLengths = new int[16];
+    private boolean[] keyEscaped = new boolean[16];
+    private int[] valueOffsets = new int[16];
+    private int[] valueLengths = new int[16];
+    private int[] valueKinds = new int[16];
+
+    private int tableNameOffset;
+    private int tableNameLength;
+    private boolean tableNameEscaped;
+
+    // position and escape flag of the last string scanned
+    private int stringOffset;
+    private int stringLength;
+    private boolean stringEscaped;
+
+    /**
+     * Parses a record.
+     *
+     * @param buffer buffer holding the record
+     * @param offset start of the record
+     * @param length record length
+     * @throws IOException if the record is not valid
+     */
+    public void parse(byte[] buffer, int offset, int length) throws IOException {
+        b = buffer;
+        p = offset;
+        end = offset + length;
+        size = 0;
+        tableNameOffset = -1;
+        expect('{');
+        if (peek() != '}') {
+            do {
+                string();
+                expect(':');
+                if (stringIs(DATA)) {
+                    data();
+                } else if (stringIs(TABLE_NAME)) {
+                    string();
+                    tableNameOffset = stringOffset;
+                    tableNameLength = stringLength;
+                    tableNameEscaped = stringEscaped;
+                } else {
+                    skipValue();
+                }
+            } while (next(',', '}'));
+        } else {
+            p++;
+        }
+        if (tableNameOffset < 0) {
+            throw new IOException("record has no table_name");
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] array() {
+        return b;
+    }
+
+    public int keyOffset(int k) {
+        return keyOffsets[k];
+    }
+
+    public int keyLength(int k) {
+        return keyLengths[k];
+    }
+
+    public boolean isKeyEscaped(int k) {
+        return keyEscaped[k];
+    }
+
+    public int valueKind(int k) {
+        return valueKinds[k];
+    }
+
+    public int valueOffset(int k) {
+        return valueOffsets[k];
+    }
+
+    public int valueLength(int k) {
+        return valueLengths[k];
+    }
+
+    /**
+     * Compares the record's table name with the given UTF-8 name.
+     *
+     * @param name table name bytes
+     * @return true if the record belongs to the table
+     */
+    public boolean isTableName(byte[] name) {
+        return !tableNameEscaped && (tableNameLength == name.length)
+                && regionEquals(b, tableNameOffset, name, 0, name.length);
+    }
+
+    public String getTableName(RecordBuffer scratch) throws IOException {
+        if (!tableNameEscaped) {
+            return new String(b, tableNameOffset, tableNameLength, StandardCharsets.UTF_8);
+        }
+        scratch.reset();
+        unescape(b, tableNameOffset, tableNameLength, scratch);
+        return new String(scratch.array(), 0, scratch.length(), StandardCharsets.UTF_8);
+    }
+
+    private void data() throws IOException {
+        expect('{');
+        if (peek() == '}') {
+            p++;
+            return;
+        }
+        do {
+            string();
+            if (size == keyOffsets.length) {
+                grow();
+            }
+            keyOffsets[size] = stringOffset;
+            keyLengths[size] = stringLength;
+            keyEscaped[size] = stringEscaped;
+            expect(':');
+            int c = peek();
+            if (c == '"') {
+                string();
+                valueOffsets[size] = stringOffset;
+                valueLengths[size] = stringLength;
+                valueKinds[size] = stringEscaped ? ESCAPED : STRING;
+            } else if ((c == '{') || (c == '[')) {
+                throw new IOException("unsupported nested value at " + p);
+            } else {
+                int start = p;
+                while ((p < end) && (b[p] != ',') && (b[p] != '}') && !isWhitespace(b[p])) {
+                    p++;
+                }
+                int length = p - start;
+                boolean isNull = (length == 4) && (b[start] == 'n') && (b[start + 1] == 'u')
+                        && (b[start + 2] == 'l') && (b[start + 3] == 'l');
+                valueOffsets[size] = start;
+                valueLengths[size] = length;
+                valueKinds[size] = isNull ? NULL : LITERAL;
+            }
+            size++;
+        } while (next(',', '}'));
+    }
+
+    private void string() throws IOException {
+        expect('"');
+        stringOffset = p;
+        stringEscaped = false;
+        while (p < end) {
+            byte c = b[p];
+            if (c == '"') {
+                stringLength = p - stringOffset;
+                p++;
+                return;
+            }
+            if (c == '\\') {
+                stringEscaped = true;
+                p++;
+            }
+            p++;
+        }
+        throw new IOException("unterminated string in record");
+    }
+
+    private void skipValue() throws IOException {
+        int c = peek();
+        if (c == '"') {
+            string();
+            return;
+        }
+        int depth = 0;
+        while (p < end) {
+            c = b[p];
+            if (c == '"') {
+                string();
+                continue;
+            }
+            if ((c == '{') || (c == '[')) {
+                depth++;
+            } else if ((c == '}') || (c == ']')) {
+                if (depth == 0) {
+                    return;
+                }
+                depth--;
+            } else if ((c == ',') && (depth == 0)) {
+                return;
+            }
+            p++;
+        }
+    }
+
+    private boolean stringIs(byte[] name) {
+        return !stringEscaped && (stringLength == name.length) && regionEquals(b, stringOffset, name, 0, name.length);
+    }
+
+    private int peek() throws IOException {
+        while ((p < end) && isWhitespace(b[p])) {
+            p++;
+        }
+        if (p == end) {
+            throw new IOException("unexpected end of record");
+        }
+        return b[p];
+    }
+
+    private void expect(char c) throws IOException {
+        if (peek() != c) {
+            throw new IOException("expected '" + c + "' at " + p + " in record");
+        }
+        p++;
+    }
+
+    /**
+     * Consumes a separator or the closing character.
+     *
+     * @return true if more members follow
+     */
+    private boolean next(char separator, char close) throws IOException {
+        int c = peek();
+        p++;
+        if (c == separator) {
+            return true;
+        }
+        if (c == close) {
+            return false;
+        }
+        throw new IOException("expected '" + separator + "' or '" + close + "' at " + (p - 1) + " in record");
+    }
+
+    private void grow() {
+        int capacity = keyOffsets.length * 2;
+        keyOffsets = Arrays.copyOf(keyOffsets, capacity);
+        keyLengths = Arrays.copyOf(keyLengths, capacity);
+        keyEscaped = Arrays.copyOf(keyEscaped, capacity);
+        valueOffsets = Arrays.copyOf(valueOffsets, capacity);
+        valueLengths = Arrays.copyOf(valueLengths, capacity);
+        valueKinds = Arrays.copyOf(valueKinds, capacity);
+    }
+
+    private static boolean isWhitespace(byte c) {
+        return (c == ' ') || (c == '\t') || (c == '\r') || (c == '\n');
+    }
+
+    static boolean regionEquals(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the escapes of a JSON string into UTF-8.
+     *
+     * @param b buffer holding the string content
+     * @param offset start of the content, after the opening quote
+     * @param length content length
+     * @param out destination buffer
+     * @throws IOException if an escape is invalid
+     */
+    public static void unescape(byte[] b, int offset, int length, RecordBuffer out) throws IOException {
+        int end = offset + length;
+        int pendingHigh = -1;
+        for (int i = offset; i < end; i++) {
+            byte c = b[i];
+            if (c != '\\') {
+                if (pendingHigh >= 0) {
+                    out.write('?');
+                    pendingHigh = -1;
+                }
+                out.write(c);
+                continue;
+            }
+            if (++i == end) {
+                throw new IOException("invalid escape at end of string");
+            }
+            c = b[i];
+            int ch;
+            switch (c) {
+                case 'b':
+                    ch = '\b';
+                    break;
+                case 'f':
+                    ch = '\f';
+                    break;
+                case 'n':
+                    ch = '\n';
+                    break;
+                case 'r':
+                    ch = '\r';
+                    break;
+                case 't':
+                    ch = '\t';
+                    break;
+                case 'u':
+                    if (i + 4 >= end) {
+                        throw new IOException("invalid unicode escape");
+                    }
+                    ch = 0;
+                    for (int k = 1; k <= 4; k++) {
+                        int d = Character.digit(b[i + k], 16);
+                        if (d < 0) {
+                            throw new IOException("invalid unicode escape");
+                        }
+                        ch = (ch << 4) | d;
+                    }
+                    i += 4;
+                    break;
+                default:
+                    // quote, backslash and slash stand for themselves
+                    ch = c;
+                    break;
+            }
+            if (Character.isHighSurrogate((char) ch)) {
+                if (pendingHigh >= 0) {
+                    out.write('?');
+                }
+                pendingHigh = ch;
+                continue;
+            }
+            if (Character.isLowSurrogate((char) ch) && (pendingHigh >= 0)) {
+                writeUTF8(Character.toCodePoint((char) pendingHigh, (char) ch), out);
+                pendingHigh = -1;
+                continue;
+            }
+            if (pendingHigh >= 0) {
+                out.write('?');
+                pendingHigh = -1;
+            }
+            writeUTF8(Character.isSurrogate((char) ch) ? '?' : ch, out);
+        }
+        if (pendingHigh >= 0) {
+            out.write('?');
+        }
+    }
+
+    private static void writeUTF8(int cp, RecordBuffer out) {
+        if (cp < 0x80) {
+            out.write(cp);
+        } else if (cp < 0x800) {
+            out.write(0xc0 | (cp >> 6));
+            out.write(0x80 | (cp & 0x3f));
+        } else if (cp < 0x10000) {
+            out.write(0xe0 | (cp >> 12));
+            out.write(0x80 | ((cp >> 6) & 0x3f));
+            out.write(0x80 | (cp & 0x3f));
+        } else {
+            out.write(0xf0 | (cp >> 18));
+            out.write(0x80 | ((cp >> 12) & 0x3f));
+            out.write(0x80 | ((cp >> 6) & 0x3f));
+            out.write(0x80 | (cp & 0x3f));
+        }
+    }
+
+}
@@ -0,0 +1,405 @@
+package cqldump;
+
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.Row;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Streaming encoder for exported rows. The column plan (output order, key
+ * bytes and a writer per column type) is built once per table, each row is
+ * then written straight into a reusable {@link RecordBuffer} using index
+ * based getters.
+ * <p>
+ * The output is byte for byte what the previous json-simple encoding
+ * produced with a UTF-8 platform charset: the same HashMap key order, the
+ * same escaping, and the <code>\r\n%8s</code> hex length prefix. A cell
+ * is written as null exactly when <code>getObject</code> returns null, so
+ * an empty collection is still written as <code>"[]"</code> and an empty
+ * number as null.
+ *
+ * @author theider
+ */
+public class RowEncoder implements RecordEncoder {
+
+    // CRLF plus eight characters of space padded hex length
+    static final int FRAME_HEADER_SIZE = 10;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final byte[] NULL = "null".getBytes();
+    private static final byte[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+    /**
+     * Writes the text form of a cell, or null where the cell's
+     * <code>getObject</code> value is null.
+     */
+    interface ColumnWriter {
+
+        void write(Row row, int index, RecordBuffer out);
+    }
+
+    private static final ColumnWriter UUID_WRITER = (row, index, out) -> {
+        // null for a null or empty cell
+        UUID uuid = row.getUUID(index);
+        if (uuid == null) {
+            out.write(NULL);
+            return;
+        }
+        out.write('"');
+        writeUUID(uuid, out);
+        out.write('"');
+    };
+
+    private static final ColumnWriter BLOB_WRITER = (row, index, out) -> {
+        // an empty blob is an empty string
+        ByteBuffer value = row.getBytesUnsafe(index);
+        if (value == null) {
+            out.write(NULL);
+            return;
+        }
+        out.write('"');
+        writeBase64(value, out);
+        out.write('"');
+    };
+
+    private static final ColumnWriter TIMESTAMP_WRITER = (row, index, out) -> {
+        Date date = row.getTimestamp(index);
+        if (date == null) {
+            out.write(NULL);
+            return;
+        }
+        out.write('"');
+        Timestamps.format(date.getTime(), out);
+        out.write('"');
+    };
+
+    // the primitive getters read an empty cell as 0 or false, getObject as null
+
+    private static final ColumnWriter BIGINT_WRITER = (row, index, out) -> {
+        if (isNullOrEmpty(row, index)) {
+            out.write(NULL);
+            return;
+        }
+        out.write('"');
+        out.writeDecimal(row.getLong(index));
+        out.write('"');
+    };
+
+    private static final ColumnWriter INT_WRITER = (row, index, out) -> {
+        if (isNullOrEmpty(row, index)) {
+            out.write(NULL);
+            return;
+        }
+        out.write('"');
+        out.writeDecimal(row.getInt(index));
+        out.write('"');
+    };
+
+    private static final ColumnWriter BOOLEAN_WRITER = (row, index, out) -> {
+        if (isNullOrEmpty(row, index)) {
+            out.write(NULL);
+            return;
+        }
+        out.writeAscii(row.getBool(index) ? "\"true\"" : "\"false\"");
+    };
+
+    private static final ColumnWriter TEXT_WRITER = (row, index, out) -> {
+        String text = row.getString(index);
+        if (text == null) {
+            out.write(NULL);
+            return;
+        }
+        writeString(text, out);
+    };
+
+    private static final ColumnWriter OBJECT_WRITER = (row, index, out) -> {
+        // collections read a null cell as empty and are written as such
+        Object o = row.getObject(index);
+        if (o == null) {
+            out.write(NULL);
+            return;
+        }
+        writeString(o.toString(), out);
+    };
+
+    private final byte[] tableNameField;
+    private final boolean dataFirst;
+    private final int[] order;
+    private final byte[][] keys;
+    private final ColumnWriter[] writers;
+
+    /**
+     * @param tableName table name written into each record
+     * @param names column names in result set order
+     * @param types column types in result set order
+     */
+    public RowEncoder(String tableName, List<String> names, List<DataType> types) {
+        // json-simple objects are HashMaps, so the record keys come out in
+        // the iteration order of a HashMap filled in column order
+        Map<String, Integer> positions = new HashMap<>();
+        for (int i = 0; i < names.size(); i++) {
+            positions.put(names.get(i), i);
+        }
+        order = new int[positions.size()];
+        keys = new byte[order.length][];
+        writers = new ColumnWriter[order.length];
+        int k = 0;
+        for (Map.Entry<String, Integer> entry : positions.entrySet()) {
+            int index = entry.getValue();
+            order[k] = index;
+            keys[k] = quote("", entry.getKey(), ":");
+            writers[k] = getWriter(types.get(index));
+            k++;
+        }
+        Map<String, Object> record = new HashMap<>();
+        record.put("data", null);
+        record.put("table_name", null);
+        dataFirst = record.keySet().iterator().next().equals("data");
+        tableNameField = quote("\"table_name\":", tableName, "");
+    }
+
+    /**
+     * Builds the encoder from the columns of a result set.
+     *
+     * @param tableName table name written into each record
+     * @param definitions result set columns
+     * @return encoder for rows of that result set
+     */
+    public static RowEncoder forColumns(String tableName, ColumnDefinitions definitions) {
+        List<String> names = new ArrayList<>(definitions.size());
+        List<DataType> types = new ArrayList<>(definitions.size());
+        for (int i = 0; i < definitions.size(); i++) {
+            names.add(definitions.getName(i));
+            types.add(definitions.getType(i));
+        }
+        return new RowEncoder(tableName, names, types);
+    }
+
+    private static ColumnWriter getWriter(DataType type) {
+        switch (type.getName()) {
+            case UUID:
+            case TIMEUUID:
+                return UUID_WRITER;
+            case BLOB:
+                return BLOB_WRITER;
+            case TIMESTAMP:
+                return TIMESTAMP_WRITER;
+            case BIGINT:
+            case COUNTER:
+                return BIGINT_WRITER;
+            case INT:
+                return INT_WRITER;
+            case BOOLEAN:
+                return BOOLEAN_WRITER;
+            case ASCII:
+            case TEXT:
+            case VARCHAR:
+                return TEXT_WRITER;
+            default:
+                return OBJECT_WRITER;
+        }
+    }
+
+    @Override
+    public void encode(Row row, RecordBuffer out) {
+        int start = out.length();
+        out.reserve(FRAME_HEADER_SIZE);
+        out.write('{');
+        if (!dataFirst) {
+            out.write(tableNameField);
+            out.write(',');
+        }
+        out.writeAscii("\"data\":{");
+        for (int k = 0; k < order.length; k++) {
+            if (k != 0) {
+                out.write(',');
+            }
+            out.write(keys[k]);
+            writers[k].write(row, order[k], out);
+        }
+        out.write('}');
+        if (dataFirst) {
+            out.write(',');
+            out.write(tableNameField);
+        }
+        out.write('}');
+        writeFrameHeader(out.array(), start, out.length() - start - FRAME_HEADER_SIZE);
+    }
+
+    /**
+     * Writes the CRLF and space padded hex record length in front of a
+     * record.
+     *
+     * @param b buffer holding the record
+     * @param offset start of the reserved header bytes
+     * @param recordLength number of record bytes after the header
+     */
+    static void writeFrameHeader(byte[] b, int offset, int recordLength) {
+        b[offset] = '\r';
+        b[offset + 1] = '\n';
+        int p = offset + FRAME_HEADER_SIZE - 1;
+        do {
+            b[p--] = HEX[recordLength & 0xf];
+            recordLength >>>= 4;
+        } while (recordLength != 0);
+        while (p > offset + 1) {
+            b[p--] = ' ';
+        }
+    }
+
+    private static boolean isNullOrEmpty(Row row, int index) {
+        ByteBuffer value = row.getBytesUnsafe(index);
+        return (value == null) || !value.hasRemaining();
+    }
+
+    private static void writeUUID(UUID uuid, RecordBuffer out) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        writeHex(msb >>> 32, 8, out);
+        out.write('-');
+        writeHex(msb >>> 16, 4, out);
+        out.write('-');
+        writeHex(msb, 4, out);
+        out.write('-');
+        writeHex(lsb >>> 48, 4, out);
+        out.write('-');
+        writeHex(lsb, 12, out);
+    }
+
+    private static void writeHex(long value, int digits, RecordBuffer out) {
+        byte[] b = out.reserve(digits);
+        for (int i = out.length() - 1; i >= out.length() - digits; i--) {
+            b[i] = HEX[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+    }
+
+    private static void writeBase64(ByteBuffer buffer, RecordBuffer out) {
+        byte[] src = buffer.array();
+        int i = buffer.arrayOffset() + buffer.position();
+        int end = i + buffer.remaining();
+        for (; i + 2 < end; i += 3) {
+            int v = ((src[i] & 0xff) << 16) | ((src[i + 1] & 0xff) << 8) | (src[i + 2] & 0xff);
+            writeBase64Digit(v >>> 18, out);
+            writeBase64Digit(v >>> 12, out);
+            writeBase64Digit(v >>> 6, out);
+            writeBase64Digit(v, out);
+        }
+        int rest = end - i;
+        if (rest == 1) {
+            int v = (src[i] & 0xff) << 16;
+            writeBase64Digit(v >>> 18, out);
+            writeBase64Digit(v >>> 12, out);
+            out.write('=');
+            out.write('=');
+        } else if (rest == 2) {
+            int v = ((src[i] & 0xff) << 16) | ((src[i + 1] & 0xff) << 8);
+            writeBase64Digit(v >>> 18, out);
+            writeBase64Digit(v >>> 12, out);
+            writeBase64Digit(v >>> 6, out);
+            out.write('=');
+        }
+    }
+
+    private static void writeBase64Digit(int v, RecordBuffer out) {
+        byte digit = BASE64[v & 0x3f];
+        if (digit == '/') {
+            // json-simple escapes the slash
+            out.write('\\');
+        }
+        out.write(digit);
+    }
+
+    /**
+     * Writes a quoted JSON string with json-simple escaping, UTF-8 encoded.
+     */
+    static void writeString(String text, RecordBuffer out) {
+        out.write('"');
+        int count = text.length();
+        for (int i = 0; i < count; i++) {
+            char ch = text.charAt(i);
+            switch (ch) {
+                case '"':
+                    out.write('\\');
+                    out.write('"');
+                    break;
+                case '\\':
+                    out.write('\\');
+                    out.write('\\');
+                    break;
+                case '\b':
+                    out.write('\\');
+                    out.write('b');
+                    break;
+                case '\f':
+                    out.write('\\');
+                    out.write('f');
+                    break;
+                case '\n':
+                    out.write('\\');
+                    out.write('n');
+                    break;
+                case '\r':
+                    out.write('\\');
+                    out.write('r');
+                    break;
+                case '\t':
+                    out.write('\\');
+                    out.write('t');
+                    break;
+                case '/':
+                    out.write('\\');
+                    out.write('/');
+                    break;
+                default:
+                    if ((ch <= '\u001F') || (ch >= '\u007F' && ch <= '\u009F') || (ch >= '\u2000' && ch <= '\u20FF')) {
+                        out.write('\\');
+                        out.write('u');
+                        writeHexUpper(ch, out);
+                    } else if (ch < 0x80) {
+                        out.write(ch);
+                    } else if (ch < 0x800) {
+                        out.write(0xc0 | (ch >> 6));
+                        out.write(0x80 | (ch & 0x3f));
+                    } else if (Character.isHighSurrogate(ch) && (i + 1 < count) && Character.isLowSurrogate(text.charAt(i + 1))) {
+                        int cp = Character.toCodePoint(ch, text.charAt(++i));
+                        out.write(0xf0 | (cp >> 18));
+                        out.write(0x80 | ((cp >> 12) & 0x3f));
+                        out.write(0x80 | ((cp >> 6) & 0x3f));
+                        out.write(0x80 | (cp & 0x3f));
+                    } else if (Character.isSurrogate(ch)) {
+                        // unpaired surrogates are replaced as String.getBytes does
+                        out.write('?');
+                    } else {
+                        out.write(0xe0 | (ch >> 12));
+                        out.write(0x80 | ((ch >> 6) & 0x3f));
+                        out.write(0x80 | (ch & 0x3f));
+                    }
+                    break;
+            }
+        }
+        out.write('"');
+    }
+
+    private static void writeHexUpper(char ch, RecordBuffer out) {
+        for (int shift = 12; shift >= 0; shift -= 4) {
+            int d = (ch >> shift) & 0xf;
+            out.write(d < 10 ? '0' + d : 'A' + d - 10);
+        }
+    }
+
+    private static byte[] quote(String prefix, String text, String suffix) {
+        RecordBuffer buffer = new RecordBuffer(prefix.length() + text.length() + suffix.length() + 8);
+        buffer.writeAscii(prefix);
+        writeString(text, buffer);
+        buffer.writeAscii(suffix);
+        return buffer.toByteArray();
+    }
+
+}
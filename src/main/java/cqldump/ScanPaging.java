@@ -0,0 +1,255 @@
+package cqldump;
+
+import com.datastax.driver.core.PagingState;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Paging of the export scans of a job. A scan asks for its next page in
+ * the background as soon as fewer than half a page of rows are left, so
+ * the encoder rarely waits for Cassandra.
+ * <p>
+ * The page size starts small and is set again before every page request:
+ * it doubles while pages come back in well under
+ * {@link #TARGET_PAGE_MILLIS} and halves when they take longer, and it is
+ * capped by the memory of the job. The memory is shared evenly by the
+ * scans running at the time, and each scan holds up to two pages, the one
+ * it reads and the one being fetched; the width of a row is taken from the
+ * encoded size of the rows already seen. Narrow tables so end up with few
+ * large pages and tables of large blobs with small ones. A scan starts
+ * from the page size and row width the previous scan of its table ended
+ * with.
+ *
+ * @author theider
+ */
+public class ScanPaging {
+
+    public static final long DEFAULT_MEMORY_MB = 64;
+
+    static final int INITIAL_FETCH_SIZE = 20;
+    static final int MAX_FETCH_SIZE = 20000;
+    static final long TARGET_PAGE_MILLIS = 250;
+
+    private static final long TARGET_PAGE_NANOS = TimeUnit.MILLISECONDS.toNanos(TARGET_PAGE_MILLIS);
+
+    private final long memory;
+    private final AtomicInteger scans = new AtomicInteger();
+    // page size and row width each table's last scan ended with
+    private final Map<String, double[]> learned = new ConcurrentHashMap<>();
+
+    /**
+     * @param memory bytes of rows the scans of the job may hold
+     */
+    public ScanPaging(long memory) {
+        if (memory <= 0) {
+            throw new IllegalArgumentException("fetch memory must be positive");
+        }
+        this.memory = memory;
+    }
+
+    /**
+     * Builds the paging of a request from its fetchmemory parameter.
+     *
+     * @param memoryText megabytes of rows the scans may hold, empty or null
+     * for the default
+     * @return paging of the job
+     * @throws IllegalArgumentException if the value is not valid
+     */
+    public static ScanPaging forParameter(String memoryText) {
+        if( (memoryText == null) || memoryText.isEmpty() ) {
+            memoryText = Long.toString(DEFAULT_MEMORY_MB);
+        }
+        return new ScanPaging(Long.parseLong(memoryText) * 1024 * 1024);
+    }
+
+    public long getMemory() {
+        return memory;
+    }
+
+    /**
+     * Starts a scan, the pager must be closed when the scan ends.
+     *
+     * @param stmt scan query, its fetch size is managed by the pager
+     * @param tableMetrics receives the page latencies
+     * @return pager of the scan
+     */
+    public Pager open(Statement stmt, TableMetrics tableMetrics) {
+        scans.incrementAndGet();
+        return new Pager(stmt, tableMetrics);
+    }
+
+    /**
+     * Pages through the result set of one scan. Not thread safe, the scan
+     * thread makes all calls.
+     */
+    public class Pager implements AutoCloseable {
+        private final Statement stmt;
+        private final TableMetrics tableMetrics;
+        private ResultSet rs;
+        private Iterator<Row> iter;
+        private ListenableFuture<ResultSet> fetch;
+        private boolean prefetch = true;
+        private boolean closed;
+        private int fetchSize = INITIAL_FETCH_SIZE;
+        // encoded bytes per row, 0 until the first page is read
+        private double rowBytes;
+        private long pageRows;
+        private long pageBytes;
+        // latency of the last page that came back
+        private volatile long pageNanos;
+
+        Pager(Statement stmt, TableMetrics tableMetrics) {
+            this.stmt = stmt;
+            this.tableMetrics = tableMetrics;
+            double[] last = learned.get(tableMetrics.getTableName());
+            if (last != null) {
+                rowBytes = last[1];
+                fetchSize = limit((long) last[0]);
+            }
+            stmt.setFetchSize(fetchSize);
+        }
+
+        /**
+         * Runs the query for the first page.
+         *
+         * @param session session of the scan
+         * @return the result set
+         */
+        public ResultSet execute(Session session) {
+            long start = System.nanoTime();
+            rs = session.execute(stmt);
+            pageNanos = System.nanoTime() - start;
+            tableMetrics.addRequest(pageNanos);
+            iter = rs.iterator();
+            return rs;
+        }
+
+        /**
+         * @return true if there is another row, waits if its page has not
+         * arrived yet
+         */
+        public boolean hasNext() {
+            if (!rs.isFullyFetched()) {
+                int available = rs.getAvailableWithoutFetching();
+                if (available == 0) {
+                    // the scan caught up with the fetch
+                    fetchNext(true);
+                } else if (prefetch && (available < (fetchSize + 1) / 2)) {
+                    fetchNext(false);
+                }
+            }
+            return iter.hasNext();
+        }
+
+        public Row next() {
+            return iter.next();
+        }
+
+        /**
+         * Reports the encoded size of a row for the page size.
+         *
+         * @param bytes encoded bytes of the row
+         */
+        public void addRow(int bytes) {
+            pageRows++;
+            pageBytes += bytes;
+        }
+
+        /**
+         * Stops or resumes fetching ahead, a scan that wants to stop at a
+         * page boundary turns it off until {@link #isPageEnd} is reached.
+         *
+         * @param prefetch true to fetch the next page in the background
+         */
+        public void setPrefetch(boolean prefetch) {
+            this.prefetch = prefetch;
+        }
+
+        /**
+         * @return true if the rows read so far end exactly at a page and
+         * no page is on the way, so {@link #getPagingState} is where the
+         * scan continues
+         */
+        public boolean isPageEnd() {
+            return (rs.getAvailableWithoutFetching() == 0) && ((fetch == null) || fetch.isDone());
+        }
+
+        /**
+         * @return paging state after the last page read, null at the end
+         */
+        public PagingState getPagingState() {
+            return rs.getExecutionInfo().getPagingState();
+        }
+
+        public int getFetchSize() {
+            return fetchSize;
+        }
+
+        private void fetchNext(boolean waiting) {
+            if ((fetch != null) && !fetch.isDone()) {
+                return;
+            }
+            resize();
+            stmt.setFetchSize(fetchSize);
+            long start = System.nanoTime();
+            fetch = rs.fetchMoreResults();
+            fetch.addListener(() -> {
+                long nanos = System.nanoTime() - start;
+                pageNanos = nanos;
+                if (waiting) {
+                    tableMetrics.addRequest(nanos);
+                } else {
+                    // overlapped with encoding, not Cassandra time of the scan
+                    tableMetrics.getRequestTimer().update(nanos, TimeUnit.NANOSECONDS);
+                }
+            }, MoreExecutors.directExecutor());
+        }
+
+        private void resize() {
+            if (pageRows > 0) {
+                double width = (double) pageBytes / pageRows;
+                rowBytes = (rowBytes == 0) ? width : (rowBytes + width) / 2;
+                pageRows = 0;
+                pageBytes = 0;
+            }
+            long size = fetchSize;
+            long nanos = pageNanos;
+            if (nanos > TARGET_PAGE_NANOS) {
+                size = size / 2;
+            } else if (nanos < TARGET_PAGE_NANOS / 2) {
+                size = size * 2;
+            }
+            fetchSize = limit(size);
+        }
+
+        private int limit(long size) {
+            if (rowBytes > 0) {
+                // the page being read and the one being fetched
+                long share = memory / (2L * Math.max(1, scans.get()));
+                size = Math.min(size, (long) (share / rowBytes));
+            }
+            return (int) Math.max(1, Math.min(size, MAX_FETCH_SIZE));
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                scans.decrementAndGet();
+                if (rowBytes > 0) {
+                    learned.put(tableMetrics.getTableName(), new double[]{fetchSize, rowBytes});
+                }
+            }
+        }
+    }
+
+}
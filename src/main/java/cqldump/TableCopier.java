@@ -0,0 +1,281 @@
+package cqldump;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.TokenRange;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.log4j.Logger;
+
+/**
+ * Copies the rows of one table from a source to a target cluster without
+ * encoding them. The token ring is scanned by range on the scan pool, the
+ * serialized cells of every source row are bound unchanged to the prepared
+ * INSERT of the target table, and the bound inserts are handed through a
+ * bounded queue to a single writer that keeps a window of asynchronous
+ * writes in flight. A slow target so fills the queue and holds the scans
+ * back, and no more than the queue and the write window are held in
+ * memory.
+ * <p>
+ * Cells are bound as the source serialized them, like rows of a binary
+ * dump, so both clusters need the same native protocol serialization.
+ * <p>
+ * An {@link ExportSelection} limits the columns, restricts the range scans
+ * to a token range, or replaces them with one query per selected partition.
+ *
+ * @author theider
+ */
+public class TableCopier {
+
+    private static final Logger log = Logger.getLogger(TableCopier.class);
+
+    // inserts are handed to the writer in chunks of this many rows or bytes
+    private static final int CHUNK_ROWS = 256;
+    private static final int CHUNK_BYTES = 65536;
+    // chunks waiting for the writer
+    private static final int QUEUE_CHUNKS = 64;
+
+    private final Session session;
+    private final Metadata metadata;
+    private final TableMetadata tmd;
+    private final ExecutorService scanPool;
+    private final int splits;
+    private final Throttle throttle;
+    private final ScanPaging paging;
+    private final ExportSelection selection;
+    private final Session targetSession;
+    private final KeyspaceImport.TableMetadata targetMetadata;
+    private final int writeWindow;
+    private final int batchRows;
+    private final TableMetrics tableMetrics;
+    private final AtomicLong rowCount = new AtomicLong();
+
+    /**
+     * Inserts of one scan, or the end of the scan when rows is null.
+     */
+    private static class Chunk {
+        private final List<BoundStatement> rows;
+        private final int[] sizes;
+        private final int bytes;
+
+        Chunk(List<BoundStatement> rows, int[] sizes, int bytes) {
+            this.rows = rows;
+            this.sizes = sizes;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * @param session session connected to the source keyspace
+     * @param metadata source cluster metadata used for the token ring
+     * @param tmd table to copy
+     * @param scanPool pool that runs the range scans
+     * @param splits minimum number of token sub-ranges
+     * @param throttle rate limit of the copy, shared by the tables of a job
+     * @param paging page sizes of the scans, shared by the tables of a job
+     * @param selection columns, tokens and partitions to copy
+     * @param targetSession session connected to the target keyspace
+     * @param targetMetadata target table, its prepared inserts are shared
+     * @param writeWindow writes in flight on the target
+     * @param batchRows rows per partition batch, 1 for single inserts
+     * @param tableMetrics metrics of the table
+     */
+    public TableCopier(Session session, Metadata metadata, TableMetadata tmd, ExecutorService scanPool, int splits, Throttle throttle, ScanPaging paging, ExportSelection selection, Session targetSession, KeyspaceImport.TableMetadata targetMetadata, int writeWindow, int batchRows, TableMetrics tableMetrics) {
+        this.session = session;
+        this.metadata = metadata;
+        this.tmd = tmd;
+        this.scanPool = scanPool;
+        this.splits = splits;
+        this.throttle = throttle;
+        this.paging = paging;
+        this.selection = selection;
+        this.targetSession = targetSession;
+        this.targetMetadata = targetMetadata;
+        this.writeWindow = writeWindow;
+        this.batchRows = batchRows;
+        this.tableMetrics = tableMetrics;
+    }
+
+    public long getRowCount() {
+        return rowCount.get();
+    }
+
+    /**
+     * Copies all selected rows and waits until the target acknowledged
+     * their writes.
+     *
+     * @return rows copied
+     * @throws IOException if a scan or a write fails
+     */
+    public long copy() throws IOException {
+        // the select list and the INSERT name the columns in the same order
+        List<String> columnNames = new ArrayList<>();
+        for (ColumnMetadata cmd : selection.getColumns(tmd)) {
+            columnNames.add(Metadata.quoteIfNecessary(cmd.getName()));
+        }
+        PreparedStatement insert = targetMetadata.getInsertStatement(targetSession, columnNames);
+        String selectList = selection.getSelectList(tmd, DumpFormat.BINARY);
+        List<BoundStatement> statements = new ArrayList<>();
+        List<TokenRange> ranges = null;
+        if (selection.hasPartitionKeys()) {
+            PreparedStatement prepStmt = TableExporter.preparePartitionScan(session, tmd, selectList);
+            statements = selection.bindPartitions(prepStmt, tmd);
+            log.info("copying " + tmd.getName() + " in " + statements.size() + " partitions");
+        } else {
+            PreparedStatement prepStmt = TableExporter.prepareRangeScan(session, tmd, selectList);
+            ranges = selection.restrict(metadata, TableExporter.getRanges(metadata, splits));
+            for (TokenRange range : ranges) {
+                statements.add(TableExporter.bindRange(prepStmt, range));
+            }
+            log.info("copying " + tmd.getName() + " in " + ranges.size() + " token ranges");
+        }
+        copyStatements(statements, ranges, insert, columnNames.size());
+        log.info(" -- copied " + rowCount.get() + " rows of table " + tmd.getName());
+        return rowCount.get();
+    }
+
+    /**
+     * Runs the scans on the scan pool and writes their inserts as they
+     * come.
+     *
+     * @param statements bound scan queries
+     * @param ranges token range of each scan, null for partition queries
+     */
+    private void copyStatements(List<BoundStatement> statements, List<TokenRange> ranges, PreparedStatement insert, int columnCount) throws IOException {
+        BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < statements.size(); i++) {
+            BoundStatement stmt = statements.get(i);
+            TokenRange range = (ranges == null) ? null : ranges.get(i);
+            futures.add(scanPool.submit(() -> scanRange(stmt, range, insert, columnCount, queue, error)));
+        }
+        // writes are pipelined, the scans continue while up to writeWindow inserts are pending
+        AsyncWriter writer = new AsyncWriter(targetSession, writeWindow, KeyspaceImport.WRITE_RETRIES, tableMetrics);
+        PartitionBatcher batcher = new PartitionBatcher(writer, targetSession, batchRows);
+        try {
+            int remaining = statements.size();
+            while (remaining > 0) {
+                Chunk chunk = queue.take();
+                if (chunk.rows == null) {
+                    remaining--;
+                    continue;
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    // the job was cancelled
+                    throw new InterruptedIOException("copy of " + tmd.getName() + " interrupted");
+                }
+                for (int i = 0; i < chunk.rows.size(); i++) {
+                    batcher.add(chunk.rows.get(i), chunk.sizes[i]);
+                }
+                tableMetrics.addBytes(chunk.bytes);
+                tableMetrics.markRows(chunk.rows.size());
+            }
+            batcher.flush();
+            writer.drain();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted copying " + tmd.getName(), ex);
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+        if (error.get() != null) {
+            throw new IOException("failed to copy table " + tmd.getName(), error.get());
+        }
+        if (batcher.getBatchCount() > 0) {
+            log.info(" -- sent " + batcher.getBatchCount() + " partition batches");
+        }
+        if (writer.getRetried() > 0) {
+            log.info(" -- retried " + writer.getRetried() + " writes");
+        }
+    }
+
+    private void scanRange(BoundStatement stmt, TokenRange range, PreparedStatement insert, int columnCount, BlockingQueue<Chunk> queue, AtomicReference<Throwable> error) {
+        try {
+            // once another range has failed the remaining ones are skipped
+            if (error.get() == null) {
+                scan(stmt, range, insert, columnCount, queue);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Throwable t) {
+            log.error("scan of " + tmd.getName() + " " + ((range == null) ? "partition" : "range " + range) + " failed", t);
+            error.compareAndSet(null, t);
+        }
+        try {
+            queue.put(new Chunk(null, null, 0));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Scans one range or partition, handing the bound inserts of its rows
+     * to the queue in chunks.
+     */
+    private void scan(BoundStatement stmt, TokenRange range, PreparedStatement insert, int columnCount, BlockingQueue<Chunk> queue) throws InterruptedException {
+        List<BoundStatement> rows = new ArrayList<>(CHUNK_ROWS);
+        int[] sizes = new int[CHUNK_ROWS];
+        int bytes = 0;
+        // range scans go to a replica of their range
+        Statement query = (range == null) ? stmt : new RangeRoutingPolicy.RangeStatement(stmt, range);
+        try (ScanPaging.Pager pager = paging.open(query, tableMetrics)) {
+            pager.execute(session);
+            while (pager.hasNext()) {
+                long start = System.nanoTime();
+                Row row = pager.next();
+                // the cells are not copied, the insert holds the row's buffers
+                BoundStatement binsert = new BoundStatement(insert);
+                int size = 0;
+                for (int i = 0; i < columnCount; i++) {
+                    ByteBuffer value = row.getBytesUnsafe(i);
+                    binsert.setBytesUnsafe(i, value);
+                    if (value != null) {
+                        size += value.remaining();
+                    }
+                }
+                tableMetrics.addCodecTime(System.nanoTime() - start);
+                pager.addRow(size);
+                throttle.acquire(1, size);
+                sizes[rows.size()] = size;
+                rows.add(binsert);
+                bytes += size;
+                logProgress(rowCount.incrementAndGet());
+                if ((rows.size() >= CHUNK_ROWS) || (bytes >= CHUNK_BYTES)) {
+                    queue.put(new Chunk(rows, sizes, bytes));
+                    rows = new ArrayList<>(CHUNK_ROWS);
+                    sizes = new int[CHUNK_ROWS];
+                    bytes = 0;
+                }
+            }
+        }
+        if (!rows.isEmpty()) {
+            queue.put(new Chunk(rows, sizes, bytes));
+        }
+    }
+
+    private void logProgress(long c) {
+        if ((c % 1000) == 0) {
+            log.info(" ... copied " + c + " rows of " + tmd.getName());
+        }
+    }
+
+}
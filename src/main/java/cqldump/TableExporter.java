@@ -0,0 +1,571 @@
+package cqldump;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.PagingState;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.TokenRange;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.log4j.Logger;
+
+/**
+ * Exports the rows of one table as framed records of the dump format. With more than one
+ * split the token ring is divided into sub-ranges that are scanned
+ * concurrently on the scan pool and funneled into a single output stream.
+ * <p>
+ * With an {@link ExportCheckpoint} the exporter saves its progress as it
+ * goes and continues from the saved paging state or the unfinished token
+ * ranges; the output stream is then expected to already hold the bytes the
+ * checkpoint counts.
+ * <p>
+ * With a {@link RangeManifest} the table is always scanned by token range
+ * and the digest of each range is recorded. For a delta export every range
+ * is first scanned for its digest only, and just the ranges whose digest
+ * differs from the base manifest are exported.
+ * <p>
+ * An {@link ExportSelection} limits the columns, restricts the range scans
+ * to a token range, or replaces them with one query per selected partition.
+ * <p>
+ * Chunks start on a record boundary, the exporter notes where row blocks
+ * begin for the {@link DumpIndex}.
+ * <p>
+ * Every scan pages through its rows with a {@link ScanPaging.Pager}, which
+ * fetches ahead and sizes the pages to the rows of the table.
+ *
+ * @author theider
+ */
+public class TableExporter {
+
+    private static final Logger log = Logger.getLogger(TableExporter.class);
+
+    // encoded rows are handed to the writer in chunks of about this size
+    private static final int CHUNK_SIZE = 65536;
+    // progress is saved at most this often
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 10000;
+
+    private final Session session;
+    private final Metadata metadata;
+    private final TableMetadata tmd;
+    private final ExecutorService scanPool;
+    private final int splits;
+    private final DumpFormat format;
+    private final ExportCheckpoint checkpoint;
+    private final Throttle throttle;
+    private final ScanPaging paging;
+    private final RangeManifest manifest;
+    private final ExportSelection selection;
+    private final TableMetrics tableMetrics;
+    private final AtomicLong rowCount = new AtomicLong();
+    private volatile RecordEncoder encoder;
+    // rows and bytes handed to the output, only used by the writing thread
+    private long rowsWritten;
+    private long bytesWritten;
+    private long lastCheckpoint;
+    // row blocks of the output for the dump index, only used by the writing thread
+    private final DumpIndex.TableIndex blockIndex;
+
+    /**
+     * Encoded rows of one range, or the end of the range when data is null.
+     */
+    private static class Chunk {
+        private final byte[] data;
+        private final int rows;
+        private final TokenRange range;
+        // digest of the whole range, at the end of the range
+        private final RangeManifest.RangeDigest digest;
+
+        Chunk(byte[] data, int rows, TokenRange range, RangeManifest.RangeDigest digest) {
+            this.data = data;
+            this.rows = rows;
+            this.range = range;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * @param session session connected to the table's keyspace
+     * @param metadata cluster metadata used for the token ring
+     * @param tmd table to export
+     * @param scanPool pool that runs the range scans
+     * @param splits minimum number of token sub-ranges, 1 for a single scan
+     * @param format record format
+     * @param checkpoint progress to continue from and save to, or null
+     * @param throttle rate limit of the scans, shared by the tables of a job
+     * @param paging page sizes of the scans, shared by the tables of a job
+     * @param manifest range digests of the export, or null
+     * @param selection columns, tokens and partitions to export
+     * @param tableMetrics metrics of the table
+     */
+    public TableExporter(Session session, Metadata metadata, TableMetadata tmd, ExecutorService scanPool, int splits, DumpFormat format, ExportCheckpoint checkpoint, Throttle throttle, ScanPaging paging, RangeManifest manifest, ExportSelection selection, TableMetrics tableMetrics) {
+        this.session = session;
+        this.metadata = metadata;
+        this.tmd = tmd;
+        this.scanPool = scanPool;
+        this.splits = splits;
+        this.format = format;
+        this.checkpoint = checkpoint;
+        this.throttle = throttle;
+        this.paging = paging;
+        this.manifest = manifest;
+        this.selection = selection;
+        this.tableMetrics = tableMetrics;
+        this.blockIndex = new DumpIndex.TableIndex(tmd.getName());
+    }
+
+    public long getRowCount() {
+        return rowCount.get();
+    }
+
+    /**
+     * Writes all table records to the output.
+     *
+     * @param out destination of the framed records
+     * @throws IOException if a scan or the write fails
+     */
+    public void export(OutputStream out) throws IOException {
+        if (checkpoint != null) {
+            rowsWritten = checkpoint.getRowCount();
+            bytesWritten = checkpoint.getSpoolLength();
+            rowCount.set(rowsWritten);
+            lastCheckpoint = System.currentTimeMillis();
+        }
+        if (selection.hasPartitionKeys()) {
+            exportPartitions(out);
+        } else if ((splits <= 1) && (manifest == null) && !selection.hasTokenRange()) {
+            // range digests and token bounds need a scan per token range
+            Statement stmt = new SimpleStatement("SELECT " + selection.getSelectList(tmd, format) + " FROM " + tmd.getName());
+            if ((checkpoint != null) && (checkpoint.getPagingState() != null)) {
+                log.info("resuming " + tmd.getName() + " after " + rowsWritten + " rows");
+                stmt.setPagingState(PagingState.fromString(checkpoint.getPagingState()));
+            }
+            try (ScanPaging.Pager pager = paging.open(stmt, tableMetrics)) {
+                RecordEncoder encoder = getEncoder(pager.execute(session));
+                RecordBuffer buffer = new RecordBuffer(CHUNK_SIZE);
+                int buffered = 0;
+                boolean checkpointDue = false;
+                while (pager.hasNext()) {
+                    long start = System.nanoTime();
+                    int length = buffer.length();
+                    encoder.encode(pager.next(), buffer);
+                    tableMetrics.addCodecTime(System.nanoTime() - start);
+                    pager.addRow(buffer.length() - length);
+                    throttle.acquire(1, buffer.length() - length);
+                    buffered++;
+                    logProgress(rowCount.incrementAndGet());
+                    if (buffer.length() >= CHUNK_SIZE) {
+                        write(out, buffer, buffered);
+                        buffered = 0;
+                    }
+                    // a page boundary is the only place the scan can resume
+                    // from, a due checkpoint waits for the next one without
+                    // a page fetched ahead
+                    if ((checkpoint != null) && !checkpointDue && isCheckpointDue()) {
+                        checkpointDue = true;
+                        pager.setPrefetch(false);
+                    }
+                    if (checkpointDue && pager.isPageEnd()) {
+                        checkpointDue = false;
+                        pager.setPrefetch(true);
+                        PagingState nextPage = pager.getPagingState();
+                        if (nextPage != null) {
+                            write(out, buffer, buffered);
+                            buffered = 0;
+                            out.flush();
+                            checkpoint.save(rowsWritten, bytesWritten, nextPage.toString());
+                        }
+                    }
+                }
+                write(out, buffer, buffered);
+            }
+        } else {
+            List<TokenRange> ranges = selection.restrict(metadata, getRanges());
+            if (checkpoint != null) {
+                List<TokenRange> remaining = new ArrayList<>();
+                for (TokenRange range : ranges) {
+                    if (!checkpoint.isRangeCompleted(getRangeKey(range))) {
+                        remaining.add(range);
+                    }
+                }
+                if (remaining.size() < ranges.size()) {
+                    log.info("resuming " + tmd.getName() + " with " + remaining.size() + " of " + ranges.size() + " token ranges");
+                }
+                ranges = remaining;
+            }
+            exportRanges(out, ranges);
+        }
+        log.info(" -- exported " + rowCount.get() + " records from table " + tmd.getName());
+    }
+
+    /**
+     * @return rows in the output, including those of a resumed checkpoint
+     */
+    public long getRowsWritten() {
+        return rowsWritten;
+    }
+
+    /**
+     * @return row blocks of the output, complete once the export returned
+     */
+    public DumpIndex.TableIndex getBlockIndex() {
+        return blockIndex;
+    }
+
+    private void write(OutputStream out, RecordBuffer buffer, int rows) throws IOException {
+        if (Thread.currentThread().isInterrupted()) {
+            // the job was cancelled
+            throw new InterruptedIOException("export of " + tmd.getName() + " interrupted");
+        }
+        blockIndex.mark(rowsWritten, bytesWritten);
+        long start = System.nanoTime();
+        buffer.writeTo(out);
+        tableMetrics.addIoTime(System.nanoTime() - start);
+        tableMetrics.addBytes(buffer.length());
+        tableMetrics.markRows(rows);
+        bytesWritten += buffer.length();
+        rowsWritten += rows;
+        buffer.reset();
+    }
+
+    private boolean isCheckpointDue() {
+        long now = System.currentTimeMillis();
+        if (now - lastCheckpoint < CHECKPOINT_INTERVAL_MILLIS) {
+            return false;
+        }
+        lastCheckpoint = now;
+        return true;
+    }
+
+    /**
+     * Identifies a token range in a checkpoint.
+     */
+    static String getRangeKey(TokenRange range) {
+        return range.getStart() + ":" + range.getEnd();
+    }
+
+    /**
+     * Splits the token ring into at least the configured number of
+     * non-wrapping ranges, in ring order.
+     */
+    List<TokenRange> getRanges() {
+        return getRanges(metadata, splits);
+    }
+
+    /**
+     * @param metadata cluster metadata
+     * @param splits minimum number of ranges
+     * @return non-wrapping ranges covering the token ring, in ring order
+     */
+    static List<TokenRange> getRanges(Metadata metadata, int splits) {
+        List<TokenRange> ring = new ArrayList<>(metadata.getTokenRanges());
+        Collections.sort(ring);
+        int perRange = (splits + ring.size() - 1) / ring.size();
+        List<TokenRange> ranges = new ArrayList<>();
+        for (TokenRange range : ring) {
+            for (TokenRange split : range.splitEvenly(perRange)) {
+                ranges.addAll(split.unwrap());
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * @param tmd table
+     * @return partition key columns of the table as a CQL list
+     */
+    static String getPartitionKeyText(TableMetadata tmd) {
+        StringBuilder sb = new StringBuilder();
+        for (ColumnMetadata cmd : tmd.getPartitionKey()) {
+            if (sb.length() != 0) {
+                sb.append(',');
+            }
+            sb.append(Metadata.quoteIfNecessary(cmd.getName()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Prepares the scan of one token range of a table, bound with
+     * {@link #bindRange}.
+     *
+     * @param session session connected to the table's keyspace
+     * @param tmd scanned table
+     * @param selectList columns of the scan
+     * @return prepared scan with the range start and end as markers
+     */
+    static PreparedStatement prepareRangeScan(Session session, TableMetadata tmd, String selectList) {
+        String pk = getPartitionKeyText(tmd);
+        return session.prepare("SELECT " + selectList + " FROM " + Metadata.quoteIfNecessary(tmd.getName())
+                + " WHERE token(" + pk + ") > ? AND token(" + pk + ") <= ?");
+    }
+
+    /**
+     * Prepares the query of one partition of a table.
+     *
+     * @param session session connected to the table's keyspace
+     * @param tmd scanned table
+     * @param selectList columns of the query
+     * @return prepared query with a marker per partition key column
+     */
+    static PreparedStatement preparePartitionScan(Session session, TableMetadata tmd, String selectList) {
+        StringBuilder where = new StringBuilder();
+        for (ColumnMetadata cmd : tmd.getPartitionKey()) {
+            if (where.length() != 0) {
+                where.append(" AND ");
+            }
+            where.append(Metadata.quoteIfNecessary(cmd.getName())).append("=?");
+        }
+        return session.prepare("SELECT " + selectList + " FROM " + Metadata.quoteIfNecessary(tmd.getName())
+                + " WHERE " + where);
+    }
+
+    private void exportRanges(OutputStream out, List<TokenRange> ranges) throws IOException {
+        PreparedStatement prepStmt = prepareRangeScan(session, tmd, selection.getSelectList(tmd, format));
+        if ((manifest != null) && manifest.isDelta()) {
+            ranges = findChangedRanges(prepStmt, ranges);
+        }
+        log.info("exporting " + tmd.getName() + " in " + ranges.size() + " token ranges");
+        List<BoundStatement> statements = new ArrayList<>();
+        for (TokenRange range : ranges) {
+            statements.add(bindRange(prepStmt, range));
+        }
+        exportStatements(out, statements, ranges);
+    }
+
+    private void exportPartitions(OutputStream out) throws IOException {
+        PreparedStatement prepStmt = preparePartitionScan(session, tmd, selection.getSelectList(tmd, format));
+        List<BoundStatement> statements = selection.bindPartitions(prepStmt, tmd);
+        log.info("exporting " + tmd.getName() + " in " + statements.size() + " partitions");
+        exportStatements(out, statements, null);
+    }
+
+    /**
+     * Runs the scans on the scan pool and writes their chunks as they come.
+     *
+     * @param statements bound scan queries
+     * @param ranges token range of each scan, null for partition queries
+     */
+    private void exportStatements(OutputStream out, List<BoundStatement> statements, List<TokenRange> ranges) throws IOException {
+        BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(64);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        // offset, length and rows of the chunks written for each unfinished
+        // range, a checkpoint lets a resume cut them out again
+        Map<TokenRange, List<long[]>> openSpans = new HashMap<>();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < statements.size(); i++) {
+            BoundStatement stmt = statements.get(i);
+            TokenRange range = (ranges == null) ? null : ranges.get(i);
+            futures.add(scanPool.submit(() -> scanRange(stmt, range, queue, error)));
+        }
+        try {
+            int remaining = statements.size();
+            while (remaining > 0) {
+                Chunk chunk = queue.take();
+                if (chunk.data != null) {
+                    if (checkpoint != null) {
+                        openSpans.computeIfAbsent(chunk.range, range -> new ArrayList<>())
+                                .add(new long[]{bytesWritten, chunk.data.length, chunk.rows});
+                    }
+                    blockIndex.mark(rowsWritten, bytesWritten);
+                    long start = System.nanoTime();
+                    out.write(chunk.data);
+                    tableMetrics.addIoTime(System.nanoTime() - start);
+                    tableMetrics.addBytes(chunk.data.length);
+                    tableMetrics.markRows(chunk.rows);
+                    bytesWritten += chunk.data.length;
+                    rowsWritten += chunk.rows;
+                    continue;
+                }
+                remaining--;
+                // the range is only finished if no scan failed before its end
+                if ((manifest != null) && (error.get() == null)) {
+                    String key = getRangeKey(chunk.range);
+                    manifest.record(tmd.getName(), key, chunk.digest);
+                    if (manifest.isDelta()) {
+                        manifest.markChanged(tmd.getName(), key);
+                    }
+                }
+                if ((checkpoint != null) && (error.get() == null)) {
+                    openSpans.remove(chunk.range);
+                    checkpoint.addCompletedRange(getRangeKey(chunk.range));
+                    if (isCheckpointDue()) {
+                        out.flush();
+                        List<long[]> partial = new ArrayList<>();
+                        for (List<long[]> spans : openSpans.values()) {
+                            partial.addAll(spans);
+                        }
+                        partial.sort(Comparator.comparingLong(span -> span[0]));
+                        checkpoint.save(rowsWritten, bytesWritten, null, partial);
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted exporting " + tmd.getName(), ex);
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+        if (error.get() != null) {
+            throw new IOException("failed to export table " + tmd.getName(), error.get());
+        }
+    }
+
+    /**
+     * Scans every range for its digest only and keeps the unchanged ones in
+     * the manifest.
+     *
+     * @return ranges whose digest differs from the base manifest
+     */
+    private List<TokenRange> findChangedRanges(PreparedStatement prepStmt, List<TokenRange> ranges) throws IOException {
+        List<Future<RangeManifest.RangeDigest>> futures = new ArrayList<>();
+        for (TokenRange range : ranges) {
+            futures.add(scanPool.submit(() -> scan(bindRange(prepStmt, range), range, null)));
+        }
+        List<TokenRange> changed = new ArrayList<>();
+        try {
+            for (int i = 0; i < ranges.size(); i++) {
+                RangeManifest.RangeDigest digest = futures.get(i).get();
+                String key = getRangeKey(ranges.get(i));
+                if (digest.equals(manifest.getBaseDigest(tmd.getName(), key))) {
+                    manifest.record(tmd.getName(), key, digest);
+                } else {
+                    changed.add(ranges.get(i));
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted comparing " + tmd.getName(), ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("failed to compare table " + tmd.getName(), ex.getCause());
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+        log.info(tmd.getName() + " changed in " + changed.size() + " of " + ranges.size() + " token ranges");
+        return changed;
+    }
+
+    private void scanRange(BoundStatement stmt, TokenRange range, BlockingQueue<Chunk> queue, AtomicReference<Throwable> error) {
+        RangeManifest.RangeDigest digest = null;
+        try {
+            // once another range has failed the remaining ones are skipped
+            if (error.get() == null) {
+                digest = scan(stmt, range, queue);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Throwable t) {
+            log.error("scan of " + tmd.getName() + " " + ((range == null) ? "partition" : "range " + range) + " failed", t);
+            error.compareAndSet(null, t);
+        }
+        try {
+            queue.put(new Chunk(null, 0, range, digest));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param prepStmt range scan from {@link #prepareRangeScan}
+     * @param range token range to scan
+     * @return bound scan of the range
+     */
+    static BoundStatement bindRange(PreparedStatement prepStmt, TokenRange range) {
+        BoundStatement stmt = prepStmt.bind();
+        stmt.setToken(0, range.getStart());
+        stmt.setToken(1, range.getEnd());
+        return stmt;
+    }
+
+    /**
+     * Scans one range or partition, handing its records to the queue in
+     * chunks.
+     *
+     * @param queue receives the chunks, null to only take the digest
+     * @return digest of the range, null without a manifest
+     */
+    private RangeManifest.RangeDigest scan(BoundStatement stmt, TokenRange range, BlockingQueue<Chunk> queue) throws InterruptedException {
+        RecordBuffer chunk = new RecordBuffer(CHUNK_SIZE);
+        Hasher hasher = (manifest == null) ? null : Hashing.murmur3_128().newHasher();
+        long total = 0;
+        int rows = 0;
+        // range scans go to a replica of their range
+        Statement query = (range == null) ? stmt : new RangeRoutingPolicy.RangeStatement(stmt, range);
+        try (ScanPaging.Pager pager = paging.open(query, tableMetrics)) {
+            RecordEncoder encoder = getEncoder(pager.execute(session));
+            while (pager.hasNext()) {
+                long start = System.nanoTime();
+                int length = chunk.length();
+                encoder.encode(pager.next(), chunk);
+                tableMetrics.addCodecTime(System.nanoTime() - start);
+                pager.addRow(chunk.length() - length);
+                throttle.acquire(1, chunk.length() - length);
+                if (hasher != null) {
+                    hasher.putBytes(chunk.array(), length, chunk.length() - length);
+                }
+                rows++;
+                total++;
+                if (queue != null) {
+                    logProgress(rowCount.incrementAndGet());
+                }
+                if (chunk.length() >= CHUNK_SIZE) {
+                    if (queue != null) {
+                        queue.put(new Chunk(chunk.toByteArray(), rows, range, null));
+                    }
+                    chunk.reset();
+                    rows = 0;
+                }
+            }
+        }
+        if ((queue != null) && (chunk.length() > 0)) {
+            queue.put(new Chunk(chunk.toByteArray(), rows, range, null));
+        }
+        return (hasher == null) ? null : new RangeManifest.RangeDigest(hasher.hash().toString(), total);
+    }
+
+    /**
+     * Column plan of the table, built from the first result set and then
+     * shared by every range scan.
+     */
+    private RecordEncoder getEncoder(ResultSet rs) {
+        RecordEncoder current = encoder;
+        if (current == null) {
+            current = format.newEncoder(tmd.getName(), rs.getColumnDefinitions());
+            encoder = current;
+        }
+        return current;
+    }
+
+    private void logProgress(long c) {
+        if ((c % 1000) == 0) {
+            log.info(" ... exported " + c + " rows");
+        }
+    }
+
+}
@@ -0,0 +1,152 @@
+package cqldump;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import java.util.concurrent.TimeUnit;
+import org.json.simple.JSONObject;
+
+/**
+ * Throughput and time breakdown of one table in an export or import job:
+ * rows, record bytes before and after zip compression, time spent waiting
+ * for Cassandra, encoding or decoding records and in spool and zip I/O, and
+ * the latency of the driver calls. Times are summed in nanoseconds by the
+ * threads doing the work and may overlap when scans run in parallel.
+ *
+ * @author theider
+ */
+public class TableMetrics {
+
+    private final String tableName;
+    private final Meter rows;
+    private final Counter bytes;
+    private final Counter compressedBytes;
+    private final Counter cassandraNanos;
+    private final Counter codecNanos;
+    private final Counter ioNanos;
+    private final Timer requests;
+
+    /**
+     * @param registry registry the metrics are added to
+     * @param prefix metric name prefix of the table
+     * @param tableName table name
+     */
+    TableMetrics(MetricRegistry registry, String prefix, String tableName) {
+        this.tableName = tableName;
+        this.rows = registry.meter(MetricRegistry.name(prefix, "rows"));
+        this.bytes = registry.counter(MetricRegistry.name(prefix, "bytes"));
+        this.compressedBytes = registry.counter(MetricRegistry.name(prefix, "compressed-bytes"));
+        this.cassandraNanos = registry.counter(MetricRegistry.name(prefix, "cassandra-nanos"));
+        this.codecNanos = registry.counter(MetricRegistry.name(prefix, "codec-nanos"));
+        this.ioNanos = registry.counter(MetricRegistry.name(prefix, "io-nanos"));
+        this.requests = registry.timer(MetricRegistry.name(prefix, "requests"));
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public long getRowCount() {
+        return rows.getCount();
+    }
+
+    public void markRows(long count) {
+        rows.mark(count);
+    }
+
+    public long getByteCount() {
+        return bytes.getCount();
+    }
+
+    /**
+     * @param count uncompressed record bytes written or read
+     */
+    public void addBytes(long count) {
+        bytes.inc(count);
+    }
+
+    /**
+     * @param count bytes of the table entry in the zip
+     */
+    public void addCompressedBytes(long count) {
+        compressedBytes.inc(count);
+    }
+
+    /**
+     * @param nanos time spent waiting for Cassandra
+     */
+    public void addCassandraTime(long nanos) {
+        cassandraNanos.inc(nanos);
+    }
+
+    /**
+     * @param nanos time spent encoding or decoding records
+     */
+    public void addCodecTime(long nanos) {
+        codecNanos.inc(nanos);
+    }
+
+    /**
+     * @param nanos time spent in spool file and zip I/O
+     */
+    public void addIoTime(long nanos) {
+        ioNanos.inc(nanos);
+    }
+
+    /**
+     * Records one driver call, which is also counted as Cassandra time.
+     *
+     * @param nanos call latency
+     */
+    public void addRequest(long nanos) {
+        requests.update(nanos, TimeUnit.NANOSECONDS);
+        cassandraNanos.inc(nanos);
+    }
+
+    /**
+     * Latency of driver calls that run concurrently with the caller and so
+     * are not counted as Cassandra time, such as pipelined writes.
+     *
+     * @return driver call timer
+     */
+    public Timer getRequestTimer() {
+        return requests;
+    }
+
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("table", tableName);
+        json.put("rows", rows.getCount());
+        json.put("rows_per_sec", rows.getMeanRate());
+        json.put("rows_per_sec_1m", rows.getOneMinuteRate());
+        json.put("bytes", bytes.getCount());
+        json.put("compressed_bytes", compressedBytes.getCount());
+        json.put("cassandra_ms", TimeUnit.NANOSECONDS.toMillis(cassandraNanos.getCount()));
+        json.put("codec_ms", TimeUnit.NANOSECONDS.toMillis(codecNanos.getCount()));
+        json.put("io_ms", TimeUnit.NANOSECONDS.toMillis(ioNanos.getCount()));
+        json.put("requests", toJSON(requests));
+        return json;
+    }
+
+    /**
+     * Summary of a latency timer in milliseconds.
+     *
+     * @param timer timer to describe
+     * @return count, rate and latency percentiles
+     */
+    static JSONObject toJSON(Timer timer) {
+        Snapshot snapshot = timer.getSnapshot();
+        JSONObject json = new JSONObject();
+        json.put("count", timer.getCount());
+        json.put("per_sec_1m", timer.getOneMinuteRate());
+        json.put("mean_ms", snapshot.getMean() / 1e6);
+        json.put("p50_ms", snapshot.getMedian() / 1e6);
+        json.put("p95_ms", snapshot.get95thPercentile() / 1e6);
+        json.put("p99_ms", snapshot.get99thPercentile() / 1e6);
+        json.put("max_ms", snapshot.getMax() / 1e6);
+        return json;
+    }
+
+}
@@ -0,0 +1,250 @@
+package cqldump;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.LatencyTracker;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.OverloadedException;
+import com.datastax.driver.core.exceptions.ReadTimeoutException;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
+import com.google.common.util.concurrent.RateLimiter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import org.json.simple.JSONObject;
+
+/**
+ * Caps the rows and bytes per second of a job so dumps can run against live
+ * clusters. The row loops call {@link #acquire} for every row.
+ * <p>
+ * An adaptive throttle is registered as latency tracker on the cluster and
+ * sees every request with its latency and error. Once a second it compares
+ * the mean latency with the target, and on a timeout or overloaded error,
+ * or a mean above the target, it halves the allowed rate; after a clean
+ * second it gives back 5% of the cap, up to the full cap. Without a cap
+ * the rate seen before the first backoff is used as the cap, and the
+ * throttle turns itself off once it has recovered to it.
+ *
+ * @author theider
+ */
+public class Throttle implements LatencyTracker {
+
+    private static final Logger log = Logger.getLogger(Throttle.class);
+
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final double BACKOFF = 0.5;
+    private static final double RECOVERY = 0.05;
+    private static final double MIN_SCALE = 0.01;
+    // without a target, the mean latency may grow to this multiple of the
+    // lowest mean seen
+    private static final int BASELINE_FACTOR = 3;
+
+    private final double rowCap;
+    private final double byteCap;
+    private final boolean adaptive;
+    private final long latencyTargetNanos;
+    private final AtomicLong windowRows = new AtomicLong();
+    private final AtomicLong windowRequests = new AtomicLong();
+    private final AtomicLong windowLatency = new AtomicLong();
+    private final AtomicLong windowErrors = new AtomicLong();
+    private volatile RateLimiter rowLimiter;
+    private volatile RateLimiter byteLimiter;
+    private volatile long windowStart = System.nanoTime();
+    // guarded by this
+    private double scale = 1.0;
+    private double observedRowCap;
+    private long baselineNanos;
+    private long lastMeanNanos;
+    private long backoffs;
+    private Cluster cluster;
+
+    /**
+     * @param rowCap rows per second, 0 for no cap
+     * @param byteCap bytes per second, 0 for no cap
+     * @param adaptive back off when the cluster is slow or overloaded
+     * @param latencyTargetMillis mean request latency the adaptive throttle
+     * keeps below, 0 to compare with the lowest mean seen instead
+     */
+    public Throttle(double rowCap, double byteCap, boolean adaptive, long latencyTargetMillis) {
+        if ((rowCap < 0) || (byteCap < 0) || (latencyTargetMillis < 0)) {
+            throw new IllegalArgumentException("throttle rates and latency cannot be negative");
+        }
+        this.rowCap = rowCap;
+        this.byteCap = byteCap;
+        this.adaptive = adaptive;
+        this.latencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(latencyTargetMillis);
+        if (rowCap > 0) {
+            rowLimiter = RateLimiter.create(rowCap);
+        }
+        if (byteCap > 0) {
+            byteLimiter = RateLimiter.create(byteCap);
+        }
+    }
+
+    /**
+     * Builds the throttle of a request from its maxrows, maxbytes, adaptive
+     * and latency parameters.
+     *
+     * @param rowsText rows per second, empty or null for no cap
+     * @param bytesText bytes per second, empty or null for no cap
+     * @param adaptiveText true to back off when the cluster is loaded
+     * @param latencyText target mean latency in milliseconds, optional
+     * @return throttle of the job
+     * @throws IllegalArgumentException if a value is not valid
+     */
+    public static Throttle forParameters(String rowsText, String bytesText, String adaptiveText, String latencyText) {
+        if( (rowsText == null) || rowsText.isEmpty() ) {
+            rowsText = "0";
+        }
+        if( (bytesText == null) || bytesText.isEmpty() ) {
+            bytesText = "0";
+        }
+        if( (latencyText == null) || latencyText.isEmpty() ) {
+            latencyText = "0";
+        }
+        return new Throttle(Double.parseDouble(rowsText), Double.parseDouble(bytesText),
+                Boolean.parseBoolean(adaptiveText), Long.parseLong(latencyText));
+    }
+
+    public boolean isActive() {
+        return adaptive || (rowCap > 0) || (byteCap > 0);
+    }
+
+    /**
+     * Starts tracking the cluster's requests, only needed when adaptive.
+     *
+     * @param cluster cluster the job runs against
+     */
+    public synchronized void register(Cluster cluster) {
+        if (adaptive && (this.cluster == null)) {
+            this.cluster = cluster;
+            cluster.register(this);
+        }
+    }
+
+    /**
+     * Stops tracking the cluster at the end of the job.
+     */
+    public synchronized void release() {
+        if (cluster != null) {
+            cluster.unregister(this);
+            cluster = null;
+        }
+    }
+
+    /**
+     * Waits until the rows and bytes are allowed.
+     *
+     * @param rows rows about to be read or written
+     * @param bytes their encoded size
+     */
+    public void acquire(int rows, int bytes) {
+        RateLimiter limiter = rowLimiter;
+        if ((limiter != null) && (rows > 0)) {
+            limiter.acquire(rows);
+        }
+        limiter = byteLimiter;
+        if ((limiter != null) && (bytes > 0)) {
+            limiter.acquire(bytes);
+        }
+        if (adaptive) {
+            windowRows.addAndGet(rows);
+            if (System.nanoTime() - windowStart >= WINDOW_NANOS) {
+                adjust();
+            }
+        }
+    }
+
+    @Override
+    public void update(Host host, Statement statement, Exception exception, long newLatencyNanos) {
+        if (exception == null) {
+            windowRequests.incrementAndGet();
+            windowLatency.addAndGet(newLatencyNanos);
+        } else if ((exception instanceof OverloadedException) || (exception instanceof OperationTimedOutException)
+                || (exception instanceof ReadTimeoutException) || (exception instanceof WriteTimeoutException)) {
+            windowErrors.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void onRegister(Cluster cluster) {
+    }
+
+    @Override
+    public void onUnregister(Cluster cluster) {
+    }
+
+    private synchronized void adjust() {
+        long now = System.nanoTime();
+        long elapsed = now - windowStart;
+        if (elapsed < WINDOW_NANOS) {
+            return;
+        }
+        windowStart = now;
+        long rows = windowRows.getAndSet(0);
+        long requests = windowRequests.getAndSet(0);
+        long latency = windowLatency.getAndSet(0);
+        long errors = windowErrors.getAndSet(0);
+        if ((requests == 0) && (errors == 0)) {
+            return;
+        }
+        long mean = (requests > 0) ? latency / requests : 0;
+        lastMeanNanos = mean;
+        if ((requests > 0) && ((baselineNanos == 0) || (mean < baselineNanos))) {
+            baselineNanos = mean;
+        }
+        long target = (latencyTargetNanos > 0) ? latencyTargetNanos : BASELINE_FACTOR * baselineNanos;
+        if ((errors > 0) || ((target > 0) && (mean > target))) {
+            if ((rowCap == 0) && (byteCap == 0) && (observedRowCap == 0)) {
+                // the rate the job reached on its own becomes the cap
+                observedRowCap = Math.max(1.0, rows * 1e9 / elapsed);
+            }
+            scale = Math.max(MIN_SCALE, scale * BACKOFF);
+            backoffs++;
+            log.info("throttle backing off to " + Math.round(scale * 100) + "% after " + errors
+                    + " errors, mean latency " + TimeUnit.NANOSECONDS.toMillis(mean) + " ms");
+            applyRates();
+        } else if (scale < 1.0) {
+            scale = Math.min(1.0, scale + RECOVERY);
+            applyRates();
+        }
+    }
+
+    private void applyRates() {
+        if (rowCap > 0) {
+            rowLimiter.setRate(rowCap * scale);
+        }
+        if (byteCap > 0) {
+            byteLimiter.setRate(byteCap * scale);
+        }
+        if (observedRowCap > 0) {
+            if (scale >= 1.0) {
+                // recovered, run unthrottled again
+                rowLimiter = null;
+                observedRowCap = 0;
+            } else if (rowLimiter == null) {
+                rowLimiter = RateLimiter.create(observedRowCap * scale);
+            } else {
+                rowLimiter.setRate(observedRowCap * scale);
+            }
+        }
+    }
+
+    /**
+     * @return current rates as reported by the status servlet
+     */
+    public synchronized JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        RateLimiter limiter = rowLimiter;
+        json.put("rows_per_second", (limiter == null) ? null : limiter.getRate());
+        limiter = byteLimiter;
+        json.put("bytes_per_second", (limiter == null) ? null : limiter.getRate());
+        json.put("adaptive", adaptive);
+        json.put("scale", scale);
+        json.put("backoffs", backoffs);
+        json.put("mean_latency_ms", TimeUnit.NANOSECONDS.toMillis(lastMeanNanos));
+        return json;
+    }
+
+}
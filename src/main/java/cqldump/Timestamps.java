@@ -0,0 +1,167 @@
+package cqldump;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Thread-safe formatting and parsing of timestamps in the dump text form
+ * <code>yyyy-MM-dd HH:mm:ss.SSS</code> (UTC). Years 1583 to 9999 are
+ * handled digit by digit without allocating, other dates fall back to a
+ * per-thread {@link SimpleDateFormat} so the results match it exactly.
+ *
+ * @author theider
+ */
+public final class Timestamps {
+
+    public static final String PATTERN = "yyyy-MM-dd HH:mm:ss.SSS";
+
+    // length of a formatted timestamp in the fast path
+    public static final int LENGTH = 23;
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    private static final ThreadLocal<SimpleDateFormat> FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat fmt = new SimpleDateFormat(PATTERN);
+            fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return fmt;
+        }
+    };
+
+    private Timestamps() {
+    }
+
+    /**
+     * Shared SimpleDateFormat of the calling thread.
+     *
+     * @return formatter for {@link #PATTERN} in UTC
+     */
+    public static SimpleDateFormat getFormat() {
+        return FORMAT.get();
+    }
+
+    /**
+     * Appends the formatted timestamp to the buffer.
+     *
+     * @param millis milliseconds since the epoch
+     * @param out destination buffer
+     */
+    public static void format(long millis, RecordBuffer out) {
+        long days = Math.floorDiv(millis, MILLIS_PER_DAY);
+        int millisOfDay = (int) Math.floorMod(millis, MILLIS_PER_DAY);
+        // civil date from days since 1970-01-01 in the proleptic Gregorian calendar
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        if ((year < 1583) || (year > 9999)) {
+            // Julian calendar dates and wide years are left to SimpleDateFormat
+            out.writeAscii(FORMAT.get().format(new Date(millis)));
+            return;
+        }
+        byte[] b = out.reserve(LENGTH);
+        int p = out.length() - LENGTH;
+        digits(b, p, (int) year, 4);
+        b[p + 4] = '-';
+        digits(b, p + 5, month, 2);
+        b[p + 7] = '-';
+        digits(b, p + 8, day, 2);
+        b[p + 10] = ' ';
+        digits(b, p + 11, millisOfDay / 3600000, 2);
+        b[p + 13] = ':';
+        digits(b, p + 14, (millisOfDay / 60000) % 60, 2);
+        b[p + 16] = ':';
+        digits(b, p + 17, (millisOfDay / 1000) % 60, 2);
+        b[p + 19] = '.';
+        digits(b, p + 20, millisOfDay % 1000, 3);
+    }
+
+    /**
+     * Parses a timestamp in the dump text form.
+     *
+     * @param b buffer holding the text
+     * @param offset start of the text
+     * @param length length of the text
+     * @return milliseconds since the epoch
+     * @throws IOException if the text is not a timestamp
+     */
+    public static long parse(byte[] b, int offset, int length) throws IOException {
+        if ((length == LENGTH) && (b[offset + 4] == '-') && (b[offset + 7] == '-') && (b[offset + 10] == ' ')
+                && (b[offset + 13] == ':') && (b[offset + 16] == ':') && (b[offset + 19] == '.')) {
+            int year = number(b, offset, 4);
+            int month = number(b, offset + 5, 2);
+            int day = number(b, offset + 8, 2);
+            int hour = number(b, offset + 11, 2);
+            int minute = number(b, offset + 14, 2);
+            int second = number(b, offset + 17, 2);
+            int millis = number(b, offset + 20, 3);
+            if ((year >= 1583) && (month >= 1) && (month <= 12) && (day >= 1) && (day <= daysInMonth(year, month))
+                    && (hour >= 0) && (hour < 24) && (minute >= 0) && (minute < 60) && (second >= 0) && (second < 60)
+                    && (millis >= 0)) {
+                return daysFromCivil(year, month, day) * MILLIS_PER_DAY
+                        + ((hour * 60 + minute) * 60 + second) * 1000L + millis;
+            }
+        }
+        // anything unusual is parsed exactly as SimpleDateFormat does
+        String text = new String(b, offset, length, StandardCharsets.UTF_8);
+        try {
+            return FORMAT.get().parse(text).getTime();
+        } catch (ParseException ex) {
+            throw new IOException("invalid timestamp " + text, ex);
+        }
+    }
+
+    private static int number(byte[] b, int offset, int width) {
+        int value = 0;
+        for (int i = offset; i < offset + width; i++) {
+            int d = b[i] - '0';
+            if ((d < 0) || (d > 9)) {
+                return -1;
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                boolean leap = ((year % 4) == 0) && (((year % 100) != 0) || ((year % 400) == 0));
+                return leap ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    private static long daysFromCivil(int year, int month, int day) {
+        long y = (month <= 2) ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yoe = y - era * 400;
+        long doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    private static void digits(byte[] b, int offset, int value, int width) {
+        for (int i = offset + width - 1; i >= offset; i--) {
+            b[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+    }
+
+}
@@ -0,0 +1,329 @@
+package cqldump;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes a zip of entries whose content was packed beforehand, so that
+ * entries deflated in parallel or stored can be copied to the response as
+ * they are. Sizes and checksums are known when an entry starts, so there are
+ * no data descriptors and the zip can be read as a stream. Zip64 records
+ * are written where sizes, offsets or the entry count need them.
+ *
+ * @author theider
+ */
+public class ZipWriter implements Closeable {
+
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    private static final int ZIP64_COUNT_LIMIT = 0xFFFF;
+    private static final int UTF8_FLAG = 0x0800;
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+
+    private final OutputStream out;
+    private final List<CentralEntry> entries = new ArrayList<>();
+    private final int dosTime;
+    private final byte[] header = new byte[128];
+    private long offset;
+    private boolean finished;
+
+    /**
+     * Content of one entry: a file with the stored or deflated bytes and the
+     * checksum and size of the uncompressed data.
+     */
+    public static class EntryData {
+        private final int method;
+        private final long crc;
+        private final long size;
+        private final File file;
+        private final boolean temporary;
+
+        public EntryData(int method, long crc, long size, File file, boolean temporary) {
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.file = file;
+            this.temporary = temporary;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCompressedSize() {
+            return file.length();
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Deletes the packed file unless it is the spool itself.
+         */
+        public void delete() {
+            if (temporary && !file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    private static class CentralEntry {
+        final byte[] name;
+        final int method;
+        final long crc;
+        final long size;
+        final long compressedSize;
+        final long offset;
+
+        CentralEntry(byte[] name, int method, long crc, long size, long compressedSize, long offset) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.offset = offset;
+        }
+    }
+
+    public ZipWriter(OutputStream out) {
+        this.out = out;
+        this.dosTime = toDosTime(System.currentTimeMillis());
+    }
+
+    /**
+     * Adds an entry with packed content from a file.
+     *
+     * @param name entry name
+     * @param data packed content
+     * @throws IOException if the file cannot be read or the zip written
+     */
+    public void write(String name, EntryData data) throws IOException {
+        long compressedSize = data.getCompressedSize();
+        writeLocalHeader(name, data.getMethod(), data.getCrc(), data.getSize(), compressedSize);
+        long copied = Files.copy(data.getFile().toPath(), out);
+        if (copied != compressedSize) {
+            throw new IOException("entry " + name + " changed while it was written");
+        }
+        offset += copied;
+    }
+
+    /**
+     * Adds a small entry, deflated in memory.
+     *
+     * @param name entry name
+     * @param content uncompressed content
+     * @throws IOException if the zip cannot be written
+     */
+    public void write(String name, byte[] content) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        ByteArrayOutputStream packed = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                packed.write(buffer, 0, n);
+            }
+        } finally {
+            deflater.end();
+        }
+        writeLocalHeader(name, ZipEntry.DEFLATED, crc.getValue(), content.length, packed.size());
+        packed.writeTo(out);
+        offset += packed.size();
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Writes the central directory, the stream stays open.
+     *
+     * @throws IOException if the zip cannot be written
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        long directoryOffset = offset;
+        for (CentralEntry entry : entries) {
+            writeCentralHeader(entry);
+        }
+        long directorySize = offset - directoryOffset;
+        boolean zip64 = (entries.size() >= ZIP64_COUNT_LIMIT) || (directoryOffset >= ZIP64_LIMIT) || (directorySize >= ZIP64_LIMIT);
+        if (zip64) {
+            long zip64Offset = offset;
+            int n = 0;
+            n = putInt(n, 0x06064b50);
+            n = putLong(n, 44);
+            n = putShort(n, VERSION_ZIP64);
+            n = putShort(n, VERSION_ZIP64);
+            n = putInt(n, 0);
+            n = putInt(n, 0);
+            n = putLong(n, entries.size());
+            n = putLong(n, entries.size());
+            n = putLong(n, directorySize);
+            n = putLong(n, directoryOffset);
+            n = putInt(n, 0x07064b50);
+            n = putInt(n, 0);
+            n = putLong(n, zip64Offset);
+            n = putInt(n, 1);
+            writeHeader(n);
+        }
+        int n = 0;
+        n = putInt(n, 0x06054b50);
+        n = putShort(n, 0);
+        n = putShort(n, 0);
+        n = putShort(n, Math.min(entries.size(), ZIP64_COUNT_LIMIT));
+        n = putShort(n, Math.min(entries.size(), ZIP64_COUNT_LIMIT));
+        n = putInt(n, Math.min(directorySize, ZIP64_LIMIT));
+        n = putInt(n, Math.min(directoryOffset, ZIP64_LIMIT));
+        n = putShort(n, 0);
+        writeHeader(n);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeLocalHeader(String name, int method, long crc, long size, long compressedSize) throws IOException {
+        if (finished) {
+            throw new IOException("zip already finished");
+        }
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        entries.add(new CentralEntry(nameBytes, method, crc, size, compressedSize, offset));
+        boolean zip64 = (size >= ZIP64_LIMIT) || (compressedSize >= ZIP64_LIMIT);
+        int n = 0;
+        n = putInt(n, 0x04034b50);
+        n = putShort(n, zip64 ? VERSION_ZIP64 : VERSION);
+        n = putShort(n, UTF8_FLAG);
+        n = putShort(n, method);
+        n = putInt(n, dosTime);
+        n = putInt(n, crc);
+        n = putInt(n, zip64 ? ZIP64_LIMIT : compressedSize);
+        n = putInt(n, zip64 ? ZIP64_LIMIT : size);
+        n = putShort(n, nameBytes.length);
+        n = putShort(n, zip64 ? 20 : 0);
+        writeHeader(n);
+        out.write(nameBytes);
+        offset += nameBytes.length;
+        if (zip64) {
+            n = 0;
+            n = putShort(n, 0x0001);
+            n = putShort(n, 16);
+            n = putLong(n, size);
+            n = putLong(n, compressedSize);
+            writeHeader(n);
+        }
+    }
+
+    private void writeCentralHeader(CentralEntry entry) throws IOException {
+        // only the fields that overflow go into the zip64 extra field
+        boolean sizeOverflow = entry.size >= ZIP64_LIMIT;
+        boolean compressedOverflow = entry.compressedSize >= ZIP64_LIMIT;
+        boolean offsetOverflow = entry.offset >= ZIP64_LIMIT;
+        int extraLength = (sizeOverflow ? 8 : 0) + (compressedOverflow ? 8 : 0) + (offsetOverflow ? 8 : 0);
+        boolean zip64 = extraLength > 0;
+        int n = 0;
+        n = putInt(n, 0x02014b50);
+        n = putShort(n, zip64 ? VERSION_ZIP64 : VERSION);
+        n = putShort(n, zip64 ? VERSION_ZIP64 : VERSION);
+        n = putShort(n, UTF8_FLAG);
+        n = putShort(n, entry.method);
+        n = putInt(n, dosTime);
+        n = putInt(n, entry.crc);
+        n = putInt(n, Math.min(entry.compressedSize, ZIP64_LIMIT));
+        n = putInt(n, Math.min(entry.size, ZIP64_LIMIT));
+        n = putShort(n, entry.name.length);
+        n = putShort(n, zip64 ? extraLength + 4 : 0);
+        n = putShort(n, 0);
+        n = putShort(n, 0);
+        n = putShort(n, 0);
+        n = putInt(n, 0);
+        n = putInt(n, Math.min(entry.offset, ZIP64_LIMIT));
+        writeHeader(n);
+        out.write(entry.name);
+        offset += entry.name.length;
+        if (zip64) {
+            n = 0;
+            n = putShort(n, 0x0001);
+            n = putShort(n, extraLength);
+            if (sizeOverflow) {
+                n = putLong(n, entry.size);
+            }
+            if (compressedOverflow) {
+                n = putLong(n, entry.compressedSize);
+            }
+            if (offsetOverflow) {
+                n = putLong(n, entry.offset);
+            }
+            writeHeader(n);
+        }
+    }
+
+    private void writeHeader(int length) throws IOException {
+        out.write(header, 0, length);
+        offset += length;
+    }
+
+    private int putShort(int n, int v) {
+        header[n] = (byte) v;
+        header[n + 1] = (byte) (v >>> 8);
+        return n + 2;
+    }
+
+    private int putInt(int n, long v) {
+        header[n] = (byte) v;
+        header[n + 1] = (byte) (v >>> 8);
+        header[n + 2] = (byte) (v >>> 16);
+        header[n + 3] = (byte) (v >>> 24);
+        return n + 4;
+    }
+
+    private int putLong(int n, long v) {
+        n = putInt(n, v);
+        return putInt(n, v >>> 32);
+    }
+
+    private static int toDosTime(long millis) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(millis);
+        int year = c.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((year - 1980) << 25) | ((c.get(Calendar.MONTH) + 1) << 21) | (c.get(Calendar.DAY_OF_MONTH) << 16)
+                | (c.get(Calendar.HOUR_OF_DAY) << 11) | (c.get(Calendar.MINUTE) << 5) | (c.get(Calendar.SECOND) >> 1);
+    }
+
+}
@@ -0,0 +1,111 @@
+package cqldump;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+/**
+ * Checks the number, uuid and base64 readers of {@link ColumnDecoder}
+ * against the JDK and commons-codec calls import made before.
+ *
+ * @author theider
+ */
+public class ColumnDecoderTest {
+
+    @Test
+    public void testParseLong() throws IOException {
+        String[] valid = {"0", "-0", "+7", "-1", "42", "000123", "999999999999999999", "-999999999999999999",
+            "9223372036854775807", "-9223372036854775808", "+9223372036854775807"};
+        for (String text : valid) {
+            assertEquals(text, Long.parseLong(text), parseLong(text));
+        }
+        Random random = new Random(11);
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextLong() >> random.nextInt(64);
+            assertEquals(value, parseLong(Long.toString(value)));
+        }
+        String[] invalid = {"", "-", "+", "1.5", "1e3", "12a", " 1", "9223372036854775808", "-9223372036854775809", "--1"};
+        for (String text : invalid) {
+            try {
+                parseLong(text);
+                fail("parsed " + text);
+            } catch (IOException ex) {
+                // Long.parseLong rejects it as well
+            }
+        }
+    }
+
+    @Test
+    public void testParseUUID() throws IOException {
+        Random random = new Random(12);
+        for (int i = 0; i < 10000; i++) {
+            UUID uuid = new UUID(random.nextLong(), random.nextLong());
+            String text = uuid.toString();
+            assertEquals(uuid, parseUUID(text));
+            assertEquals(uuid, parseUUID(text.toUpperCase()));
+        }
+        // short forms UUID.fromString accepts
+        assertEquals(UUID.fromString("1-2-3-4-5"), parseUUID("1-2-3-4-5"));
+        for (String text : new String[]{"", "not-a-uuid", "0123456789abcdef0123456789abcdef0123", "0123456g-89ab-cdef-0123-456789abcdef"}) {
+            try {
+                parseUUID(text);
+                fail("parsed " + text);
+            } catch (IOException ex) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testDecodeBase64() {
+        Random random = new Random(13);
+        for (int i = 0; i < 10000; i++) {
+            byte[] data = new byte[random.nextInt(100)];
+            random.nextBytes(data);
+            byte[] text = Base64.encodeBase64String(data).getBytes(StandardCharsets.US_ASCII);
+            byte[] b = new byte[text.length + 2];
+            System.arraycopy(text, 0, b, 1, text.length);
+            assertArrayEquals(data, ColumnDecoder.decodeBase64(b, 1, text.length));
+        }
+        // text commons-codec skips over, and text it rejects
+        for (String text : new String[]{"QUJD\r\nREVG", "QUI", "QUJ", "QQ", "QR", "Q", "QUJD====", "QU*JD", "-_-_"}) {
+            byte[] b = text.getBytes(StandardCharsets.US_ASCII);
+            assertEquals(text, decodeCodec(text), decode(b));
+        }
+    }
+
+    private static String decodeCodec(String text) {
+        try {
+            return Arrays.toString(Base64.decodeBase64(text));
+        } catch (IllegalArgumentException ex) {
+            return "rejected";
+        }
+    }
+
+    private static String decode(byte[] b) {
+        try {
+            return Arrays.toString(ColumnDecoder.decodeBase64(b, 0, b.length));
+        } catch (IllegalArgumentException ex) {
+            return "rejected";
+        }
+    }
+
+    private static long parseLong(String text) throws IOException {
+        byte[] b = text.getBytes(StandardCharsets.US_ASCII);
+        return ColumnDecoder.parseLong(b, 0, b.length);
+    }
+
+    private static UUID parseUUID(String text) throws IOException {
+        byte[] b = text.getBytes(StandardCharsets.US_ASCII);
+        return ColumnDecoder.parseUUID(b, 0, b.length);
+    }
+
+}
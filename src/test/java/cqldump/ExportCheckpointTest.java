@@ -0,0 +1,196 @@
+package cqldump;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that a resumed spool keeps the chunks of finished ranges once and
+ * drops those of unfinished ranges and anything written after the
+ * checkpoint, on spools built by hand.
+ *
+ * @author theider
+ */
+public class ExportCheckpointTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * A chunk of rows of one range as the exporter appends it.
+     */
+    private static class Chunk {
+        private final String range;
+        private final byte[] data;
+        private final long rows;
+
+        Chunk(String range, byte[] data, long rows) {
+            this.range = range;
+            this.data = data;
+            this.rows = rows;
+        }
+    }
+
+    @Test
+    public void testTruncateDropsPartialSpans() throws IOException {
+        File directory = folder.getRoot();
+        List<Chunk> chunks = Arrays.asList(
+                chunk("a", "a1", 1), chunk("b", "b1b1", 2), chunk("c", "c1", 1),
+                chunk("a", "a2a2a2", 3), chunk("b", "b2", 1), chunk("c", "c2c2", 2));
+        // a and c finished, b was still being scanned
+        ExportCheckpoint checkpoint = ExportCheckpoint.load(directory, "t", DumpFormat.JSON, 3);
+        byte[] written = spool(checkpoint, chunks, Arrays.asList("a", "c"));
+        // bytes flushed after the checkpoint was saved
+        Files.write(checkpoint.getSpoolFile().toPath(), concat(written, "late".getBytes()));
+
+        ExportCheckpoint resumed = ExportCheckpoint.load(directory, "t", DumpFormat.JSON, 3);
+        assertEquals(10, resumed.getRowCount());
+        assertTrue(resumed.isRangeCompleted("a"));
+        assertFalse(resumed.isRangeCompleted("b"));
+        resumed.truncateSpool();
+        assertEquals("a1c1a2a2a2c2c2", new String(Files.readAllBytes(resumed.getSpoolFile().toPath())));
+        assertEquals(7, resumed.getRowCount());
+        assertEquals(14, resumed.getSpoolLength());
+
+        // the truncated state is durable and a second truncate keeps it
+        ExportCheckpoint reloaded = ExportCheckpoint.load(directory, "t", DumpFormat.JSON, 3);
+        assertEquals(7, reloaded.getRowCount());
+        assertEquals(14, reloaded.getSpoolLength());
+        assertEquals(2, reloaded.getCompletedRangeCount());
+        reloaded.truncateSpool();
+        assertEquals("a1c1a2a2a2c2c2", new String(Files.readAllBytes(reloaded.getSpoolFile().toPath())));
+        assertEquals(7, reloaded.getRowCount());
+    }
+
+    @Test
+    public void testTruncateRandomSpools() throws IOException {
+        Random random = new Random(10);
+        for (int t = 0; t < 30; t++) {
+            File directory = folder.newFolder();
+            int rangeCount = 1 + random.nextInt(6);
+            List<String> completed = new ArrayList<>();
+            for (int r = 0; r < rangeCount; r++) {
+                if (random.nextBoolean()) {
+                    completed.add("r" + r);
+                }
+            }
+            List<Chunk> chunks = new ArrayList<>();
+            for (int i = random.nextInt(20); i > 0; i--) {
+                // some chunks larger than the copy buffer
+                byte[] data = new byte[(random.nextInt(5) == 0) ? random.nextInt(200000) : random.nextInt(100)];
+                random.nextBytes(data);
+                chunks.add(new Chunk("r" + random.nextInt(rangeCount), data, random.nextInt(1000)));
+            }
+            ExportCheckpoint checkpoint = ExportCheckpoint.load(directory, "t", DumpFormat.BINARY, rangeCount);
+            spool(checkpoint, chunks, completed);
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            long expectedRows = 0;
+            for (Chunk chunk : chunks) {
+                if (completed.contains(chunk.range)) {
+                    expected.write(chunk.data);
+                    expectedRows += chunk.rows;
+                }
+            }
+            ExportCheckpoint resumed = ExportCheckpoint.load(directory, "t", DumpFormat.BINARY, rangeCount);
+            resumed.truncateSpool();
+            assertArrayEquals(expected.toByteArray(), Files.readAllBytes(resumed.getSpoolFile().toPath()));
+            assertEquals(expectedRows, resumed.getRowCount());
+            assertEquals(expected.size(), resumed.getSpoolLength());
+        }
+    }
+
+    @Test
+    public void testTruncateSingleScan() throws IOException {
+        File directory = folder.getRoot();
+        ExportCheckpoint checkpoint = ExportCheckpoint.load(directory, "t", DumpFormat.JSON, 1);
+        Files.write(checkpoint.getSpoolFile().toPath(), "rows-after".getBytes());
+        checkpoint.save(4, 4, "page");
+        ExportCheckpoint resumed = ExportCheckpoint.load(directory, "t", DumpFormat.JSON, 1);
+        assertEquals("page", resumed.getPagingState());
+        resumed.truncateSpool();
+        assertEquals("rows", new String(Files.readAllBytes(resumed.getSpoolFile().toPath())));
+        assertEquals(4, resumed.getRowCount());
+    }
+
+    @Test
+    public void testShortSpoolStartsOver() throws IOException {
+        File directory = folder.getRoot();
+        ExportCheckpoint checkpoint = ExportCheckpoint.load(directory, "t", DumpFormat.JSON, 2);
+        Files.write(checkpoint.getSpoolFile().toPath(), "abc".getBytes());
+        checkpoint.addCompletedRange("a");
+        checkpoint.save(3, 3, null);
+        Files.write(checkpoint.getSpoolFile().toPath(), "ab".getBytes());
+        ExportCheckpoint resumed = ExportCheckpoint.load(directory, "t", DumpFormat.JSON, 2);
+        assertEquals(0, resumed.getRowCount());
+        assertEquals(0, resumed.getSpoolLength());
+        assertNull(resumed.getPagingState());
+        assertFalse(resumed.isRangeCompleted("a"));
+    }
+
+    @Test
+    public void testOtherSettingsAreRefused() throws IOException {
+        File directory = folder.getRoot();
+        ExportCheckpoint.load(directory, "t", DumpFormat.JSON, 2).save(0, 0, null);
+        for (Object[] settings : new Object[][]{{DumpFormat.BINARY, 2}, {DumpFormat.JSON, 3}}) {
+            try {
+                ExportCheckpoint.load(directory, "t", (DumpFormat) settings[0], (Integer) settings[1]);
+                fail("loaded with " + Arrays.toString(settings));
+            } catch (IOException ex) {
+                // expected
+            }
+        }
+    }
+
+    private static Chunk chunk(String range, String data, long rows) {
+        return new Chunk(range, data.getBytes(), rows);
+    }
+
+    /**
+     * Writes the chunks to the spool and saves the checkpoint the way the
+     * exporter does, with the spans of the ranges not completed.
+     *
+     * @return spool contents
+     */
+    private static byte[] spool(ExportCheckpoint checkpoint, List<Chunk> chunks, List<String> completed) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<long[]> spans = new ArrayList<>();
+        long rows = 0;
+        for (Chunk chunk : chunks) {
+            if (!completed.contains(chunk.range)) {
+                spans.add(new long[]{out.size(), chunk.data.length, chunk.rows});
+            }
+            out.write(chunk.data);
+            rows += chunk.rows;
+        }
+        for (String range : completed) {
+            checkpoint.addCompletedRange(range);
+        }
+        byte[] data = out.toByteArray();
+        Files.write(checkpoint.getSpoolFile().toPath(), data);
+        checkpoint.save(rows, data.length, null, spans);
+        return data;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] c = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+}
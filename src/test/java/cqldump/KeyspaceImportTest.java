@@ -0,0 +1,35 @@
+package cqldump;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.datastax.driver.core.Cluster;
+import java.io.IOException;
+import org.junit.Test;
+
+/**
+ * Checks the node version check of cqljson imports against the version a
+ * {@link StubNode} reports to the driver.
+ *
+ * @author theider
+ */
+public class KeyspaceImportTest {
+
+    @Test
+    public void testJsonInsertNeedsDefaultUnset() throws IOException {
+        for (String version : new String[]{"3.10.0", "3.11.4", "4.0.1"}) {
+            try (StubNode node = new StubNode(version); Cluster cluster = node.newCluster()) {
+                KeyspaceImport.TableMetadata.checkJsonInsert(cluster.connect());
+            }
+        }
+        for (String version : new String[]{"2.2.19", "3.0.24", "3.9.0"}) {
+            try (StubNode node = new StubNode(version); Cluster cluster = node.newCluster()) {
+                KeyspaceImport.TableMetadata.checkJsonInsert(cluster.connect());
+                fail("cqljson import allowed on " + version);
+            } catch (IOException ex) {
+                assertTrue(ex.getMessage(), ex.getMessage().contains("3.10") && ex.getMessage().contains(version));
+            }
+        }
+    }
+
+}
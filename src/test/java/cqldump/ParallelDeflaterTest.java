@@ -0,0 +1,141 @@
+package cqldump;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Inflates the output of {@link ParallelDeflater} with a plain
+ * {@link Inflater}, which is what unzip tools do with a parallel entry.
+ *
+ * @author theider
+ */
+public class ParallelDeflaterTest {
+
+    private final ExecutorService pool = Executors.newFixedThreadPool(3);
+
+    @After
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Random random = new Random(14);
+        int block = ParallelDeflater.BLOCK_SIZE;
+        // more blocks than are compressed at a time
+        int[] sizes = {0, 1, 1000, block - 1, block, block + 1, 5 * block + 777, 2 * Runtime.getRuntime().availableProcessors() * block + 3};
+        for (int size : sizes) {
+            byte[] data = records(random, size);
+            byte[] packed = deflate(data, 6);
+            assertArrayEquals("size " + size, data, inflate(packed));
+        }
+        byte[] noise = new byte[3 * block];
+        random.nextBytes(noise);
+        assertArrayEquals(noise, inflate(deflate(noise, 1)));
+    }
+
+    @Test
+    public void testBlocksEndWithSyncFlush() throws Exception {
+        byte[] data = records(new Random(15), 3 * ParallelDeflater.BLOCK_SIZE);
+        byte[] packed = deflate(data, 6);
+        // the last block is flushed to a byte boundary before the empty final block
+        byte[] marker = {0, 0, (byte) 0xff, (byte) 0xff};
+        byte[] finalBlock = finalBlock();
+        int end = packed.length - finalBlock.length;
+        assertArrayEquals(finalBlock, Arrays.copyOfRange(packed, end, packed.length));
+        assertArrayEquals(marker, Arrays.copyOfRange(packed, end - 4, end));
+        // empty input is just the final block
+        assertArrayEquals(finalBlock, deflate(new byte[0], 6));
+    }
+
+    @Test
+    public void testDictionaryCarriesAcrossBlocks() throws Exception {
+        // random bytes only compress by referring to the previous block
+        byte[] pattern = new byte[16 * 1024];
+        new Random(16).nextBytes(pattern);
+        byte[] data = new byte[4 * ParallelDeflater.BLOCK_SIZE];
+        for (int i = 0; i < data.length; i += pattern.length) {
+            System.arraycopy(pattern, 0, data, i, pattern.length);
+        }
+        byte[] packed = deflate(data, 6);
+        assertArrayEquals(data, inflate(packed));
+        assertTrue("compressed to " + packed.length, packed.length < pattern.length + 4096);
+    }
+
+    @Test
+    public void testRatioCloseToSingleDeflater() throws Exception {
+        byte[] data = records(new Random(17), 8 * ParallelDeflater.BLOCK_SIZE);
+        Deflater deflater = new Deflater(6, true);
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buffer = new byte[data.length];
+        int single = deflater.deflate(buffer);
+        deflater.end();
+        int parallel = deflate(data, 6).length;
+        assertTrue(parallel + " vs " + single, parallel < single * 1.05);
+    }
+
+    private byte[] deflate(byte[] data, int level) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ParallelDeflater(level, pool).deflate(new ByteArrayInputStream(data), out);
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] packed) throws DataFormatException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(packed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[65536];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if ((n == 0) && !inflater.finished() && inflater.needsInput()) {
+                    throw new DataFormatException("stream ends without a final block");
+                }
+                out.write(buffer, 0, n);
+            }
+            assertEquals("bytes after the final block", 0, inflater.getRemaining());
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] finalBlock() {
+        Deflater deflater = new Deflater(6, true);
+        deflater.finish();
+        byte[] buffer = new byte[16];
+        int n = deflater.deflate(buffer);
+        deflater.end();
+        return Arrays.copyOf(buffer, n);
+    }
+
+    /**
+     * Text that looks like a JSON spool, so blocks compress and refer back.
+     */
+    static byte[] records(Random random, int size) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + 256);
+        while (out.size() < size) {
+            String record = "{\"data\":{\"id\":\"" + random.nextInt(100000) + "\",\"name\":\"user"
+                    + random.nextInt(1000) + "\",\"score\":\"" + random.nextDouble() + "\"},\"table_name\":\"users\"}";
+            byte[] b = String.format("\r\n%8s%s", Integer.toHexString(record.length()), record).getBytes();
+            out.write(b, 0, b.length);
+        }
+        return Arrays.copyOf(out.toByteArray(), size);
+    }
+
+}
@@ -0,0 +1,122 @@
+package cqldump;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks when the manifest of an export becomes the base of a delta, and
+ * that a base of another ring is refused.
+ *
+ * @author theider
+ */
+public class RangeManifestTest {
+
+    private static final String RING = RangeManifest.ringDigest(Arrays.asList("-9:0", "0:9"));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private File pendingFile;
+
+    @Before
+    public void setup() {
+        file = new File(folder.getRoot(), "manifest.json");
+        pendingFile = new File(folder.getRoot(), "manifest.pending.json");
+    }
+
+    @Test
+    public void testDeltaPromotesPendingBase() throws IOException {
+        RangeManifest first = export();
+        assertFalse(file.exists());
+
+        RangeManifest base = RangeManifest.loadBase(file, pendingFile, first.getId(), DumpFormat.JSON, RING);
+        assertEquals(first.getId(), base.getId());
+        assertTrue(file.exists());
+        assertFalse(pendingFile.exists());
+        RangeManifest delta = new RangeManifest("ks", DumpFormat.JSON, 2, RING, base);
+        assertEquals(new RangeManifest.RangeDigest("d1", 1), delta.getBaseDigest("t", "-9:0"));
+        assertEquals(first.getId(), delta.toJSON().get("base"));
+    }
+
+    @Test
+    public void testFailedDownloadKeepsCurrentBase() throws IOException {
+        RangeManifest first = export();
+        RangeManifest.loadBase(file, pendingFile, first.getId(), DumpFormat.JSON, RING);
+        // the dump of the second export never reached the client
+        RangeManifest second = export();
+        assertTrue(pendingFile.exists());
+
+        RangeManifest base = RangeManifest.loadBase(file, pendingFile, first.getId(), DumpFormat.JSON, RING);
+        assertEquals(first.getId(), base.getId());
+        assertFalse(pendingFile.exists());
+        try {
+            RangeManifest.loadBase(file, pendingFile, second.getId(), DumpFormat.JSON, RING);
+            fail("second export was promoted after it was dropped");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testUnknownBaseIsRefused() throws IOException {
+        try {
+            RangeManifest.loadBase(file, pendingFile, "none", DumpFormat.JSON, RING);
+            fail("delta without any manifest");
+        } catch (IOException ex) {
+            // expected
+        }
+        RangeManifest first = export();
+        try {
+            RangeManifest.loadBase(file, pendingFile, "other", DumpFormat.JSON, RING);
+            fail("delta with an unknown base");
+        } catch (IOException ex) {
+            // expected
+        }
+        // the pending manifest is kept for the right id
+        assertEquals(first.getId(), RangeManifest.loadBase(file, pendingFile, first.getId(), DumpFormat.JSON, RING).getId());
+    }
+
+    @Test
+    public void testOtherRingIsRefused() throws IOException {
+        RangeManifest first = export();
+        String otherRing = RangeManifest.ringDigest(Arrays.asList("-9:-5", "-5:0", "0:9"));
+        try {
+            RangeManifest.loadBase(file, pendingFile, first.getId(), DumpFormat.JSON, otherRing);
+            fail("base of another ring");
+        } catch (IOException ex) {
+            // expected
+        }
+        assertEquals(first.getId(), RangeManifest.load(file, DumpFormat.JSON, RING).getId());
+    }
+
+    @Test
+    public void testOtherFormatHasNoBase() throws IOException {
+        RangeManifest first = export();
+        assertNull(RangeManifest.loadBase(file, pendingFile, first.getId(), DumpFormat.BINARY, RING));
+    }
+
+    /**
+     * Records the ranges of an export and saves its manifest as pending, as
+     * the export servlet does once the zip is written.
+     */
+    private RangeManifest export() throws IOException {
+        RangeManifest manifest = new RangeManifest("ks", DumpFormat.JSON, 2, RING, null);
+        manifest.record("t", "-9:0", new RangeManifest.RangeDigest("d1", 1));
+        manifest.record("t", "0:9", new RangeManifest.RangeDigest("d2", 2));
+        manifest.save(pendingFile);
+        return manifest;
+    }
+
+}
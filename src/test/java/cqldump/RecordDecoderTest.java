@@ -0,0 +1,195 @@
+package cqldump;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.UUID;
+import org.apache.commons.codec.binary.Base64;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.Test;
+
+/**
+ * Round trips rows through {@link RowEncoder}, {@link FrameReader} and
+ * {@link RecordDecoder}, and checks every bound value against the
+ * json-simple import it replaced, on a {@link StubNode} session.
+ *
+ * @author theider
+ */
+public class RecordDecoderTest {
+
+    // the types import converts, everything else is bound as text
+    private static final DataType[] TYPES = {
+        DataType.uuid(), DataType.timeuuid(), DataType.timestamp(), DataType.bigint(), DataType.cint(),
+        DataType.cboolean(), DataType.cdouble(), DataType.blob(), DataType.text(), DataType.varchar()
+    };
+
+    @Test
+    public void testRoundTripMatchesJsonSimple() throws Exception {
+        Random random = new Random(20171006);
+        try (StubNode node = new StubNode()) {
+            List<TableCase> cases = new ArrayList<>();
+            Map<String, KeyspaceImport.TableMetadata> tableMetadata = new HashMap<>();
+            for (int t = 0; t < 20; t++) {
+                TableCase table = new TableCase("t" + t, random);
+                node.addTable(table.name, table.names, table.types, Collections.<List<ByteBuffer>>emptyList());
+                tableMetadata.put(table.name, table.metadata);
+                cases.add(table);
+            }
+            // rows of all tables interleaved, as a reader sees them after a merge
+            RecordBuffer entry = new RecordBuffer(64);
+            List<TableCase> order = new ArrayList<>();
+            for (int r = 0; r < 1000; r++) {
+                TableCase table = cases.get(random.nextInt(cases.size()));
+                table.encoder.encode(table.randomRow(random), entry);
+                order.add(table);
+            }
+            try (Cluster cluster = node.newCluster()) {
+                Session session = cluster.connect();
+                // a small buffer so records span and grow it
+                FrameReader reader = new FrameReader(new ByteArrayInputStream(entry.toByteArray()), 16);
+                RecordDecoder decoder = new RecordDecoder(session, tableMetadata, 8);
+                for (TableCase table : order) {
+                    assertTrue(reader.next());
+                    String record = new String(reader.array(), reader.offset(), reader.length(), StandardCharsets.UTF_8);
+                    BoundStatement actual = decoder.decode(reader.array(), reader.offset(), reader.length());
+                    assertEquals(record, table.name, decoder.getTableMetadata().getTableName());
+                    BoundStatement expected = decodeJsonSimple(session, table.metadata, record);
+                    ColumnDefinitions variables = expected.preparedStatement().getVariables();
+                    assertEquals(record, variables.size(), actual.preparedStatement().getVariables().size());
+                    for (ColumnDefinitions.Definition variable : variables) {
+                        String name = variable.getName();
+                        assertEquals(record + " " + name, expected.getBytesUnsafe(name), actual.getBytesUnsafe(name));
+                    }
+                }
+                assertFalse(reader.next());
+            }
+        }
+    }
+
+    private static class TableCase {
+        private final String name;
+        private final List<String> names = new ArrayList<>();
+        private final List<DataType> types = new ArrayList<>();
+        private final KeyspaceImport.TableMetadata metadata;
+        private final RowEncoder encoder;
+
+        TableCase(String name, Random random) {
+            this.name = name;
+            metadata = new KeyspaceImport.TableMetadata(name);
+            for (int i = 0, count = 1 + random.nextInt(10); i < count; i++) {
+                DataType type = TYPES[random.nextInt(TYPES.length)];
+                names.add("c" + i);
+                types.add(type);
+                metadata.getColumns().put("c" + i, type.getName().toString());
+                metadata.getColumnOrder().add("c" + i);
+            }
+            metadata.compileDecoders();
+            encoder = new RowEncoder(name, names, types);
+        }
+
+        TestRow randomRow(Random random) throws Exception {
+            List<ByteBuffer> values = new ArrayList<>();
+            for (DataType type : types) {
+                int kind = random.nextInt(10);
+                if (kind == 0) {
+                    values.add(null);
+                } else if (kind == 1) {
+                    values.add(ByteBuffer.allocate(0));
+                } else {
+                    values.add(TestRow.serialize(type, RowEncoderTest.randomValue(random, type)));
+                }
+            }
+            return new TestRow(names, types, values);
+        }
+    }
+
+    /**
+     * The import decoding before the streaming decoder.
+     */
+    private static BoundStatement decodeJsonSimple(Session session, KeyspaceImport.TableMetadata metadata, String record) throws Exception {
+        JSONObject rowData = (JSONObject) ((JSONObject) JSONValue.parse(record)).get("data");
+        List<String> columnNames = new ArrayList<>();
+        List<Object> columnData = new ArrayList<>();
+        for (Object key : rowData.keySet()) {
+            String colName = (String) key;
+            String dataValue = (String) rowData.get(colName);
+            columnNames.add(colName);
+            if (dataValue == null) {
+                columnData.add(null);
+                continue;
+            }
+            switch (metadata.getColumns().get(colName)) {
+                case "timestamp":
+                    SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+                    fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+                    columnData.add(fmt.parse(dataValue));
+                    break;
+                case "blob":
+                    columnData.add(ByteBuffer.wrap(Base64.decodeBase64(dataValue)));
+                    break;
+                case "double":
+                    columnData.add(Double.parseDouble(dataValue));
+                    break;
+                case "bigint":
+                    columnData.add(Long.parseLong(dataValue));
+                    break;
+                case "boolean":
+                    columnData.add(Boolean.parseBoolean(dataValue));
+                    break;
+                case "int":
+                    columnData.add(Integer.parseInt(dataValue));
+                    break;
+                case "timeuuid":
+                case "uuid":
+                    columnData.add(UUID.fromString(dataValue));
+                    break;
+                default:
+                    columnData.add(dataValue);
+                    break;
+            }
+        }
+        PreparedStatement prepStmt = metadata.getInsertStatement(session, columnNames);
+        return new BoundStatement(prepStmt).bind(columnData.toArray());
+    }
+
+    @Test
+    public void testUnknownTableAndColumn() throws Exception {
+        KeyspaceImport.TableMetadata metadata = new KeyspaceImport.TableMetadata("t");
+        metadata.getColumns().put("a", "int");
+        metadata.getColumnOrder().add("a");
+        metadata.compileDecoders();
+        RecordDecoder decoder = new RecordDecoder(null, Collections.singletonMap("t", metadata), 8);
+        for (String record : Arrays.asList("{\"data\":{\"a\":\"1\"},\"table_name\":\"u\"}", "{\"data\":{\"b\":\"1\"},\"table_name\":\"t\"}")) {
+            byte[] b = record.getBytes(StandardCharsets.UTF_8);
+            try {
+                decoder.decode(b, 0, b.length);
+                fail("decoded " + record);
+            } catch (IOException ex) {
+                // expected
+            }
+        }
+    }
+
+}
@@ -0,0 +1,241 @@
+package cqldump;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+/**
+ * Checks {@link RecordParser} against json-simple's parser, which import
+ * used before, on random records with every kind of escape and spacing.
+ *
+ * @author theider
+ */
+public class RecordParserTest {
+
+    @Test
+    public void testRandomRecordsMatchJsonSimple() throws Exception {
+        Random random = new Random(4242);
+        RecordParser parser = new RecordParser();
+        JSONParser reference = new JSONParser();
+        for (int t = 0; t < 5000; t++) {
+            Map<String, String> data = new LinkedHashMap<>();
+            for (int i = random.nextInt(40); i > 0; i--) {
+                String value = (random.nextInt(8) == 0) ? null : RowEncoderTest.randomString(random, random.nextInt(20));
+                data.put(RowEncoderTest.randomString(random, 1 + random.nextInt(8)), value);
+            }
+            String tableName = RowEncoderTest.randomString(random, 1 + random.nextInt(8));
+            String text = record(random, data, tableName);
+            byte[] b = ("xx" + text + "yy").getBytes(StandardCharsets.UTF_8);
+            int length = b.length - 4;
+            parser.parse(b, 2, length);
+
+            JSONObject expected = (JSONObject) reference.parse(new String(b, 2, length, StandardCharsets.UTF_8));
+            // unpaired surrogates come out of both as '?' in UTF-8
+            Map<String, Object> expectedData = new HashMap<>();
+            for (Object entry : ((JSONObject) expected.get("data")).entrySet()) {
+                Map.Entry<?, ?> member = (Map.Entry<?, ?>) entry;
+                expectedData.put(utf8((String) member.getKey()), member.getValue());
+            }
+            if (expectedData.size() != data.size()) {
+                continue;
+            }
+            assertEquals(text, expectedData.size(), parser.size());
+            assertEquals(text, utf8((String) expected.get("table_name")), parser.getTableName(new RecordBuffer(16)));
+            for (int k = 0; k < parser.size(); k++) {
+                String key = string(parser, parser.keyOffset(k), parser.keyLength(k), parser.isKeyEscaped(k));
+                assertTrue(text + " key " + key, expectedData.containsKey(key));
+                Object value = expectedData.get(key);
+                switch (parser.valueKind(k)) {
+                    case RecordParser.NULL:
+                        assertEquals(text, null, value);
+                        break;
+                    case RecordParser.STRING:
+                    case RecordParser.ESCAPED:
+                        boolean escaped = parser.valueKind(k) == RecordParser.ESCAPED;
+                        assertArrayEquals(text, bytes((String) value), bytes(string(parser, parser.valueOffset(k), parser.valueLength(k), escaped)));
+                        break;
+                    default:
+                        assertEquals(text, String.valueOf(value), new String(parser.array(), parser.valueOffset(k), parser.valueLength(k), StandardCharsets.UTF_8));
+                        break;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTableNameFirst() throws IOException {
+        byte[] b = "{\"table_name\":\"t\",\"data\":{\"a\":\"1\",\"b\":null,\"c\":42}}".getBytes(StandardCharsets.UTF_8);
+        RecordParser parser = new RecordParser();
+        parser.parse(b, 0, b.length);
+        assertTrue(parser.isTableName("t".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(3, parser.size());
+        assertEquals(RecordParser.STRING, parser.valueKind(0));
+        assertEquals(RecordParser.NULL, parser.valueKind(1));
+        assertEquals(RecordParser.LITERAL, parser.valueKind(2));
+        assertEquals("42", new String(b, parser.valueOffset(2), parser.valueLength(2), StandardCharsets.UTF_8));
+
+        // an escaped table name only matches once unescaped
+        b = "{\"data\":{},\"table_name\":\"t\\u0031\"}".getBytes(StandardCharsets.UTF_8);
+        parser.parse(b, 0, b.length);
+        assertFalse(parser.isTableName("t1".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("t1", parser.getTableName(new RecordBuffer(16)));
+        assertEquals(0, parser.size());
+    }
+
+    @Test
+    public void testInvalidRecords() {
+        List<String> invalid = Arrays.asList(
+                "",
+                "{",
+                "{\"data\":{}}",
+                "{\"data\":{\"a\":\"1\"},\"table_name\":\"t\"",
+                "{\"data\":{\"a\":\"1},\"table_name\":\"t\"}",
+                "{\"data\":{\"a\" \"1\"},\"table_name\":\"t\"}",
+                "{\"data\":{\"a\":{\"b\":\"1\"}},\"table_name\":\"t\"}");
+        RecordParser parser = new RecordParser();
+        for (String text : invalid) {
+            byte[] b = text.getBytes(StandardCharsets.UTF_8);
+            try {
+                parser.parse(b, 0, b.length);
+                fail("parsed invalid record " + text);
+            } catch (IOException ex) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidEscapes() {
+        for (String text : new String[]{"\\", "\\u12", "\\u12g4", "ab\\u"}) {
+            byte[] b = text.getBytes(StandardCharsets.UTF_8);
+            try {
+                RecordParser.unescape(b, 0, b.length, new RecordBuffer(8));
+                fail("unescaped " + text);
+            } catch (IOException ex) {
+                // expected
+            }
+        }
+    }
+
+    private static String string(RecordParser parser, int offset, int length, boolean escaped) throws IOException {
+        if (!escaped) {
+            return new String(parser.array(), offset, length, StandardCharsets.UTF_8);
+        }
+        RecordBuffer scratch = new RecordBuffer(16);
+        RecordParser.unescape(parser.array(), offset, length, scratch);
+        return new String(scratch.array(), 0, scratch.length(), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String utf8(String text) {
+        return new String(bytes(text), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a record in either key order, with random spacing and strings
+     * escaped more than json-simple would.
+     */
+    private static String record(Random random, Map<String, String> data, String tableName) {
+        StringBuilder sb = new StringBuilder();
+        boolean dataFirst = random.nextBoolean();
+        sb.append(space(random)).append('{');
+        List<String> members = new ArrayList<>();
+        StringBuilder dataText = new StringBuilder();
+        dataText.append(quote(random, "data")).append(space(random)).append(':').append(space(random)).append('{');
+        boolean first = true;
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            if (!first) {
+                dataText.append(space(random)).append(',');
+            }
+            first = false;
+            dataText.append(space(random)).append(quote(random, entry.getKey())).append(space(random)).append(':').append(space(random));
+            dataText.append((entry.getValue() == null) ? "null" : quote(random, entry.getValue()));
+        }
+        dataText.append(space(random)).append('}');
+        members.add(dataText.toString());
+        members.add(quote(random, "table_name") + space(random) + ':' + space(random) + quote(random, tableName));
+        if (!dataFirst) {
+            members.add(members.remove(0));
+        }
+        sb.append(space(random)).append(members.get(0)).append(space(random)).append(',').append(space(random)).append(members.get(1));
+        sb.append(space(random)).append('}').append(space(random));
+        return sb.toString();
+    }
+
+    private static String space(Random random) {
+        switch (random.nextInt(12)) {
+            case 0:
+                return " ";
+            case 1:
+                return "\r\n\t ";
+            default:
+                return "";
+        }
+    }
+
+    private static String quote(Random random, String text) {
+        // data and table_name stay plain so the record has both members
+        if (text.equals("data") || text.equals("table_name")) {
+            return "\"" + text + "\"";
+        }
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            if ((ch == '"') || (ch == '\\') || (ch < 0x20) || (random.nextInt(10) == 0)) {
+                String shortEscape = shortEscape(ch);
+                if ((shortEscape != null) && random.nextBoolean()) {
+                    sb.append(shortEscape);
+                } else {
+                    sb.append(String.format("\\u%04x", (int) ch));
+                }
+            } else if ((ch == '/') && random.nextBoolean()) {
+                sb.append("\\/");
+            } else {
+                sb.append(ch);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static String shortEscape(char ch) {
+        switch (ch) {
+            case '"':
+                return "\\\"";
+            case '\\':
+                return "\\\\";
+            case '/':
+                return "\\/";
+            case '\b':
+                return "\\b";
+            case '\f':
+                return "\\f";
+            case '\n':
+                return "\\n";
+            case '\r':
+                return "\\r";
+            case '\t':
+                return "\\t";
+            default:
+                return null;
+        }
+    }
+
+}
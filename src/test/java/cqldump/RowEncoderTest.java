@@ -0,0 +1,281 @@
+package cqldump;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.LocalDate;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.utils.UUIDs;
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.UUID;
+import org.apache.commons.codec.binary.Base64;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.Test;
+
+/**
+ * Checks that {@link RowEncoder} writes the same bytes as the json-simple
+ * encoding it replaced, which is kept here as the reference.
+ *
+ * @author theider
+ */
+public class RowEncoderTest {
+
+    private static final DataType[] TYPES = {
+        DataType.uuid(), DataType.timeuuid(), DataType.timestamp(), DataType.bigint(), DataType.counter(),
+        DataType.cint(), DataType.smallint(), DataType.tinyint(), DataType.cboolean(), DataType.cdouble(),
+        DataType.cfloat(), DataType.decimal(), DataType.varint(), DataType.ascii(), DataType.text(),
+        DataType.varchar(), DataType.blob(), DataType.inet(), DataType.date(), DataType.time(),
+        DataType.list(DataType.cint()), DataType.set(DataType.text()), DataType.map(DataType.text(), DataType.bigint())
+    };
+
+    // escaped by json-simple, multi-byte in UTF-8, or both
+    private static final String SPECIAL = "\"\\/\b\f\n\r\t\u0000\u001f\u007f\u0080\u009fé €⃿東😀\ud800";
+
+    @Test
+    public void testRandomRowsMatchJsonSimple() throws Exception {
+        Random random = new Random(20171005);
+        for (int t = 0; t < 200; t++) {
+            int columnCount = 1 + random.nextInt(12);
+            List<String> names = new ArrayList<>();
+            List<DataType> types = new ArrayList<>();
+            Set<String> used = new HashSet<>();
+            while (names.size() < columnCount) {
+                String name = randomString(random, 1 + random.nextInt(10));
+                if (used.add(name)) {
+                    names.add(name);
+                    types.add(TYPES[random.nextInt(TYPES.length)]);
+                }
+            }
+            String tableName = randomString(random, 1 + random.nextInt(12));
+            RowEncoder encoder = new RowEncoder(tableName, names, types);
+            for (int r = 0; r < 20; r++) {
+                List<ByteBuffer> values = new ArrayList<>();
+                for (DataType type : types) {
+                    int kind = random.nextInt(10);
+                    if (kind == 0) {
+                        values.add(null);
+                    } else if (kind == 1) {
+                        values.add(ByteBuffer.allocate(0));
+                    } else {
+                        values.add(TestRow.serialize(type, randomValue(random, type)));
+                    }
+                }
+                Row row = new TestRow(names, types, values);
+                assertEncoding(tableName, names, types, row, encoder);
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyCollectionsAreNotNull() throws Exception {
+        List<String> names = Arrays.asList("l", "s", "m");
+        List<DataType> types = Arrays.asList(DataType.list(DataType.cint()), DataType.set(DataType.text()),
+                DataType.map(DataType.text(), DataType.cint()));
+        Row row = new TestRow(names, types, Arrays.asList(null, ByteBuffer.allocate(0), null));
+        String record = encode(new RowEncoder("t", names, types), row);
+        assertTrue(record, record.contains("\"l\":\"[]\""));
+        assertTrue(record, record.contains("\"s\":\"[]\""));
+        assertTrue(record, record.contains("\"m\":\"{}\""));
+        assertEncoding("t", names, types, row, new RowEncoder("t", names, types));
+    }
+
+    @Test
+    public void testEmptyCells() throws Exception {
+        List<String> names = Arrays.asList("i", "b", "u", "ts", "txt", "blob");
+        List<DataType> types = Arrays.asList(DataType.cint(), DataType.cboolean(), DataType.uuid(),
+                DataType.timestamp(), DataType.text(), DataType.blob());
+        List<ByteBuffer> values = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            values.add(ByteBuffer.allocate(0));
+        }
+        Row row = new TestRow(names, types, values);
+        String record = encode(new RowEncoder("t", names, types), row);
+        // empty numbers, uuids and timestamps read as null, empty text and blobs as ""
+        for (String column : new String[]{"i", "b", "u", "ts"}) {
+            assertTrue(record, record.contains("\"" + column + "\":null"));
+        }
+        assertTrue(record, record.contains("\"txt\":\"\""));
+        assertTrue(record, record.contains("\"blob\":\"\""));
+        assertEncoding("t", names, types, row, new RowEncoder("t", names, types));
+    }
+
+    @Test
+    public void testWriteStringMatchesJsonValue() {
+        Random random = new Random(7);
+        RecordBuffer buffer = new RecordBuffer(64);
+        for (int i = 0; i < 10000; i++) {
+            String text = randomString(random, random.nextInt(40));
+            buffer.reset();
+            RowEncoder.writeString(text, buffer);
+            byte[] expected = ("\"" + JSONValue.escape(text) + "\"").getBytes(StandardCharsets.UTF_8);
+            assertArrayEquals(text, expected, buffer.toByteArray());
+        }
+    }
+
+    @Test
+    public void testFrameHeader() {
+        for (int length : new int[]{0, 1, 0xf, 0x10, 0xabc, 0x12345678, Integer.MAX_VALUE}) {
+            byte[] b = new byte[RowEncoder.FRAME_HEADER_SIZE];
+            RowEncoder.writeFrameHeader(b, 0, length);
+            assertEquals(String.format("\r\n%8s", Integer.toHexString(length)), new String(b, StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static void assertEncoding(String tableName, List<String> names, List<DataType> types, Row row, RowEncoder encoder) {
+        byte[] expected = encodeJsonSimple(tableName, names, types, row);
+        RecordBuffer buffer = new RecordBuffer(16);
+        encoder.encode(row, buffer);
+        assertArrayEquals(new String(expected, StandardCharsets.UTF_8), expected, buffer.toByteArray());
+    }
+
+    private static String encode(RowEncoder encoder, Row row) {
+        RecordBuffer buffer = new RecordBuffer(16);
+        encoder.encode(row, buffer);
+        return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The export encoding before the streaming encoder, with the platform
+     * charset taken as UTF-8.
+     */
+    @SuppressWarnings("unchecked")
+    private static byte[] encodeJsonSimple(String tableName, List<String> names, List<DataType> types, Row row) {
+        JSONObject rowObject = new JSONObject();
+        JSONObject rowData = new JSONObject();
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            DataType type = types.get(i);
+            Object o = row.getObject(i);
+            if (o == null) {
+                rowData.put(name, null);
+            } else if ((type == DataType.timeuuid()) || (type == DataType.uuid())) {
+                rowData.put(name, ((UUID) o).toString());
+            } else if (type == DataType.blob()) {
+                rowData.put(name, Base64.encodeBase64String(((ByteBuffer) o).array()));
+            } else if (type == DataType.timestamp()) {
+                SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+                fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+                rowData.put(name, fmt.format(row.getTimestamp(i)));
+            } else {
+                rowData.put(name, o.toString());
+            }
+        }
+        rowObject.put("data", rowData);
+        rowObject.put("table_name", tableName);
+        byte[] textData = rowObject.toJSONString().getBytes(StandardCharsets.UTF_8);
+        String sizeHex = String.format("\r\n%8s", Integer.toHexString(textData.length));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(sizeHex.getBytes(StandardCharsets.US_ASCII), 0, sizeHex.length());
+        out.write(textData, 0, textData.length);
+        return out.toByteArray();
+    }
+
+    static String randomString(Random random, int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            int kind = random.nextInt(4);
+            if (kind == 0) {
+                sb.append(SPECIAL.charAt(random.nextInt(SPECIAL.length())));
+            } else if (kind == 1) {
+                sb.append((char) random.nextInt(0x3000));
+            } else {
+                sb.append((char) (' ' + random.nextInt(95)));
+            }
+        }
+        return sb.toString();
+    }
+
+    static Object randomValue(Random random, DataType type) throws UnknownHostException {
+        switch (type.getName()) {
+            case UUID:
+                return new UUID(random.nextLong(), random.nextLong());
+            case TIMEUUID:
+                return UUIDs.startOf(random.nextLong() >>> 24);
+            case TIMESTAMP:
+                // mostly the fast path, some dates before 1583 and after 9999
+                long millis = (random.nextInt(8) == 0) ? random.nextLong() >> 8 : (long) (random.nextDouble() * 253402300799999L);
+                return new java.util.Date(millis);
+            case BIGINT:
+            case COUNTER:
+                return random.nextLong();
+            case INT:
+                return random.nextInt();
+            case SMALLINT:
+                return (short) random.nextInt();
+            case TINYINT:
+                return (byte) random.nextInt();
+            case BOOLEAN:
+                return random.nextBoolean();
+            case DOUBLE:
+                return random.nextDouble() * Math.pow(10, random.nextInt(40) - 20);
+            case FLOAT:
+                return random.nextFloat();
+            case DECIMAL:
+                return new BigDecimal(new BigInteger(80, random), random.nextInt(20) - 10);
+            case VARINT:
+                return new BigInteger(100, random).subtract(BigInteger.ONE.shiftLeft(99));
+            case ASCII:
+                StringBuilder ascii = new StringBuilder();
+                for (int i = random.nextInt(20); i > 0; i--) {
+                    ascii.append((char) random.nextInt(128));
+                }
+                return ascii.toString();
+            case TEXT:
+            case VARCHAR:
+                return randomString(random, random.nextInt(30));
+            case BLOB:
+                byte[] data = new byte[random.nextInt(40)];
+                random.nextBytes(data);
+                return ByteBuffer.wrap(data);
+            case INET:
+                byte[] address = new byte[random.nextBoolean() ? 4 : 16];
+                random.nextBytes(address);
+                return InetAddress.getByAddress(address);
+            case DATE:
+                return LocalDate.fromDaysSinceEpoch(random.nextInt(1000000) - 500000);
+            case TIME:
+                return (long) (random.nextDouble() * 86400000000000L);
+            case LIST:
+                List<Integer> list = new ArrayList<>();
+                for (int i = random.nextInt(4); i > 0; i--) {
+                    list.add(random.nextInt());
+                }
+                return list;
+            case SET:
+                Set<String> set = new HashSet<>();
+                for (int i = random.nextInt(4); i > 0; i--) {
+                    set.add(randomString(random, random.nextInt(6)));
+                }
+                return set;
+            case MAP:
+                Map<String, Long> map = new HashMap<>();
+                for (int i = random.nextInt(4); i > 0; i--) {
+                    map.put(randomString(random, random.nextInt(6)), random.nextLong());
+                }
+                return map.isEmpty() ? Collections.emptyMap() : map;
+            default:
+                throw new IllegalArgumentException("unsupported type " + type);
+        }
+    }
+
+}
@@ -0,0 +1,473 @@
+package cqldump;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.QueryOptions;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A one node cluster on the loopback interface that speaks just enough of
+ * native protocol v4 for the driver to connect, prepare statements and
+ * read rows. Code that needs real driver statements and result rows runs
+ * against it without Cassandra, and every row goes through the driver's
+ * own frame decoding.
+ * <p>
+ * Tables are registered with their columns and serialized rows. A SELECT
+ * returns every row of the table named after FROM, an INSERT is prepared
+ * with a bind variable for each column it names, and any other request
+ * succeeds without a result.
+ *
+ * @author theider
+ */
+public class StubNode implements Closeable {
+
+    private static final String KEYSPACE = "stub";
+
+    // request and response opcodes
+    private static final int ERROR = 0x00;
+    private static final int STARTUP = 0x01;
+    private static final int READY = 0x02;
+    private static final int OPTIONS = 0x05;
+    private static final int SUPPORTED = 0x06;
+    private static final int QUERY = 0x07;
+    private static final int RESULT = 0x08;
+    private static final int PREPARE = 0x09;
+    private static final int REGISTER = 0x0B;
+
+    // result kinds
+    private static final int VOID = 1;
+    private static final int ROWS = 2;
+    private static final int SET_KEYSPACE = 3;
+    private static final int PREPARED = 4;
+
+    private static final int INVALID = 0x2200;
+    private static final int PROTOCOL_ERROR = 0x000A;
+
+    private final ServerSocket server;
+    private final Map<String, Table> tables = new ConcurrentHashMap<>();
+    private final List<Socket> connections = new CopyOnWriteArrayList<>();
+    private final AtomicInteger preparedIds = new AtomicInteger();
+    private final Table local;
+    private final Table peers;
+
+    private static class Table {
+        private final String name;
+        private final List<String> names;
+        private final List<DataType> types;
+        private final List<List<ByteBuffer>> rows;
+
+        Table(String name, List<String> names, List<DataType> types, List<List<ByteBuffer>> rows) {
+            this.name = name;
+            this.names = names;
+            this.types = types;
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * Starts a 3.11 node on a free port.
+     *
+     * @throws IOException if no port can be bound
+     */
+    public StubNode() throws IOException {
+        this("3.11.4");
+    }
+
+    /**
+     * Starts the node on a free port.
+     *
+     * @param releaseVersion Cassandra version the node reports
+     * @throws IOException if no port can be bound
+     */
+    public StubNode(String releaseVersion) throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        local = systemLocal(server.getInetAddress(), releaseVersion);
+        peers = new Table("peers", Arrays.asList("peer", "data_center", "host_id", "rack", "release_version", "rpc_address", "schema_version", "tokens"),
+                Arrays.asList(DataType.inet(), DataType.text(), DataType.uuid(), DataType.text(), DataType.text(), DataType.inet(), DataType.uuid(), DataType.set(DataType.text())),
+                Collections.<List<ByteBuffer>>emptyList());
+        Thread acceptor = new Thread(this::accept, "stub-node-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Registers a table; a later table of the same name replaces it.
+     *
+     * @param name table name
+     * @param names column names
+     * @param types column types
+     * @param rows serialized cells of each row, null for null cells
+     */
+    public void addTable(String name, List<String> names, List<DataType> types, List<List<ByteBuffer>> rows) {
+        tables.put(name, new Table(name, names, types, rows));
+    }
+
+    /**
+     * @return a driver cluster of this node, the caller closes it
+     */
+    public Cluster newCluster() {
+        return Cluster.builder()
+                .addContactPointsWithPorts(new InetSocketAddress(server.getInetAddress(), server.getLocalPort()))
+                .withProtocolVersion(ProtocolVersion.V4)
+                .withQueryOptions(new QueryOptions().setMetadataEnabled(false))
+                .withoutJMXReporting()
+                .withoutMetrics()
+                .build();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        for (Socket socket : connections) {
+            socket.close();
+        }
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                connections.add(socket);
+                Thread handler = new Thread(() -> serve(socket), "stub-node-connection");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException ex) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream frame = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            while (true) {
+                int version;
+                try {
+                    version = in.readUnsignedByte();
+                } catch (EOFException ex) {
+                    return;
+                }
+                in.readUnsignedByte();
+                int stream = in.readShort();
+                int opcode = in.readUnsignedByte();
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                Body response = new Body();
+                int responseOpcode;
+                if ((version & 0x7f) != 4) {
+                    responseOpcode = error(response, PROTOCOL_ERROR, "only protocol v4 is supported");
+                } else {
+                    responseOpcode = respond(opcode, ByteBuffer.wrap(body), response);
+                }
+                frame.writeByte(0x84);
+                frame.writeByte(0);
+                frame.writeShort(stream);
+                frame.writeByte(responseOpcode);
+                frame.writeInt(response.size());
+                response.writeTo(frame);
+                frame.flush();
+            }
+        } catch (IOException ex) {
+            // connection closed
+        } finally {
+            connections.remove(socket);
+        }
+    }
+
+    private int respond(int opcode, ByteBuffer request, Body response) throws IOException {
+        switch (opcode) {
+            case STARTUP:
+            case REGISTER:
+                return READY;
+            case OPTIONS:
+                response.writeShort(2);
+                response.writeString("CQL_VERSION");
+                response.writeShort(1);
+                response.writeString("3.4.4");
+                response.writeString("COMPRESSION");
+                response.writeShort(0);
+                return SUPPORTED;
+            case QUERY:
+                return query(readLongString(request), response);
+            case PREPARE:
+                return prepare(readLongString(request), response);
+            default:
+                // EXECUTE and BATCH
+                response.writeInt(VOID);
+                return RESULT;
+        }
+    }
+
+    private int query(String query, Body response) throws IOException {
+        String text = query.trim();
+        String lower = text.toLowerCase(Locale.ROOT);
+        if (lower.contains("system.local")) {
+            writeRows("system", local, response);
+        } else if (lower.contains("system.peers")) {
+            writeRows("system", peers, response);
+        } else if (lower.contains(" from system")) {
+            // the schema tables are empty
+            writeRows("system", new Table("schema", Collections.<String>emptyList(), Collections.<DataType>emptyList(),
+                    Collections.<List<ByteBuffer>>emptyList()), response);
+        } else if (lower.startsWith("use ")) {
+            response.writeInt(SET_KEYSPACE);
+            response.writeString(unquote(text.substring(4).replace(";", "").trim()));
+        } else if (lower.startsWith("select")) {
+            Table table = tables.get(tableName(text, lower.indexOf(" from ") + 6));
+            if (table == null) {
+                return error(response, INVALID, "unknown table in " + query);
+            }
+            writeRows(KEYSPACE, table, response);
+        } else {
+            response.writeInt(VOID);
+        }
+        return RESULT;
+    }
+
+    private int prepare(String query, Body response) throws IOException {
+        String lower = query.toLowerCase(Locale.ROOT);
+        int into = lower.indexOf("insert into ");
+        if (into < 0) {
+            return error(response, INVALID, "only inserts can be prepared: " + query);
+        }
+        Table table = tables.get(tableName(query, into + 12));
+        if (table == null) {
+            return error(response, INVALID, "unknown table in " + query);
+        }
+        List<String> names = new ArrayList<>();
+        List<DataType> types = new ArrayList<>();
+        if (lower.contains(" json ")) {
+            names.add("[json]");
+            types.add(DataType.varchar());
+        } else {
+            int start = query.indexOf('(') + 1;
+            for (String column : query.substring(start, query.indexOf(')', start)).split(",")) {
+                int index = table.names.indexOf(unquote(column.trim()));
+                if (index < 0) {
+                    return error(response, INVALID, "unknown column " + column + " in " + query);
+                }
+                names.add(table.names.get(index));
+                types.add(table.types.get(index));
+            }
+        }
+        response.writeInt(PREPARED);
+        byte[] id = Integer.toString(preparedIds.incrementAndGet()).getBytes(StandardCharsets.UTF_8);
+        response.writeShort(id.length);
+        response.write(id);
+        // bind variables with the first table column as the partition key
+        response.writeInt(0x0001);
+        response.writeInt(names.size());
+        int keyIndex = names.indexOf(table.names.get(0));
+        if (keyIndex < 0) {
+            response.writeInt(0);
+        } else {
+            response.writeInt(1);
+            response.writeShort(keyIndex);
+        }
+        response.writeString(KEYSPACE);
+        response.writeString(table.name);
+        for (int i = 0; i < names.size(); i++) {
+            response.writeString(names.get(i));
+            writeType(types.get(i), response);
+        }
+        // no result metadata
+        response.writeInt(0x0004);
+        response.writeInt(0);
+        return RESULT;
+    }
+
+    private static void writeRows(String keyspace, Table table, Body response) throws IOException {
+        response.writeInt(ROWS);
+        response.writeInt(0x0001);
+        response.writeInt(table.names.size());
+        response.writeString(keyspace);
+        response.writeString(table.name);
+        for (int i = 0; i < table.names.size(); i++) {
+            response.writeString(table.names.get(i));
+            writeType(table.types.get(i), response);
+        }
+        response.writeInt(table.rows.size());
+        for (List<ByteBuffer> row : table.rows) {
+            for (ByteBuffer value : row) {
+                if (value == null) {
+                    response.writeInt(-1);
+                } else {
+                    response.writeInt(value.remaining());
+                    response.write(value.array(), value.arrayOffset() + value.position(), value.remaining());
+                }
+            }
+        }
+    }
+
+    private static void writeType(DataType type, Body out) throws IOException {
+        switch (type.getName()) {
+            case ASCII:
+                out.writeShort(0x0001);
+                break;
+            case BIGINT:
+                out.writeShort(0x0002);
+                break;
+            case BLOB:
+                out.writeShort(0x0003);
+                break;
+            case BOOLEAN:
+                out.writeShort(0x0004);
+                break;
+            case COUNTER:
+                out.writeShort(0x0005);
+                break;
+            case DECIMAL:
+                out.writeShort(0x0006);
+                break;
+            case DOUBLE:
+                out.writeShort(0x0007);
+                break;
+            case FLOAT:
+                out.writeShort(0x0008);
+                break;
+            case INT:
+                out.writeShort(0x0009);
+                break;
+            case TIMESTAMP:
+                out.writeShort(0x000B);
+                break;
+            case UUID:
+                out.writeShort(0x000C);
+                break;
+            case TEXT:
+            case VARCHAR:
+                // Cassandra sends text columns as varchar
+                out.writeShort(0x000D);
+                break;
+            case VARINT:
+                out.writeShort(0x000E);
+                break;
+            case TIMEUUID:
+                out.writeShort(0x000F);
+                break;
+            case INET:
+                out.writeShort(0x0010);
+                break;
+            case DATE:
+                out.writeShort(0x0011);
+                break;
+            case TIME:
+                out.writeShort(0x0012);
+                break;
+            case SMALLINT:
+                out.writeShort(0x0013);
+                break;
+            case TINYINT:
+                out.writeShort(0x0014);
+                break;
+            case LIST:
+                out.writeShort(0x0020);
+                writeType(type.getTypeArguments().get(0), out);
+                break;
+            case MAP:
+                out.writeShort(0x0021);
+                writeType(type.getTypeArguments().get(0), out);
+                writeType(type.getTypeArguments().get(1), out);
+                break;
+            case SET:
+                out.writeShort(0x0022);
+                writeType(type.getTypeArguments().get(0), out);
+                break;
+            default:
+                throw new IllegalArgumentException("unsupported type " + type);
+        }
+    }
+
+    private static int error(Body response, int code, String message) throws IOException {
+        response.writeInt(code);
+        response.writeString(message);
+        return ERROR;
+    }
+
+    private static Table systemLocal(InetAddress address, String releaseVersion) {
+        List<String> names = Arrays.asList("key", "broadcast_address", "cluster_name", "data_center", "host_id", "listen_address",
+                "partitioner", "rack", "release_version", "rpc_address", "schema_version", "tokens");
+        List<DataType> types = Arrays.asList(DataType.text(), DataType.inet(), DataType.text(), DataType.text(), DataType.uuid(), DataType.inet(),
+                DataType.text(), DataType.text(), DataType.text(), DataType.inet(), DataType.uuid(), DataType.set(DataType.text()));
+        List<Object> values = Arrays.asList("local", address, "stub", "dc1", UUID.nameUUIDFromBytes("host".getBytes()), address,
+                "org.apache.cassandra.dht.Murmur3Partitioner", "rack1", releaseVersion, address, UUID.nameUUIDFromBytes("schema".getBytes()),
+                Collections.singleton("0"));
+        List<ByteBuffer> row = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            row.add(TestRow.serialize(types.get(i), values.get(i)));
+        }
+        return new Table("local", names, types, Collections.singletonList(row));
+    }
+
+    private static String tableName(String query, int start) {
+        int end = start;
+        while ((end < query.length()) && " (;".indexOf(query.charAt(end)) < 0) {
+            end++;
+        }
+        String name = query.substring(start, end);
+        // a keyspace qualifier is ignored
+        return unquote(name.substring(name.lastIndexOf('.') + 1));
+    }
+
+    private static String unquote(String name) {
+        if ((name.length() > 1) && name.startsWith("\"") && name.endsWith("\"")) {
+            return name.substring(1, name.length() - 1).replace("\"\"", "\"");
+        }
+        return name;
+    }
+
+    private static String readLongString(ByteBuffer body) {
+        byte[] b = new byte[body.getInt()];
+        body.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Response body in protocol encoding.
+     */
+    private static class Body extends ByteArrayOutputStream {
+
+        void writeShort(int value) {
+            write(value >>> 8);
+            write(value);
+        }
+
+        void writeInt(int value) {
+            writeShort(value >>> 16);
+            writeShort(value);
+        }
+
+        void writeString(String text) throws IOException {
+            byte[] b = text.getBytes(StandardCharsets.UTF_8);
+            writeShort(b.length);
+            write(b);
+        }
+    }
+
+}
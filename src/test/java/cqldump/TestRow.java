@@ -0,0 +1,114 @@
+package cqldump;
+
+import com.datastax.driver.core.AbstractGettableData;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Token;
+import com.datastax.driver.core.TypeCodec;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A result row over serialized cells, read through the driver's own
+ * getters and codecs, for tests of the encoders without a cluster. Cells
+ * are held in exactly sized buffers, as the driver copies them out of a
+ * response frame.
+ *
+ * @author theider
+ */
+class TestRow extends AbstractGettableData implements Row {
+
+    static final ProtocolVersion PROTOCOL_VERSION = ProtocolVersion.V4;
+
+    private final List<String> names;
+    private final List<DataType> types;
+    private final List<ByteBuffer> values;
+
+    /**
+     * @param names column names
+     * @param types column types
+     * @param values serialized cells, null for null cells
+     */
+    TestRow(List<String> names, List<DataType> types, List<ByteBuffer> values) {
+        super(PROTOCOL_VERSION);
+        this.names = names;
+        this.types = types;
+        this.values = new ArrayList<>(values.size());
+        for (ByteBuffer value : values) {
+            if (value == null) {
+                this.values.add(null);
+            } else {
+                byte[] b = new byte[value.remaining()];
+                value.duplicate().get(b);
+                this.values.add(ByteBuffer.wrap(b));
+            }
+        }
+    }
+
+    /**
+     * @param type column type
+     * @param value cell value
+     * @return cell serialized as the driver receives it, null for null
+     */
+    static ByteBuffer serialize(DataType type, Object value) {
+        if (value == null) {
+            return null;
+        }
+        TypeCodec<Object> codec = CodecRegistry.DEFAULT_INSTANCE.codecFor(type);
+        return codec.serialize(value, PROTOCOL_VERSION);
+    }
+
+    @Override
+    protected DataType getType(int i) {
+        return types.get(i);
+    }
+
+    @Override
+    protected String getName(int i) {
+        return names.get(i);
+    }
+
+    @Override
+    protected ByteBuffer getValue(int i) {
+        return values.get(i);
+    }
+
+    @Override
+    protected CodecRegistry getCodecRegistry() {
+        return CodecRegistry.DEFAULT_INSTANCE;
+    }
+
+    @Override
+    protected int getIndexOf(String name) {
+        int index = names.indexOf(name);
+        if (index < 0) {
+            throw new IllegalArgumentException(name + " is not a column");
+        }
+        return index;
+    }
+
+    @Override
+    public ColumnDefinitions getColumnDefinitions() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Token getToken(int i) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Token getToken(String name) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Token getPartitionKeyToken() {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -0,0 +1,111 @@
+package cqldump;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+import org.junit.Test;
+
+/**
+ * Checks the timestamp text form and its parsing against
+ * {@link SimpleDateFormat}, which the dump format was defined with.
+ *
+ * @author theider
+ */
+public class TimestampsTest {
+
+    private static final long[] EDGES = {
+        0L, -1L, 1L, 86399999L, 86400000L, -86400000L,
+        // 1582-10-15, the first Gregorian day, and the day before
+        -12219292800000L, -12219292800001L,
+        // 1583-01-01 and 9999-12-31 23:59:59.999, the fast path limits
+        -12212553600000L, 253402300799999L, 253402300800000L,
+        // 2000-02-29, and March 1st of the non-leap 2100 and 1900
+        951782400000L, 4107542400000L, -2203891200000L,
+        Long.MIN_VALUE / 2, Long.MAX_VALUE / 2
+    };
+
+    private static SimpleDateFormat reference() {
+        SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return fmt;
+    }
+
+    @Test
+    public void testFormatEdges() {
+        SimpleDateFormat fmt = reference();
+        for (long millis : EDGES) {
+            assertEquals(Long.toString(millis), fmt.format(new Date(millis)), format(millis));
+        }
+    }
+
+    @Test
+    public void testFormatRandom() {
+        SimpleDateFormat fmt = reference();
+        Random random = new Random(1583);
+        for (int i = 0; i < 100000; i++) {
+            long millis = (random.nextInt(10) == 0) ? random.nextLong() >> random.nextInt(20) : (long) ((random.nextDouble() - 0.3) * 253402300799999L);
+            assertEquals(Long.toString(millis), fmt.format(new Date(millis)), format(millis));
+        }
+    }
+
+    @Test
+    public void testParseRandom() throws Exception {
+        SimpleDateFormat fmt = reference();
+        Random random = new Random(1582);
+        for (int i = 0; i < 100000; i++) {
+            long millis = (random.nextInt(10) == 0) ? random.nextLong() >> random.nextInt(20) : (long) ((random.nextDouble() - 0.3) * 253402300799999L);
+            String text = fmt.format(new Date(millis));
+            assertEquals(text, fmt.parse(text).getTime(), parse(text));
+        }
+        for (long millis : EDGES) {
+            String text = fmt.format(new Date(millis));
+            assertEquals(text, fmt.parse(text).getTime(), parse(text));
+        }
+    }
+
+    @Test
+    public void testParseUnusual() {
+        // SimpleDateFormat is lenient with these, or rejects them
+        String[] texts = {
+            "2017-13-01 00:00:00.000", "2017-02-29 00:00:00.000", "2016-02-29 00:00:00.000", "2017-04-31 12:00:00.000",
+            "2017-01-01 24:00:00.000", "2017-01-01 23:60:00.000", "2017-01-01 23:59:60.000", "2017-00-00 00:00:00.000",
+            "1582-10-10 00:00:00.000", "10000-01-01 00:00:00.000", "2017-01-01 00:00:00.1", "2017-01-01 00:00:00.0001",
+            "2017-01-01T00:00:00.000", "2017-1-1 0:0:0.0", "2017-01-01", "", "x017-01-01 00:00:00.000"
+        };
+        SimpleDateFormat fmt = reference();
+        for (String text : texts) {
+            String expected;
+            try {
+                expected = Long.toString(fmt.parse(text).getTime());
+            } catch (ParseException ex) {
+                expected = "invalid";
+            }
+            String actual;
+            try {
+                actual = Long.toString(parse(text));
+            } catch (IOException ex) {
+                actual = "invalid";
+            }
+            assertEquals(text, expected, actual);
+        }
+    }
+
+    private static long parse(String text) throws IOException {
+        byte[] b = ("x" + text + "x").getBytes(StandardCharsets.UTF_8);
+        return Timestamps.parse(b, 1, b.length - 2);
+    }
+
+    private static String format(long millis) {
+        RecordBuffer buffer = new RecordBuffer(8);
+        buffer.write('x');
+        Timestamps.format(millis, buffer);
+        return new String(buffer.array(), 1, buffer.length() - 1, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,193 @@
+package cqldump;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import net.jpountz.lz4.LZ4BlockInputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Reads zips of {@link ZipWriter} back with {@link ZipInputStream}, which
+ * relies on the local headers as import does, and with {@link ZipFile},
+ * which relies on the central directory.
+ *
+ * @author theider
+ */
+public class ZipWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPackedEntriesReadBack() throws Exception {
+        Random random = new Random(1414);
+        Map<String, byte[]> expected = new LinkedHashMap<>();
+        File zip = folder.newFile("dump.zip");
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try (ZipWriter zout = new ZipWriter(new BufferedOutputStream(new FileOutputStream(zip)))) {
+            byte[] metadata = "{\"keyspace\":\"ks\"}".getBytes();
+            zout.write("metadata.json", metadata);
+            expected.put("metadata.json", metadata);
+            for (DumpCompression compression : DumpCompression.values()) {
+                for (int size : new int[]{0, 1000, 3 * ParallelDeflater.BLOCK_SIZE + 5}) {
+                    // a non-ASCII name checks the UTF-8 flag
+                    String name = "ks/té-" + compression.getName() + "-" + size + ".json" + compression.getEntrySuffix();
+                    byte[] data = ParallelDeflaterTest.records(random, size);
+                    File spool = folder.newFile();
+                    Files.write(spool.toPath(), data);
+                    ZipWriter.EntryData entry = compression.pack(spool, folder.getRoot(), 6, pool);
+                    zout.write(name, entry);
+                    entry.delete();
+                    expected.put(name, data);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        Map<String, byte[]> streamed = new LinkedHashMap<>();
+        try (ZipInputStream zin = new ZipInputStream(new BufferedInputStream(new FileInputStream(zip)))) {
+            ZipEntry entry;
+            while ((entry = zin.getNextEntry()) != null) {
+                // read to the end so the checksum and size are verified
+                streamed.put(entry.getName(), unpack(entry.getName(), zin));
+            }
+        }
+        assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(streamed.keySet()));
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            assertEquals(expected.size(), zipFile.size());
+            for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+                assertArrayEquals(entry.getKey(), entry.getValue(), streamed.get(entry.getKey()));
+                ZipEntry zipEntry = zipFile.getEntry(entry.getKey());
+                try (InputStream in = zipFile.getInputStream(zipEntry)) {
+                    assertArrayEquals(entry.getKey(), entry.getValue(), unpack(entry.getKey(), in));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testZip64EntryCount() throws IOException {
+        int count = 0xFFFF + 100;
+        File zip = folder.newFile("many.zip");
+        try (ZipWriter zout = new ZipWriter(new BufferedOutputStream(new FileOutputStream(zip)))) {
+            for (int i = 0; i < count; i++) {
+                zout.write("e" + i, Integer.toString(i).getBytes());
+            }
+        }
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            assertEquals(count, zipFile.size());
+            ZipEntry last = zipFile.getEntry("e" + (count - 1));
+            try (InputStream in = zipFile.getInputStream(last)) {
+                assertArrayEquals(Integer.toString(count - 1).getBytes(), readAll(in));
+            }
+        }
+        int streamed = 0;
+        try (ZipInputStream zin = new ZipInputStream(new BufferedInputStream(new FileInputStream(zip)))) {
+            while (zin.getNextEntry() != null) {
+                streamed++;
+            }
+        }
+        assertEquals(count, streamed);
+    }
+
+    @Test
+    public void testZip64EntrySize() throws IOException {
+        // zeros deflated block by block, so the entry is large but its file small
+        int blockSize = ParallelDeflater.BLOCK_SIZE;
+        long blocks = (1L << 32) / blockSize + 1;
+        long size = blocks * blockSize;
+        byte[] zeros = new byte[blockSize];
+        byte[] packedBlock = syncFlushed(zeros);
+        File packed = folder.newFile();
+        CRC32 crc = new CRC32();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(packed), 65536)) {
+            for (long i = 0; i < blocks; i++) {
+                out.write(packedBlock);
+                crc.update(zeros);
+            }
+            out.write(new byte[]{3, 0});
+        }
+        File zip = folder.newFile("large.zip");
+        try (ZipWriter zout = new ZipWriter(new BufferedOutputStream(new FileOutputStream(zip)))) {
+            zout.write("large", new ZipWriter.EntryData(ZipEntry.DEFLATED, crc.getValue(), size, packed, true));
+            zout.write("after", "small".getBytes());
+        }
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            ZipEntry large = zipFile.getEntry("large");
+            assertEquals(size, large.getSize());
+            assertEquals(packed.length(), large.getCompressedSize());
+            try (InputStream in = zipFile.getInputStream(zipFile.getEntry("after"))) {
+                assertArrayEquals("small".getBytes(), readAll(in));
+            }
+        }
+        try (ZipInputStream zin = new ZipInputStream(new BufferedInputStream(new FileInputStream(zip)))) {
+            assertEquals("large", zin.getNextEntry().getName());
+            byte[] buffer = new byte[1 << 20];
+            long read = 0;
+            int n;
+            while ((n = zin.read(buffer)) > 0) {
+                read += n;
+            }
+            assertEquals(size, read);
+            assertEquals("after", zin.getNextEntry().getName());
+            assertArrayEquals("small".getBytes(), readAll(zin));
+            assertNull(zin.getNextEntry());
+        }
+    }
+
+    private static byte[] syncFlushed(byte[] data) {
+        Deflater deflater = new Deflater(6, true);
+        try {
+            deflater.setInput(data);
+            byte[] buffer = new byte[data.length + 64];
+            int n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+            return Arrays.copyOf(buffer, n);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] unpack(String name, InputStream in) throws IOException {
+        if (name.endsWith(DumpCompression.LZ4.getEntrySuffix())) {
+            return readAll(new LZ4BlockInputStream(in));
+        }
+        return readAll(in);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+}